@@ -0,0 +1,27 @@
+#
+# CDV inference environment, sourced by the run scripts that encode and retrieve with a trained model
+#
+
+# number of threads used for CPU calculation
+export OMP_NUM_THREADS=4
+
+# CUDA device numbers visible to the process
+export CUDA_VISIBLE_DEVICES=1
+
+# device priorities, higher is preferred
+export BACKEND_PRIORITY_CPU=2 # prefer CPU for inference (for compatibility reasons)
+export BACKEND_PRIORITY_GPU=1
+
+# set memory limits to 4GB (Java) and 16GB (DL4j Host Memory)
+export MAVEN_OPTS="-XX:+UseG1GC -Xms4G -Xmx12G -Dorg.bytedeco.javacpp.maxbytes=8G -Dorg.bytedeco.javacpp.maxphysicalbytes=20G"
+
+# make sure we read UTF-8 data
+export JAVA_TOOL_OPTIONS=-Dfile.encoding="UTF-8"
+
+# exec Maven with the given main class and the remaining arguments:
+run_cdv() {
+  main="$1"
+  shift
+  exec mvn -e -B -q -DskipTests=true -Djavacpp.platform=linux-x86_64 -Dfile.encoding="UTF-8" \
+    package exec:java -Dexec.mainClass="$main" -Dexec.args="$*"
+}
@@ -3,6 +3,7 @@ package de.datexis.cdv;
 import de.datexis.annotator.Annotator;
 import de.datexis.annotator.AnnotatorComponent;
 import de.datexis.cdv.index.AspectIndex;
+import de.datexis.cdv.index.CorpusVectorStore;
 import de.datexis.cdv.index.EntityIndex;
 import de.datexis.cdv.index.QueryIndex;
 import de.datexis.cdv.tagger.CDVModelBuilder;
@@ -104,10 +105,23 @@ public class CDVAnnotator extends Annotator {
     log.info("Running CDV neural net encoding...");
     timer.start();
     getTagger().attachCDVDocumentMatrix(docs);
+    getTagger().attachStackedDocumentMatrix(docs);
     timer.stop();
     getTagger().appendTestLog("Encoding complete", timer.getLong());
   }
   
+  /**
+   * use tagger to encode all Documents into a contiguous CorpusVectorStore
+   */
+  public CorpusVectorStore annotateCorpus(Collection<Document> docs) {
+    log.info("Running CDV neural net encoding...");
+    timer.start();
+    CorpusVectorStore store = getTagger().encodeCorpusVectorStore(docs);
+    timer.stop();
+    getTagger().appendTestLog("Encoding complete", timer.getLong());
+    return store;
+  }
+  
   public void annotateDocumentsBaseline(Collection<Document> docs) {
     // use tagger to generate and attach PRED vectors to Sentences
     log.info("Running CDV baseline encoding...");
@@ -0,0 +1,118 @@
+package de.datexis.cdv.eval;
+
+import de.datexis.cdv.index.JavaScoringBackend;
+import de.datexis.cdv.index.Nd4jScoringBackend;
+import de.datexis.cdv.index.ScoringBackend;
+import de.datexis.common.CommandLineParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Measure the latency of ND4J and plain Java scoring for growing numbers of sentences, to find the number of
+ * sentences above which ND4J is faster.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class BenchmarkScoringBackend {
+
+  protected final static Logger log = LoggerFactory.getLogger(BenchmarkScoringBackend.class);
+
+  /** numbers of sentences that are scored at once */
+  protected final static int[] SIZES = {4, 8, 16, 32, 64, 128, 256, 512, 1024, 4096, 16384};
+
+  public static void main(String[] args) {
+
+    final BenchmarkScoringBackend.ExecParams params = new BenchmarkScoringBackend.ExecParams();
+    final CommandLineParser parser = new CommandLineParser(params);
+
+    try {
+      parser.parse(args);
+      new BenchmarkScoringBackend().benchmark(params);
+      System.exit(0);
+    } catch(ParseException e) {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("benchmark-scoring", "TeXoo: compare ND4J and Java scoring backends", params.setUpCliOptions(), "", true);
+      System.exit(1);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+
+  }
+
+  protected static class ExecParams implements CommandLineParser.Options {
+
+    protected int dim = 256;
+    protected long budget = 200;
+
+    @Override
+    public void setParams(CommandLine parse) {
+      dim = Integer.parseInt(parse.getOptionValue("d", "256"));
+      budget = Long.parseLong(parse.getOptionValue("t", "200"));
+    }
+
+    @Override
+    public Options setUpCliOptions() {
+      Options op = new Options();
+      op.addOption("d", "dim", true, "dimension of the sentence vectors (default: 256)");
+      op.addOption("t", "time", true, "milliseconds per measurement (default: 200)");
+      return op;
+    }
+
+  }
+
+  public void benchmark(BenchmarkScoringBackend.ExecParams params) {
+    Random random = new Random(42);
+    int rows = SIZES[SIZES.length - 1];
+    INDArray matrix = Nd4j.rand(DataType.FLOAT, rows, params.dim);
+    matrix.diviColumnVector(matrix.norm2(1).reshape(rows, 1));
+    float[] q = new float[params.dim];
+    for(int i = 0; i < q.length; i++) q[i] = (float) random.nextGaussian();
+    q = Transforms.unitVec(Nd4j.create(q, new int[] {q.length, 1})).toFloatVector();
+    ScoringBackend nd4j = Nd4jScoringBackend.INSTANCE;
+    ScoringBackend java = JavaScoringBackend.INSTANCE;
+    // warm up both backends
+    for(int size : SIZES) {
+      measure(nd4j, matrix, size, q, params.budget / 4);
+      measure(java, matrix, size, q, params.budget / 4);
+    }
+    int crossover = -1;
+    log.info(String.format("%10s %14s %14s %8s", "sentences", "ND4J [us]", "JAVA [us]", "speedup"));
+    for(int size : SIZES) {
+      double nd4jMicros = measure(nd4j, matrix, size, q, params.budget);
+      double javaMicros = measure(java, matrix, size, q, params.budget);
+      log.info(String.format("%10d %14.2f %14.2f %7.2fx", size, nd4jMicros, javaMicros, nd4jMicros / javaMicros));
+      if(crossover < 0 && nd4jMicros < javaMicros) crossover = size;
+    }
+    if(crossover > 0) log.info("ND4J is faster from {} sentences on, at dimension {}", crossover, params.dim);
+    else log.info("JAVA is faster for all measured sizes at dimension {}", params.dim);
+  }
+
+  /**
+   * @return mean latency in microseconds of scoring the first sentences of the matrix
+   */
+  protected double measure(ScoringBackend backend, INDArray matrix, int size, float[] q, long millis) {
+    long count = 0;
+    double checksum = 0.;
+    long start = System.nanoTime(), end = start + millis * 1000000L, now;
+    do {
+      // vary the range so that every call reads different memory
+      int begin = (int) (count % (matrix.rows() / size)) * size;
+      checksum += backend.score(matrix, begin, begin + size, q)[0];
+      count++;
+      now = System.nanoTime();
+    } while(now < end);
+    if(Double.isNaN(checksum)) log.warn("invalid scores");
+    return (now - start) / 1000. / count;
+  }
+
+}
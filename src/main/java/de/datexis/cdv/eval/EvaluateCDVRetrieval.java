@@ -4,6 +4,7 @@ import de.datexis.annotator.AnnotatorFactory;
 import de.datexis.cdv.CDVAnnotator;
 import de.datexis.cdv.index.AspectIndex;
 import de.datexis.cdv.index.AspectIndexBuilder;
+import de.datexis.cdv.index.CorpusVectorStore;
 import de.datexis.cdv.index.EntityIndex;
 import de.datexis.cdv.index.PassageIndex;
 import de.datexis.cdv.reader.MatchZooReader;
@@ -102,9 +103,10 @@ public class EvaluateCDVRetrieval {
     // --- annotate ----------------------------------------------------------------------------------------------------
     entityAnnotator.annotateDocuments(corpus.getDocuments());
     aspectAnnotator.annotateDocuments(corpus.getDocuments());
+    CorpusVectorStore store = CorpusVectorStore.fromDocuments(corpus.getDocuments(), entityIndex.getClass(), aspectIndex.getClass());
     
     // --- query ----------------------------------------------------------------------------------------------------
-    QueryRunner runner = new QueryRunner(corpus, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
+    QueryRunner runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
     MatchZooReader.addCandidateSamples(corpus, PassageIndex.NUM_CANDIDATES); // adds 64 candidates to be comparable with MatchZoo models
     runner.retrieveAllQueries(QueryRunner.Candidates.GIVEN);
   
@@ -133,10 +135,10 @@ public class EvaluateCDVRetrieval {
     cdv.getTagger().setMaxWordsPerSentence(-1); // don't limit sentence length during inference
     cdv.getTagger().setMaxTimeSeriesLength(-1); // don't limit document length during inference
     cdv.getTagger().setBatchSize(16);
-    cdv.annotateDocuments(corpus.getDocuments());
+    CorpusVectorStore store = cdv.annotateCorpus(corpus.getDocuments());
     
     // --- query ----------------------------------------------------------------------------------------------------
-    QueryRunner runner = new QueryRunner(corpus, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
+    QueryRunner runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
     MatchZooReader.addCandidateSamples(corpus, PassageIndex.NUM_CANDIDATES); // adds 64 candidates to be comparable with MatchZoo models
     runner.retrieveAllQueries(QueryRunner.Candidates.GIVEN);
     
@@ -0,0 +1,196 @@
+package de.datexis.cdv.eval;
+
+import de.datexis.annotator.AnnotatorFactory;
+import de.datexis.cdv.CDVAnnotator;
+import de.datexis.cdv.index.AspectIndex;
+import de.datexis.cdv.index.AspectIndexBuilder;
+import de.datexis.cdv.index.CorpusVectorStore;
+import de.datexis.cdv.index.EntityIndex;
+import de.datexis.cdv.index.PassageIndex;
+import de.datexis.cdv.index.Projection;
+import de.datexis.cdv.reader.MatchZooReader;
+import de.datexis.cdv.retrieval.QueryRunner;
+import de.datexis.common.CommandLineParser;
+import de.datexis.common.ObjectSerializer;
+import de.datexis.common.Resource;
+import de.datexis.common.Timer;
+import de.datexis.model.Annotation;
+import de.datexis.model.Dataset;
+import de.datexis.model.Query;
+import de.datexis.retrieval.eval.RetrievalEvaluation;
+import de.datexis.retrieval.model.ScoredResult;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compare recall and latency of float32 and int8 scoring on a test set, e.g. MedQuAD or HealthQA.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class EvaluateQuantizedScoring {
+
+  protected final static Logger log = LoggerFactory.getLogger(EvaluateQuantizedScoring.class);
+
+  /** number of top results that are compared between float and int8 scoring */
+  protected final static int TOP_K = 10;
+
+  public static void main(String[] args) throws IOException {
+
+    final EvaluateQuantizedScoring.ExecParams params = new EvaluateQuantizedScoring.ExecParams();
+    final CommandLineParser parser = new CommandLineParser(params);
+
+    try {
+      parser.parse(args);
+      new EvaluateQuantizedScoring().evalQuantizedScoring(params);
+      System.exit(0);
+    } catch(ParseException e) {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("evaluate-quantized", "TeXoo: compare float and int8 CDV scoring", params.setUpCliOptions(), "", true);
+      System.exit(1);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+
+  }
+
+  protected static class ExecParams implements CommandLineParser.Options {
+
+    protected String multiTaskModelDir = null;
+    protected String encoderDir = null;
+    protected String datasetDir = null;
+
+    @Override
+    public void setParams(CommandLine parse) {
+      multiTaskModelDir = parse.getOptionValue("m");
+      encoderDir = parse.getOptionValue("p");
+      datasetDir = parse.getOptionValue("d");
+    }
+
+    @Override
+    public Options setUpCliOptions() {
+      Options op = new Options();
+      op.addRequiredOption("m", "model", true, "path to the pre-trained CDV multi-task model");
+      op.addOption("p", "path", true, "search path to sentence embedding models (if not provided by the model itself)");
+      op.addRequiredOption("d", "dataset", true, "path to the evaluation dataset (json)");
+      return op;
+    }
+
+  }
+
+  public EvaluateQuantizedScoring() {}
+
+  public void evalQuantizedScoring(EvaluateQuantizedScoring.ExecParams params) throws IOException {
+
+    Resource datasetPath = Resource.fromDirectory(params.datasetDir);
+    Resource cdvModelPath = Resource.fromDirectory(params.multiTaskModelDir);
+    Resource embeddingPath = Resource.fromDirectory(params.encoderDir != null ? params.encoderDir : params.multiTaskModelDir);
+
+    // --- load data ---------------------------------------------------------------------------------------------------
+    Dataset corpus = ObjectSerializer.readFromJSON(datasetPath, Dataset.class);
+
+    // --- load model --------------------------------------------------------------------------------------------------
+    CDVAnnotator cdv = (CDVAnnotator) AnnotatorFactory.loadAnnotator(cdvModelPath, embeddingPath);
+    EntityIndex entityIndex = (EntityIndex) cdv.getEntityEncoder();
+    AspectIndex aspectIndex = AspectIndexBuilder.buildAspectIndex(cdv.getAspectEncoder(), corpus.getName());
+
+    // --- annotate ----------------------------------------------------------------------------------------------------
+    cdv.getTagger().setMaxWordsPerSentence(-1); // don't limit sentence length during inference
+    cdv.getTagger().setMaxTimeSeriesLength(-1); // don't limit document length during inference
+    cdv.getTagger().setBatchSize(16);
+    CorpusVectorStore store = cdv.annotateCorpus(corpus.getDocuments());
+    MatchZooReader.addCandidateSamples(corpus, PassageIndex.NUM_CANDIDATES); // adds 64 candidates to be comparable with MatchZoo models
+
+    // --- float32 -----------------------------------------------------------------------------------------------------
+    QueryRunner runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
+    long floatGiven = retrieve(runner, QueryRunner.Candidates.GIVEN);
+    Map<Query, List<String>> floatResults = getTopResults(corpus);
+    evaluate(corpus, "float32 GIVEN");
+    clearPredictions(corpus);
+    runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.SENTENCE_THRESHOLD);
+    long floatAll = retrieve(runner, QueryRunner.Candidates.ALL);
+    Map<Query, List<String>> floatAllResults = getTopResults(corpus);
+    evaluate(corpus, "float32 ALL");
+    clearPredictions(corpus);
+
+    // --- int8 --------------------------------------------------------------------------------------------------------
+    for(Projection projection : Projection.values()) {
+      store.quantize(projection, true);
+    }
+    runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.PASSAGE_RANK);
+    long int8Given = retrieve(runner, QueryRunner.Candidates.GIVEN);
+    double overlapGiven = getOverlap(floatResults, getTopResults(corpus));
+    evaluate(corpus, "int8 GIVEN");
+    clearPredictions(corpus);
+    runner = new QueryRunner(corpus, store, entityIndex, aspectIndex, QueryRunner.Strategy.SENTENCE_THRESHOLD);
+    long int8All = retrieve(runner, QueryRunner.Candidates.ALL);
+    double overlapAll = getOverlap(floatAllResults, getTopResults(corpus));
+    evaluate(corpus, "int8 ALL");
+    clearPredictions(corpus);
+
+    log.info("GIVEN: float32 {}, int8 {}, recall@{} of float32 results {}", Timer.millisToLongDHMS(floatGiven), Timer.millisToLongDHMS(int8Given), TOP_K, overlapGiven);
+    log.info("ALL:   float32 {}, int8 {}, recall@{} of float32 results {}", Timer.millisToLongDHMS(floatAll), Timer.millisToLongDHMS(int8All), TOP_K, overlapAll);
+
+  }
+
+  /**
+   * @return elapsed time in milliseconds
+   */
+  protected long retrieve(QueryRunner runner, QueryRunner.Candidates candidates) {
+    Timer timer = new Timer();
+    timer.start();
+    runner.retrieveAllQueries(candidates);
+    return timer.getLong();
+  }
+
+  protected void evaluate(Dataset corpus, String name) {
+    log.info("Evaluation results for {}:", name);
+    RetrievalEvaluation eval = new RetrievalEvaluation(corpus.getName());
+    eval.evaluateQueries(corpus);
+    eval.printEvaluationStats();
+  }
+
+  /**
+   * @return the top-k predicted passages of each Query, identified by document and span
+   */
+  protected Map<Query, List<String>> getTopResults(Dataset corpus) {
+    Map<Query, List<String>> result = new IdentityHashMap<>();
+    for(Query q : corpus.getQueries()) {
+      List<String> top = new ArrayList<>();
+      for(ScoredResult r : q.getResults(Annotation.Source.PRED, ScoredResult.class)) {
+        if(top.size() >= TOP_K) break;
+        top.add(r.getDocumentRef().getId() + ":" + r.getBegin() + "-" + r.getEnd());
+      }
+      result.put(q, top);
+    }
+    return result;
+  }
+
+  /**
+   * @return the fraction of expected results that are also contained in the actual results
+   */
+  protected double getOverlap(Map<Query, List<String>> expected, Map<Query, List<String>> actual) {
+    long found = 0, total = 0;
+    for(Map.Entry<Query, List<String>> e : expected.entrySet()) {
+      Set<String> act = new HashSet<>(actual.getOrDefault(e.getKey(), Collections.emptyList()));
+      for(String r : e.getValue()) {
+        if(act.contains(r)) found++;
+        total++;
+      }
+    }
+    return total > 0 ? (double) found / total : 0.;
+  }
+
+  protected void clearPredictions(Dataset corpus) {
+    for(Query q : corpus.getQueries()) {
+      q.getResults().removeIf(r -> r.getSource().equals(Annotation.Source.PRED));
+    }
+  }
+
+}
@@ -8,7 +8,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -97,6 +99,15 @@ public class AspectIndexBuilder {
     return aspectAssignments;
   }
   
+  /**
+   * @return the aspect keys of a dataset, or an empty list if the dataset is unknown
+   */
+  public static List<String> getAspectKeys(String datasetName) {
+    String[][] aspectAssignments = datasetName != null ? getAspectHeadingAssignments(datasetName) : null;
+    if(aspectAssignments == null) return Collections.emptyList();
+    return Arrays.stream(aspectAssignments).map(arr -> arr[0]).collect(Collectors.toList());
+  }
+  
   public static AspectIndex buildAspectIndex(IEncoder encoder, String datasetName) {
     String[][] aspectAssignments = getAspectHeadingAssignments(datasetName);
     AspectIndex labels = new AspectIndex(encoder);
@@ -0,0 +1,244 @@
+package de.datexis.cdv.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Cone tree for exact maximum inner product search over sentence vectors. Every node stores the normalized
+ * mean direction of its vectors, the largest angle between that direction and any of them and their largest
+ * norm, so that whole subtrees can be pruned when no vector can reach the requested similarity. Vectors are
+ * read from the given rows, the tree only keeps their order. Appended rows get their own tree with extend(),
+ * which is chained to the trees of the previous rows.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ConeTreeIndex {
+
+  protected final static Logger log = LoggerFactory.getLogger(ConeTreeIndex.class);
+
+  public final static int DEFAULT_LEAF_SIZE = 32;
+
+  /** slack on cosines and bounds for rounding errors of the float inner products, which widens all cones */
+  protected final static double EPSILON = 1e-5;
+
+  protected final VectorRows vectors;
+  protected final int dim;
+  /** this tree covers the rows [first, first + size), all rows before are covered by the previous trees */
+  protected final int first;
+  protected final int size;
+  protected final int leafSize;
+  protected final ConeTreeIndex previous;
+
+  /** original row of each vector in tree order */
+  protected final int[] rows;
+  /** norm of each original row, relative to first */
+  protected final float[] norms;
+
+  /** node ranges [begin, end) in tree order, children of inner nodes, or -1 for leaves */
+  protected int[] nodeBegin, nodeEnd, nodeLeft, nodeRight;
+  /** normalized mean direction of each node, row-wise [nodes x dim] */
+  protected float[] nodeCenter;
+  /** largest angle between the center and any vector of each node */
+  protected double[] nodeAngle;
+  /** largest norm of any vector of each node */
+  protected float[] nodeNorm;
+  protected int numNodes = 0;
+
+  public ConeTreeIndex(VectorRows vectors) {
+    this(vectors, DEFAULT_LEAF_SIZE);
+  }
+
+  public ConeTreeIndex(VectorRows vectors, int leafSize) {
+    this(vectors, leafSize, null);
+  }
+
+  /**
+   * @param previous trees over the first rows of the vectors, or null to cover all rows
+   */
+  protected ConeTreeIndex(VectorRows vectors, int leafSize, ConeTreeIndex previous) {
+    this.vectors = vectors;
+    this.dim = vectors.dim();
+    this.first = previous != null ? previous.size() : 0;
+    this.size = vectors.rows() - first;
+    this.leafSize = Math.max(1, leafSize);
+    this.previous = previous;
+    this.rows = new int[size];
+    this.norms = new float[size];
+    float[] row = new float[dim];
+    for(int i = 0; i < size; i++) {
+      rows[i] = first + i;
+      vectors.getRow(first + i, row, 0);
+      norms[i] = (float) Math.sqrt(dot(row, 0, row, 0));
+    }
+    int capacity = Math.max(1, 4 * size / this.leafSize + 1);
+    nodeBegin = new int[capacity];
+    nodeEnd = new int[capacity];
+    nodeLeft = new int[capacity];
+    nodeRight = new int[capacity];
+    nodeAngle = new double[capacity];
+    nodeNorm = new float[capacity];
+    nodeCenter = new float[capacity * dim];
+  }
+
+  /**
+   * Build the tree by recursively splitting the vectors between two far apart pivots.
+   */
+  public ConeTreeIndex build() {
+    if(size > 0) build(0, size);
+    log.info("built cone tree over {} vectors with {} nodes", size, numNodes);
+    return this;
+  }
+
+  /**
+   * Create an index over rows that start with the rows of this index. The appended rows get a new tree, which
+   * absorbs the last trees of the chain while they are not larger than it, so that there are only
+   * logarithmically many trees to search.
+   * @return the new index, or this index if no rows were appended
+   */
+  public ConeTreeIndex extend(VectorRows vectors) {
+    if(vectors.rows() < size() || vectors.dim() != dim)
+      throw new IllegalArgumentException("expected rows that start with the " + size() + " rows of the index");
+    if(vectors.rows() == size()) return this;
+    ConeTreeIndex base = this;
+    while(base != null && base.size <= vectors.rows() - base.first - base.size) base = base.previous;
+    return new ConeTreeIndex(vectors, leafSize, base).build();
+  }
+
+  /**
+   * @return the number of rows covered by this tree and all previous trees
+   */
+  public int size() {
+    return first + size;
+  }
+
+  protected int build(int begin, int end) {
+    int node = addNode(begin, end);
+    if(end - begin <= leafSize) return node;
+    // pivot a is the vector farthest from the center, pivot b the one farthest from a
+    float[] pivotA = new float[dim];
+    float[] pivotB = new float[dim];
+    vectors.getRow(rows[farthest(nodeCenter, node * dim, begin, end)], pivotA, 0);
+    vectors.getRow(rows[farthest(pivotA, 0, begin, end)], pivotB, 0);
+    // partition: vectors closer to a to the left
+    int mid = begin;
+    for(int i = begin; i < end; i++) {
+      if(vectors.dot(rows[i], pivotA, 0) >= vectors.dot(rows[i], pivotB, 0)) swap(i, mid++);
+    }
+    if(mid == begin || mid == end) mid = (begin + end) / 2; // all vectors are equal
+    int left = build(begin, mid);
+    int right = build(mid, end);
+    nodeLeft[node] = left;
+    nodeRight[node] = right;
+    return node;
+  }
+
+  protected int addNode(int begin, int end) {
+    if(numNodes == nodeBegin.length) grow();
+    int node = numNodes++;
+    nodeBegin[node] = begin;
+    nodeEnd[node] = end;
+    nodeLeft[node] = -1;
+    nodeRight[node] = -1;
+    // mean direction and largest norm
+    int offset = node * dim;
+    float[] row = new float[dim];
+    float maxNorm = 0f;
+    for(int i = begin; i < end; i++) {
+      vectors.getRow(rows[i], row, 0);
+      for(int j = 0; j < dim; j++) nodeCenter[offset + j] += row[j];
+      maxNorm = Math.max(maxNorm, norms[rows[i] - first]);
+    }
+    double norm = Math.sqrt(dot(nodeCenter, offset, nodeCenter, offset));
+    if(norm > 0) for(int j = 0; j < dim; j++) nodeCenter[offset + j] /= norm;
+    // cone angle
+    double minCos = 1.;
+    for(int i = begin; i < end; i++) {
+      float rowNorm = norms[rows[i] - first];
+      if(rowNorm == 0f) continue; // zero vectors match any direction
+      minCos = Math.min(minCos, vectors.dot(rows[i], nodeCenter, offset) / rowNorm);
+    }
+    nodeAngle[node] = norm > 0 ? Math.acos(Math.max(-1., Math.min(1., minCos - EPSILON))) : Math.PI;
+    nodeNorm[node] = maxNorm;
+    return node;
+  }
+
+  protected void grow() {
+    int capacity = nodeBegin.length * 2;
+    nodeBegin = Arrays.copyOf(nodeBegin, capacity);
+    nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+    nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+    nodeRight = Arrays.copyOf(nodeRight, capacity);
+    nodeAngle = Arrays.copyOf(nodeAngle, capacity);
+    nodeNorm = Arrays.copyOf(nodeNorm, capacity);
+    nodeCenter = Arrays.copyOf(nodeCenter, capacity * dim);
+  }
+
+  /**
+   * @return the position in [begin, end) of the vector with the smallest inner product to the given direction
+   */
+  protected int farthest(float[] direction, int offset, int begin, int end) {
+    int result = begin;
+    double min = Double.POSITIVE_INFINITY;
+    for(int i = begin; i < end; i++) {
+      double sim = vectors.dot(rows[i], direction, offset);
+      if(sim < min) {
+        min = sim;
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  protected void swap(int i, int j) {
+    int r = rows[i];
+    rows[i] = rows[j];
+    rows[j] = r;
+  }
+
+  protected double dot(float[] a, int offsetA, float[] b, int offsetB) {
+    double sum = 0.;
+    for(int k = 0; k < dim; k++) sum += a[offsetA + k] * b[offsetB + k];
+    return sum;
+  }
+
+  /**
+   * Find all vectors with an inner product of at least threshold with the unit-length query q.
+   * @return original rows of all matching vectors in ascending order
+   */
+  public int[] search(float[] q, double threshold) {
+    int[] before = previous != null ? previous.search(q, threshold) : new int[0];
+    if(size == 0) return before;
+    int[] result = new int[16];
+    int count = 0;
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    while(top > 0) {
+      int node = stack[--top];
+      // upper bound of q.x for all x in the cone
+      double angle = Math.acos(Math.max(-1., Math.min(1., dot(q, 0, nodeCenter, node * dim) + EPSILON)));
+      double cos = angle > nodeAngle[node] ? Math.cos(angle - nodeAngle[node]) : 1.;
+      double bound = Math.max(0., cos) * nodeNorm[node];
+      if(bound < threshold - EPSILON) continue;
+      if(nodeLeft[node] < 0) {
+        for(int i = nodeBegin[node]; i < nodeEnd[node]; i++) {
+          if(vectors.dot(rows[i], q, 0) >= threshold) {
+            if(count == result.length) result = Arrays.copyOf(result, count * 2);
+            result[count++] = rows[i];
+          }
+        }
+      } else {
+        if(top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = nodeRight[node];
+        stack[top++] = nodeLeft[node];
+      }
+    }
+    Arrays.sort(result, 0, count);
+    // all rows of the previous trees come before the rows of this tree
+    int[] merged = Arrays.copyOf(before, before.length + count);
+    System.arraycopy(result, 0, merged, before.length, count);
+    return merged;
+  }
+
+}
@@ -0,0 +1,1253 @@
+package de.datexis.cdv.index;
+
+import de.datexis.common.Resource;
+import de.datexis.encoder.IEncoder;
+import de.datexis.model.Annotation;
+import de.datexis.model.Document;
+import de.datexis.model.Sentence;
+import de.datexis.model.impl.PassageAnnotation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/**
+ * Stores the normalized CDV sentence vectors of a whole corpus in contiguous off-heap matrices
+ * [sentences x dim] per projection. Documents are addressed by their index, which maps to a range of
+ * sentence rows in the offset table. Rows are kept in segments that are appended by update() and shared with
+ * the previous store, removed Documents are only marked as deleted. Matrices can be paged out to
+ * memory-mapped files or quantized to int8 to save memory.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class CorpusVectorStore {
+
+  protected final static Logger log = LoggerFactory.getLogger(CorpusVectorStore.class);
+
+  /** number of sentences that are quantized at once */
+  protected final static int QUANTIZE_BLOCK_SIZE = 4096;
+
+  /** maximum deviation of a sentence norm from 1 that still counts as unit length */
+  protected final static double UNIT_TOLERANCE = 1e-3;
+
+  /** all Documents in the store, in index order, including deleted ones */
+  protected final Document[] documents;
+
+  /** Documents that were removed or replaced by update(). Their rows are kept, but never returned. */
+  protected final BitSet deleted;
+  protected final List<Document> liveDocuments;
+
+  /** offsets[d] is the first sentence row of Document d, offsets[d+1] the end (exclusive) */
+  protected final int[] offsets;
+
+  /** character begin and end offsets of every sentence row */
+  protected final int[] sentenceBegins;
+  protected final int[] sentenceEnds;
+
+  protected final Map<Document, Integer> documentRefs = new IdentityHashMap<>();
+  protected final Map<String, Integer> documentIds = new HashMap<>();
+
+  /** sentence rows in ascending order, a Document never spans two segments */
+  protected final Segment[] segments;
+
+  /** normalized mean sentence vectors [documents x dim] of all Documents, per projection */
+  protected final Map<Projection, INDArray> documentMatrices = new EnumMap<>(Projection.class);
+
+  /** passageOffsets[d] is the first passage row of Document d, passageOffsets[d+1] the end (exclusive) */
+  protected int[] passageOffsets;
+  protected Annotation[] passages;
+  /** mean sentence vectors [passages x dim] of all passages, per projection. Replaced as a whole, never modified. */
+  protected volatile Map<Projection, INDArray> passageMatrices = new EnumMap<>(Projection.class);
+
+  /** computes inner products on in-memory matrices */
+  protected ScoringBackend backend = ScoringBackend.getDefault();
+
+  /** precomputed similarities of all known aspects with all sentences, replaced as a whole */
+  protected volatile AspectHeatmaps heatmaps;
+
+  public CorpusVectorStore(Collection<Document> docs) {
+    this(docs.toArray(new Document[0]), new BitSet(), null, null);
+  }
+
+  /**
+   * @param previous store whose Documents are the first Documents of this store, so that its offsets are reused
+   * @param segments sentence rows of this store, or null to start with a single empty segment
+   */
+  protected CorpusVectorStore(Document[] documents, BitSet deleted, CorpusVectorStore previous, Segment[] segments) {
+    this.documents = documents;
+    this.deleted = deleted;
+    int first = previous != null ? previous.documents.length : 0;
+    if(previous != null && first == documents.length) {
+      this.offsets = previous.offsets;
+      this.sentenceBegins = previous.sentenceBegins;
+      this.sentenceEnds = previous.sentenceEnds;
+    } else {
+      this.offsets = new int[documents.length + 1];
+      if(previous != null) System.arraycopy(previous.offsets, 0, offsets, 0, first + 1);
+      for(int d = first; d < documents.length; d++) {
+        offsets[d + 1] = offsets[d] + documents[d].countSentences();
+      }
+      this.sentenceBegins = new int[countSentences()];
+      this.sentenceEnds = new int[countSentences()];
+      if(previous != null) {
+        System.arraycopy(previous.sentenceBegins, 0, sentenceBegins, 0, offsets[first]);
+        System.arraycopy(previous.sentenceEnds, 0, sentenceEnds, 0, offsets[first]);
+      }
+      for(int d = first; d < documents.length; d++) {
+        int row = offsets[d];
+        for(Sentence s : documents[d].getSentences()) {
+          sentenceBegins[row] = s.getBegin();
+          sentenceEnds[row] = s.getEnd();
+          row++;
+        }
+      }
+    }
+    List<Document> live = new ArrayList<>(documents.length - deleted.cardinality());
+    for(int d = 0; d < documents.length; d++) {
+      if(deleted.get(d)) continue;
+      documentRefs.put(documents[d], d);
+      if(documents[d].getId() != null) documentIds.put(documents[d].getId(), d);
+      live.add(documents[d]);
+    }
+    this.liveDocuments = Collections.unmodifiableList(live);
+    this.segments = segments != null ? segments : new Segment[] {new Segment(0, countSentences())};
+  }
+
+  /**
+   * Create a store from Documents that already have matrices attached by CDVTagger.attachCDVDocumentMatrix().
+   * @param entityClass encoder class of the entity matrices, or null
+   * @param aspectClass encoder class of the aspect matrices, or null
+   */
+  public static CorpusVectorStore fromDocuments(Collection<Document> docs, Class<? extends IEncoder> entityClass, Class<? extends IEncoder> aspectClass) {
+    CorpusVectorStore store = new CorpusVectorStore(docs);
+    for(int d = 0; d < store.documents.length; d++) {
+      Document doc = store.documents[d];
+      if(doc.countSentences() == 0) continue;
+      if(entityClass != null) store.putDocumentMatrix(Projection.ENTITY, d, doc.getVector(entityClass));
+      if(aspectClass != null) store.putDocumentMatrix(Projection.ASPECT, d, doc.getVector(aspectClass));
+    }
+    store.stackProjections();
+    return store;
+  }
+
+  /**
+   * Allocate the matrix for a projection. Has to be called before any Document matrix is put.
+   */
+  public void allocate(Projection projection, long dim) {
+    for(Segment segment : segments) {
+      segment.put(projection, new Rows(Nd4j.create(DataType.FLOAT, Math.max(1, segment.rows()), dim), null, null));
+    }
+  }
+
+  /**
+   * Copy the matrix [dim x sentences] of a Document into the store. Sentences are expected to be normalized.
+   */
+  public void putDocumentMatrix(Projection projection, int docIndex, INDArray docVec) {
+    if(!getSegment(offsets[docIndex]).has(projection)) allocate(projection, docVec.size(0));
+    int length = offsets[docIndex + 1] - offsets[docIndex];
+    if(length == 0) return;
+    if(docVec.size(1) != length)
+      throw new IllegalArgumentException("expected " + length + " sentences for document " + documents[docIndex].getId() + ", got " + docVec.size(1));
+    getDocumentMatrix(projection, docIndex).assign(docVec.transpose());
+  }
+
+  /**
+   * Create a new store with some Documents removed and others added, which is used to update a corpus while
+   * this store is still searched. Sentence vectors of this store are shared and stay in their current form,
+   * removed and replaced Documents are marked as deleted. Added sentences are appended as a new segment, which
+   * is quantized if this store is quantized. Precomputed centroids and heatmaps are extended by the added
+   * Documents.
+   * @param added store with encoded Documents that are appended, or null. They replace Documents with the same ID.
+   * @param removedIds IDs of Documents that are removed
+   */
+  public CorpusVectorStore update(CorpusVectorStore added, Set<String> removedIds) {
+    BitSet deleted = (BitSet) this.deleted.clone();
+    for(String id : removedIds) {
+      int d = getDocumentIndex(id);
+      if(d >= 0) deleted.set(d);
+    }
+    CorpusVectorStore result;
+    if(added == null || added.documents.length == 0) {
+      result = new CorpusVectorStore(documents, deleted, this, segments);
+    } else {
+      for(Projection projection : Projection.values()) {
+        if(hasProjection(projection) && (!added.hasProjection(projection) || added.getDimension(projection) != getDimension(projection)))
+          throw new IllegalArgumentException("added documents are missing projection " + projection);
+      }
+      for(Document doc : added.documents) {
+        int d = doc.getId() != null ? getDocumentIndex(doc.getId()) : -1;
+        if(d >= 0) deleted.set(d);
+      }
+      for(int d = added.deleted.nextSetBit(0); d >= 0; d = added.deleted.nextSetBit(d + 1)) {
+        deleted.set(documents.length + d);
+      }
+      Document[] docs = Arrays.copyOf(documents, documents.length + added.documents.length);
+      System.arraycopy(added.documents, 0, docs, documents.length, added.documents.length);
+      List<Segment> updatedSegments = new ArrayList<>(Arrays.asList(segments));
+      for(Segment segment : added.segments) {
+        if(segment.rows() > 0) updatedSegments.add(segment.rebase(countSentences() + segment.begin));
+      }
+      result = new CorpusVectorStore(docs, deleted, this, updatedSegments.toArray(new Segment[0]));
+      for(Projection projection : Projection.values()) {
+        if(isQuantized(projection)) result.quantize(projection, !segments[0].get(projection).hasFloats());
+        if(isPagedOut(projection)) log.info("added {} sentences of projection {} are kept in memory", added.countSentences(), projection);
+      }
+    }
+    result.setScoringBackend(backend);
+    synchronized(this) {
+      if(passages != null) result.buildPassageCentroids(this);
+      if(!documentMatrices.isEmpty()) result.buildDocumentCentroids(this);
+    }
+    AspectHeatmaps heatmaps = this.heatmaps;
+    if(heatmaps != null) result.heatmaps = result.buildAspectHeatmaps(heatmaps.rows, heatmaps.vectors, heatmaps.queries, heatmaps);
+    log.info("updated store from {} to {} documents", liveDocuments.size(), result.liveDocuments.size());
+    return result;
+  }
+
+  /**
+   * Create a compact store that only contains the given Documents, e.g. for a shard of the corpus. Their rows
+   * are copied once and keep their representation: float and paged rows become in-memory float rows, int8 rows
+   * are copied without quantizing them again. Precomputed centroids and heatmaps are copied as well. Documents
+   * that are deleted or not contained in this store are skipped.
+   */
+  public CorpusVectorStore select(Collection<Document> docs) {
+    int[] selected = docs.stream().mapToInt(this::getDocumentIndex).filter(d -> d >= 0).sorted().distinct().toArray();
+    Document[] documents = new Document[selected.length];
+    for(int i = 0; i < selected.length; i++) documents[i] = this.documents[selected[i]];
+    CorpusVectorStore result = new CorpusVectorStore(Arrays.asList(documents));
+    result.setScoringBackend(backend);
+    Segment target = result.segments[0];
+    for(Projection projection : Projection.values()) {
+      if(!hasProjection(projection)) continue;
+      int dim = getDimension(projection);
+      boolean floats = Arrays.stream(segments).allMatch(s -> s.get(projection).hasFloats());
+      if(floats) result.allocate(projection, dim);
+      Int8Matrix quantized = isQuantized(projection) ? new Int8Matrix(result.countSentences(), dim) : null;
+      for(int i = 0; i < selected.length; i++) {
+        int d = selected[i], rows = countSentences(d);
+        if(rows == 0) continue;
+        Segment segment = getSegment(offsets[d]);
+        Rows source = segment.get(projection);
+        int begin = offsets[d] - segment.begin;
+        if(floats) {
+          float[] vectors = source.getSentenceVectors(begin, begin + rows);
+          result.getDocumentMatrix(projection, i).assign(Nd4j.create(vectors, new int[] {rows, dim}));
+        }
+        if(quantized != null) {
+          if(source.quantized != null) quantized.put(source.quantized, begin, result.offsets[i], rows);
+          else quantized.put(source.getSentenceVectors(begin, begin + rows), result.offsets[i]);
+        }
+      }
+      if(quantized != null) target.update(projection, old -> old != null ? old.withQuantized(quantized, false) : new Rows(null, null, quantized));
+    }
+    synchronized(this) {
+      for(Map.Entry<Projection, INDArray> e : documentMatrices.entrySet()) {
+        result.documentMatrices.put(e.getKey(), selected.length > 0 ? e.getValue().getRows(selected) : Nd4j.create(DataType.FLOAT, 1, e.getValue().size(1)));
+      }
+      if(passages != null) {
+        List<Integer> passageRows = new ArrayList<>();
+        result.passageOffsets = new int[selected.length + 1];
+        for(int i = 0; i < selected.length; i++) {
+          for(int p = passageOffsets[selected[i]]; p < passageOffsets[selected[i] + 1]; p++) passageRows.add(p);
+          result.passageOffsets[i + 1] = passageRows.size();
+        }
+        int[] rows = passageRows.stream().mapToInt(Integer::intValue).toArray();
+        result.passages = Arrays.stream(rows).mapToObj(p -> passages[p]).toArray(Annotation[]::new);
+        Map<Projection, INDArray> centroids = new EnumMap<>(Projection.class);
+        for(Map.Entry<Projection, INDArray> e : passageMatrices.entrySet()) {
+          centroids.put(e.getKey(), rows.length > 0 ? e.getValue().getRows(rows) : Nd4j.create(DataType.FLOAT, 1, e.getValue().size(1)));
+        }
+        result.passageMatrices = centroids;
+      }
+    }
+    AspectHeatmaps heatmaps = this.heatmaps;
+    if(heatmaps != null) {
+      // the result has a single segment, which gets one array per aspect
+      int numAspects = heatmaps.rows.size(), size = result.countSentences();
+      float[][] scores = new float[numAspects][size];
+      for(int i = 0; i < selected.length; i++) {
+        int s = getSegmentIndex(offsets[selected[i]]);
+        int begin = offsets[selected[i]] - segments[s].begin;
+        for(int a = 0; a < numAspects; a++) {
+          System.arraycopy(heatmaps.scores[s][a], begin, scores[a], result.offsets[i], result.countSentences(i));
+        }
+      }
+      result.heatmaps = new AspectHeatmaps(heatmaps.rows, heatmaps.vectors, heatmaps.queries, new float[][][] {scores}, heatmaps.unitLength);
+    }
+    log.info("selected {} of {} documents", selected.length, liveDocuments.size());
+    return result;
+  }
+
+  /**
+   * Create the stacked entity/aspect projection with all sentences normalized to unit length.
+   */
+  public void stackProjections() {
+    for(Segment segment : segments) {
+      Rows entity = segment.get(Projection.ENTITY), aspect = segment.get(Projection.ASPECT);
+      if(entity == null || entity.matrix == null || aspect == null || aspect.matrix == null || segment.has(Projection.ENTITY_ASPECT)) continue;
+      INDArray vec = Nd4j.hstack(entity.matrix, aspect.matrix);
+      vec.diviColumnVector(Transforms.max(vec.norm2(1), Nd4j.EPS_THRESHOLD, false).reshape(vec.size(0), 1));
+      segment.put(Projection.ENTITY_ASPECT, new Rows(vec, null, null));
+    }
+  }
+
+  /**
+   * Write the in-memory matrices of a projection to disk and release their memory. Vectors are paged in on
+   * access. The paged matrix replaces the in-memory matrix in a single step, so that concurrent Queries either
+   * read the one or the other. If more than one segment is in memory, further segments are written to
+   * numbered files next to the given one.
+   */
+  public void pageOut(Projection projection, Resource file) throws IOException {
+    pageOut(projection, file, 0);
+  }
+
+  /**
+   * Page out the in-memory matrices of a projection in all segments from the given one on, e.g. only the
+   * segments that update() appended. See pageOut(Projection, Resource).
+   */
+  public void pageOut(Projection projection, Resource file, int firstSegment) throws IOException {
+    int n = 0;
+    for(Segment segment : Arrays.asList(segments).subList(firstSegment, segments.length)) {
+      synchronized(segment.representations) {
+        Rows rows = segment.get(projection);
+        if(rows == null || rows.matrix == null) continue;
+        Path path = n == 0 ? file.getPath() : file.getPath().resolveSibling(file.getPath().getFileName() + "." + n);
+        n++;
+        MappedFloatMatrix paged = MappedFloatMatrix.write(rows.matrix, segment.rows(), path);
+        segment.update(projection, old -> old.withPaged(paged));
+      }
+    }
+  }
+
+  /**
+   * Quantize the matrix of a projection to int8, which is then used for scoring. Segments that are quantized
+   * already are kept. Passage centroids of the projection are dropped, so that passages are scored on the
+   * quantized sentences as well.
+   * @param release set to TRUE to release the float matrix from memory
+   */
+  public void quantize(Projection projection, boolean release) {
+    for(Segment segment : segments) {
+      synchronized(segment.representations) {
+        Rows source = segment.get(projection);
+        if(source == null || source.quantized != null || !source.hasFloats()) continue;
+        int rows = segment.rows();
+        Int8Matrix quantized = new Int8Matrix(rows, source.dim());
+        for(int begin = 0; begin < rows; begin += QUANTIZE_BLOCK_SIZE) {
+          int end = Math.min(rows, begin + QUANTIZE_BLOCK_SIZE);
+          quantized.put(source.getSentenceVectors(begin, end), begin);
+        }
+        segment.update(projection, old -> old.withQuantized(quantized, release));
+      }
+    }
+    // Queries that were planned on the centroids keep them, see getPassageCentroids()
+    synchronized(this) {
+      Map<Projection, INDArray> centroids = new EnumMap<>(passageMatrices);
+      centroids.remove(projection);
+      passageMatrices = centroids;
+    }
+  }
+
+  /**
+   * Precompute the centroid of every GOLD PassageAnnotation for all projections. The inner product of a query
+   * with a centroid equals the mean similarity of the query with the passage sentences, so that passages can
+   * be ranked with a single matrix-vector product. Quantized projections are skipped.
+   */
+  public synchronized void buildPassageCentroids() {
+    buildPassageCentroids(null);
+  }
+
+  /**
+   * Precompute passage centroids of all Documents that are not contained in a previous store and copy the
+   * centroids of all others from it, see buildPassageCentroids().
+   * @param previous store whose Documents are the first Documents of this store, or null
+   */
+  protected void buildPassageCentroids(CorpusVectorStore previous) {
+    int firstDoc = previous != null ? previous.documents.length : 0;
+    if(previous != null && firstDoc == documents.length) {
+      // no Documents were added, centroids are never modified and can be shared
+      this.passages = previous.passages;
+      this.passageOffsets = previous.passageOffsets;
+      this.passageMatrices = previous.passageMatrices;
+      return;
+    }
+    // collect passages that contain at least one sentence, in Document order
+    List<Annotation> anns = previous != null ? new ArrayList<>(Arrays.asList(previous.passages)) : new ArrayList<>();
+    List<int[]> rows = new ArrayList<>();
+    int[] passageOffsets = new int[documents.length + 1];
+    if(previous != null) System.arraycopy(previous.passageOffsets, 0, passageOffsets, 0, firstDoc + 1);
+    int firstPassage = anns.size();
+    for(int d = firstDoc; d < documents.length; d++) {
+      Document doc = documents[d];
+      List<PassageAnnotation> docPassages = doc.streamAnnotations(Annotation.Source.GOLD, PassageAnnotation.class, true)
+        .sorted()
+        .collect(Collectors.toList());
+      for(PassageAnnotation ann : docPassages) {
+        int[] range = getSentenceRange(d, ann.getBegin(), ann.getEnd());
+        if(range[1] <= range[0]) continue;
+        ann.setDocumentRef(doc); // update documentRef if it is empty for some reason
+        anns.add(ann);
+        rows.add(range);
+      }
+      passageOffsets[d + 1] = anns.size();
+    }
+    // average sentence vectors per passage
+    Map<Projection, INDArray> passageMatrices = new EnumMap<>(Projection.class);
+    for(Projection projection : Projection.values()) {
+      if(!hasProjection(projection) || isQuantized(projection)) continue;
+      if(previous != null && !previous.passageMatrices.containsKey(projection)) continue;
+      int dim = getDimension(projection);
+      INDArray centroids = Nd4j.create(DataType.FLOAT, Math.max(1, anns.size()), dim);
+      if(firstPassage > 0) {
+        centroids.get(interval(0, firstPassage), all()).assign(previous.passageMatrices.get(projection).get(interval(0, firstPassage), all()));
+      }
+      for(int d = firstDoc; d < documents.length; d++) {
+        if(passageOffsets[d + 1] == passageOffsets[d]) continue;
+        INDArray docVec = getDocumentMatrix(projection, d);
+        for(int p = passageOffsets[d]; p < passageOffsets[d + 1]; p++) {
+          int[] range = rows.get(p - firstPassage);
+          centroids.putRow(p, docVec.get(interval(range[0] - offsets[d], range[1] - offsets[d]), all()).mean(0));
+        }
+      }
+      passageMatrices.put(projection, centroids);
+    }
+    this.passages = anns.toArray(new Annotation[0]);
+    this.passageOffsets = passageOffsets;
+    this.passageMatrices = passageMatrices;
+    log.info("precomputed centroids of {} passages", passages.length - firstPassage);
+  }
+
+  /**
+   * Precompute a summary vector for every Document, which is the mean of its normalized sentence vectors
+   * scaled to unit length. Empty Documents get a zero vector.
+   */
+  public synchronized void buildDocumentCentroids() {
+    documentMatrices.clear();
+    buildDocumentCentroids(null);
+  }
+
+  /**
+   * Precompute summary vectors of all Documents that are not contained in a previous store and copy the
+   * vectors of all others from it, see buildDocumentCentroids().
+   * @param previous store whose Documents are the first Documents of this store, or null
+   */
+  protected void buildDocumentCentroids(CorpusVectorStore previous) {
+    int firstDoc = previous != null ? previous.documents.length : 0;
+    if(previous != null && firstDoc == documents.length) {
+      documentMatrices.putAll(previous.documentMatrices);
+      return;
+    }
+    for(Projection projection : Projection.values()) {
+      if(!hasProjection(projection)) continue;
+      if(previous != null && !previous.documentMatrices.containsKey(projection)) continue;
+      INDArray centroids = Nd4j.create(DataType.FLOAT, Math.max(1, documents.length), getDimension(projection));
+      if(firstDoc > 0) {
+        centroids.get(interval(0, firstDoc), all()).assign(previous.documentMatrices.get(projection).get(interval(0, firstDoc), all()));
+      }
+      for(int d = firstDoc; d < documents.length; d++) {
+        if(countSentences(d) == 0) continue;
+        INDArray mean = getDocumentMatrix(projection, d).mean(0);
+        centroids.putRow(d, mean.divi(Math.max(mean.norm2Number().doubleValue(), Nd4j.EPS_THRESHOLD)));
+      }
+      documentMatrices.put(projection, centroids);
+    }
+    log.info("precomputed centroids of {} documents", documents.length - firstDoc);
+  }
+
+  /**
+   * Precompute the similarities of the given aspect vectors with all sentences of the ASPECT projection as an
+   * array of sentence scores per segment and aspect, so that aspect histograms become lookups.
+   * @param aspects aspect vectors [dim x 1] by their key
+   */
+  public synchronized void buildAspectHeatmaps(Map<String, INDArray> aspects) {
+    if(!hasProjection(Projection.ASPECT)) return;
+    int dim = getDimension(Projection.ASPECT);
+    List<String> keys = new ArrayList<>(aspects.keySet());
+    INDArray q = Nd4j.create(DataType.FLOAT, dim, Math.max(1, keys.size()));
+    Map<String, Integer> index = new HashMap<>();
+    Map<String, INDArray> vectors = new HashMap<>();
+    for(int a = 0; a < keys.size(); a++) {
+      INDArray vec = Transforms.unitVec(aspects.get(keys.get(a)).reshape(dim, 1).castTo(DataType.FLOAT));
+      q.putColumn(a, vec);
+      index.put(keys.get(a), a);
+      vectors.put(keys.get(a), vec);
+    }
+    heatmaps = buildAspectHeatmaps(index, vectors, q, null);
+    log.info("precomputed heatmaps of {} aspects over {} sentences", keys.size(), countSentences());
+  }
+
+  /**
+   * Score the aspect vectors q [dim x aspects] against all segments that are not covered by the previous heatmaps.
+   * @param previous heatmaps of the same aspects over the first segments of this store, or null
+   */
+  protected AspectHeatmaps buildAspectHeatmaps(Map<String, Integer> index, Map<String, INDArray> vectors, INDArray q, AspectHeatmaps previous) {
+    int numAspects = index.size();
+    int first = previous != null ? previous.scores.length : 0;
+    float[][][] scores = Arrays.copyOf(previous != null ? previous.scores : new float[0][][], segments.length);
+    boolean unitLength = previous != null ? previous.unitLength : hasProjection(Projection.ENTITY);
+    for(int s = first; s < segments.length; s++) {
+      Segment segment = segments[s];
+      int rows = segment.rows();
+      int dim = segment.getDimension(Projection.ASPECT);
+      scores[s] = new float[numAspects][rows];
+      for(int begin = 0; begin < rows; begin += QUANTIZE_BLOCK_SIZE) {
+        int end = Math.min(rows, begin + QUANTIZE_BLOCK_SIZE);
+        INDArray block = Nd4j.create(segment.getSentenceVectors(Projection.ASPECT, begin, end), new int[] {end - begin, dim});
+        float[][] blockScores = block.mmul(q).toFloatMatrix();
+        for(int i = 0; i < end - begin; i++) {
+          for(int a = 0; a < numAspects; a++) scores[s][a][begin + i] = blockScores[i][a];
+        }
+      }
+      unitLength = unitLength && hasUnitLength(segment, Projection.ENTITY) && hasUnitLength(segment, Projection.ASPECT);
+    }
+    return new AspectHeatmaps(index, vectors, q, scores, unitLength);
+  }
+
+  /**
+   * @return true if all sentence vectors of a projection in the given segment have unit length
+   */
+  protected boolean hasUnitLength(Segment segment, Projection projection) {
+    int dim = segment.getDimension(projection);
+    int rows = segment.rows();
+    for(int begin = 0; begin < rows; begin += QUANTIZE_BLOCK_SIZE) {
+      int end = Math.min(rows, begin + QUANTIZE_BLOCK_SIZE);
+      float[] block = segment.getSentenceVectors(projection, begin, end);
+      for(int i = 0; i < end - begin; i++) {
+        double norm = 0.;
+        for(int j = 0; j < dim; j++) norm += block[i * dim + j] * block[i * dim + j];
+        if(Math.abs(Math.sqrt(norm) - 1.) > UNIT_TOLERANCE) return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the precomputed heatmaps give the same histograms as projecting a Query directly. The
+   * aspect heatmap equals the ASPECT projection, and (entity + aspect) / 2 equals the ENTITY_ASPECT projection
+   * only if all ENTITY and ASPECT sentences have unit length. Quantized projections are always scored directly.
+   */
+  public boolean isAspectHeatmapExact(Projection projection) {
+    AspectHeatmaps heatmaps = this.heatmaps;
+    if(heatmaps == null || isQuantized(Projection.ASPECT) || isQuantized(projection)) return false;
+    if(projection == Projection.ASPECT) return true;
+    return projection == Projection.ENTITY_ASPECT && heatmaps.unitLength && !isQuantized(Projection.ENTITY);
+  }
+
+  /**
+   * @return the aspect vectors that heatmaps were precomputed for
+   */
+  public Map<String, INDArray> getAspectHeatmapVectors() {
+    AspectHeatmaps heatmaps = this.heatmaps;
+    return heatmaps != null ? heatmaps.vectors : Collections.emptyMap();
+  }
+
+  public boolean hasAspectHeatmap(String key) {
+    AspectHeatmaps heatmaps = this.heatmaps;
+    return heatmaps != null && heatmaps.rows.containsKey(key);
+  }
+
+  /**
+   * @return precomputed histogram [sentences x 1] of an aspect over a Document
+   */
+  public INDArray lookupAspect(String key, int docIndex) {
+    float[] hist = lookupAspectHistogram(key, docIndex);
+    return Nd4j.create(hist, new int[] {hist.length, 1});
+  }
+
+  /**
+   * @return heap copy of the precomputed histogram of an aspect over a Document
+   */
+  public float[] lookupAspectHistogram(String key, int docIndex) {
+    AspectHeatmaps heatmaps = this.heatmaps;
+    int s = getSegmentIndex(offsets[docIndex]);
+    float[] scores = heatmaps.scores[s][heatmaps.rows.get(key)];
+    return Arrays.copyOfRange(scores, offsets[docIndex] - segments[s].begin, offsets[docIndex + 1] - segments[s].begin);
+  }
+
+  /**
+   * Project a normalized entity vector [dim x 1] on the sentences of a Document and combine it with the
+   * precomputed aspect histogram. If both halves of the stacked sentence and query vectors have unit length,
+   * this equals the ENTITY_ASPECT projection, see isAspectHeatmapExact().
+   * @return histogram [sentences x 1] of cosine similarities
+   */
+  public INDArray scoreWithAspect(int docIndex, INDArray qf, String key) {
+    float[] hist = scoreWithAspect(docIndex, qf.toFloatVector(), key);
+    return Nd4j.create(hist, new int[] {hist.length, 1});
+  }
+
+  /**
+   * @param qf normalized entity vector
+   * @return histogram of cosine similarities, see scoreWithAspect(int, INDArray, String)
+   */
+  public float[] scoreWithAspect(int docIndex, float[] qf, String key) {
+    return scoreWithAspect(docIndex, qf, quantizeQuery(Projection.ENTITY, qf), key);
+  }
+
+  /**
+   * @param qfCodes the entity vector quantized by quantizeQuery(), or null
+   * @return histogram of cosine similarities, see scoreWithAspect(int, INDArray, String)
+   */
+  public float[] scoreWithAspect(int docIndex, float[] qf, Int8Matrix.QuantizedVector qfCodes, String key) {
+    AspectHeatmaps heatmaps = this.heatmaps;
+    float[] hist = scoreHistogram(Projection.ENTITY, docIndex, qf, qfCodes);
+    int s = getSegmentIndex(offsets[docIndex]);
+    float[] scores = heatmaps.scores[s][heatmaps.rows.get(key)];
+    int offset = offsets[docIndex] - segments[s].begin;
+    for(int i = 0; i < hist.length; i++) {
+      hist[i] = (hist[i] + scores[offset + i]) / 2f;
+    }
+    return hist;
+  }
+
+  public boolean hasDocumentCentroids(Projection projection) {
+    return documentMatrices.containsKey(projection);
+  }
+
+  /**
+   * Find the Documents whose centroids are most similar to a normalized query vector [dim x 1]. Deleted
+   * Documents are skipped.
+   * @return Document indexes in descending order of similarity
+   */
+  public int[] searchDocuments(Projection projection, INDArray q, int k) {
+    if(documents.length == 0) return new int[0];
+    float[] scores = documentMatrices.get(projection).mmul(q).toFloatVector();
+    // keep the best Documents in a min-heap
+    int capacity = Math.min(k, documents.length);
+    int[] heapRows = new int[capacity];
+    float[] heapScores = new float[capacity];
+    int count = 0;
+    for(int d = 0; d < documents.length; d++) {
+      if(countSentences(d) == 0 || deleted.get(d)) continue;
+      if(count < capacity) {
+        heapRows[count] = d;
+        heapScores[count] = scores[d];
+        QuantizedVectorIndex.siftUp(heapRows, heapScores, count++);
+      } else if(scores[d] > heapScores[0]) {
+        heapRows[0] = d;
+        heapScores[0] = scores[d];
+        QuantizedVectorIndex.siftDown(heapRows, heapScores, count);
+      }
+    }
+    // pop in ascending order and fill the result from the end
+    int[] result = new int[count];
+    for(int i = count - 1; i >= 0; i--) {
+      result[i] = heapRows[0];
+      QuantizedVectorIndex.swap(heapRows, heapScores, 0, i);
+      QuantizedVectorIndex.siftDown(heapRows, heapScores, i);
+    }
+    return result;
+  }
+
+  /**
+   * @return sentence rows [begin, end) of a Document that are enclosed in the given character span
+   */
+  protected int[] getSentenceRange(int docIndex, int begin, int end) {
+    int first = offsets[docIndex], last = offsets[docIndex + 1];
+    while(first < last && sentenceBegins[first] < begin) first++;
+    int stop = first;
+    while(stop < last && sentenceEnds[stop] <= end) stop++;
+    return new int[] {first, stop};
+  }
+
+  public boolean hasPassageCentroids(Projection projection) {
+    return passageMatrices.containsKey(projection);
+  }
+
+  /**
+   * @return the passage row of a Document with the given span, or -1 if there is no such passage
+   */
+  public int getPassageIndex(int docIndex, int begin, int end) {
+    for(int p = passageOffsets[docIndex]; p < passageOffsets[docIndex + 1]; p++) {
+      if(passages[p].getBegin() == begin && passages[p].getEnd() == end) return p;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first passage row of a Document
+   */
+  public int getPassageOffset(int docIndex) {
+    return passageOffsets[docIndex];
+  }
+
+  public int countPassages() {
+    return passages != null ? passages.length : 0;
+  }
+
+  public int countPassages(int docIndex) {
+    return passageOffsets[docIndex + 1] - passageOffsets[docIndex];
+  }
+
+  public Annotation getPassage(int passageIndex) {
+    return passages[passageIndex];
+  }
+
+  /**
+   * @return the passage centroids [passages x dim] of a projection, or null if they are not precomputed. The
+   * matrix is never modified, so that a Query can keep scoring on it when quantize() drops it from the store.
+   */
+  public INDArray getPassageCentroids(Projection projection) {
+    return passageMatrices.get(projection);
+  }
+
+  /**
+   * @return inner products of a normalized query vector [dim x 1] with the given passage centroids, or with
+   * all centroids if rows is null
+   */
+  public float[] scorePassages(Projection projection, int[] rows, INDArray q) {
+    return scorePassages(passageMatrices.get(projection), rows, q);
+  }
+
+  /**
+   * @param centroids passage centroids of this store, see getPassageCentroids()
+   * @return inner products of q with the given passage centroids, see scorePassages(Projection, int[], INDArray)
+   */
+  public float[] scorePassages(INDArray centroids, int[] rows, INDArray q) {
+    if(rows == null) return countPassages() > 0 ? centroids.mmul(q).toFloatVector() : new float[0];
+    if(rows.length == 0) return new float[0];
+    return centroids.getRows(rows).mmul(q).toFloatVector();
+  }
+
+  public boolean hasProjection(Projection projection) {
+    return segments[0].has(projection);
+  }
+
+  public boolean isQuantized(Projection projection) {
+    for(Segment segment : segments) {
+      Rows rows = segment.get(projection);
+      if(rows != null && rows.quantized != null) return true;
+    }
+    return false;
+  }
+
+  public boolean isPagedOut(Projection projection) {
+    for(Segment segment : segments) {
+      Rows rows = segment.get(projection);
+      if(rows != null && rows.paged != null) return true;
+    }
+    return false;
+  }
+
+  public int getDimension(Projection projection) {
+    return segments[0].getDimension(projection);
+  }
+
+  /**
+   * @return the full sentence matrix [sentences x dim] of a projection. Paged out, quantized or appended
+   * matrices are read into memory.
+   */
+  public INDArray getMatrix(Projection projection) {
+    Rows rows = segments[0].get(projection);
+    if(segments.length > 1 || rows.matrix == null) {
+      log.warn("reading {} matrix into memory", projection);
+      return Nd4j.create(getSentenceVectors(projection, 0, countSentences()), new int[] {countSentences(), getDimension(projection)});
+    }
+    return rows.matrix;
+  }
+
+  /**
+   * @return a view on the sentence matrix [sentences x dim] of a single Document
+   */
+  public INDArray getDocumentMatrix(Projection projection, int docIndex) {
+    Segment segment = getSegment(offsets[docIndex]);
+    Rows rows = segment.get(projection);
+    int begin = offsets[docIndex] - segment.begin, end = offsets[docIndex + 1] - segment.begin;
+    if(rows.matrix == null) {
+      return Nd4j.create(rows.getSentenceVectors(begin, end), new int[] {end - begin, rows.dim()});
+    }
+    return rows.matrix.get(interval(begin, end), all());
+  }
+
+  /**
+   * Project a normalized query vector [dim x 1] on the sentences of a Document. Uses integer scoring if the
+   * projection is quantized.
+   * @return histogram [sentences x 1] of cosine similarities
+   */
+  public INDArray score(Projection projection, int docIndex, INDArray q) {
+    Segment segment = getSegment(offsets[docIndex]);
+    Rows rows = segment.get(projection);
+    if(rows.quantized == null && rows.matrix != null && backend instanceof Nd4jScoringBackend) {
+      return rows.matrix.get(interval(offsets[docIndex] - segment.begin, offsets[docIndex + 1] - segment.begin), all()).mmul(q);
+    }
+    float[] hist = scoreHistogram(projection, docIndex, q.toFloatVector());
+    return Nd4j.create(hist, new int[] {hist.length, 1});
+  }
+
+  /**
+   * Project a normalized query vector on the sentences of a Document into a heap array, so that the histogram
+   * can be processed without further ND4J calls.
+   * @return histogram of cosine similarities
+   */
+  public float[] scoreHistogram(Projection projection, int docIndex, float[] q) {
+    return scoreHistogram(projection, docIndex, q, quantizeQuery(projection, q));
+  }
+
+  /**
+   * Project a query on the sentences of a Document, see scoreHistogram(Projection, int, float[]).
+   * @param qCodes the query quantized by quantizeQuery(), or null to quantize it on demand
+   */
+  public float[] scoreHistogram(Projection projection, int docIndex, float[] q, Int8Matrix.QuantizedVector qCodes) {
+    Segment segment = getSegment(offsets[docIndex]);
+    Rows rows = segment.get(projection); // read once, as the representation may be replaced concurrently
+    int begin = offsets[docIndex] - segment.begin, end = offsets[docIndex + 1] - segment.begin;
+    if(rows.quantized != null) {
+      if(qCodes == null) qCodes = Int8Matrix.quantize(q);
+      return rows.quantized.score(qCodes, begin, end);
+    } else if(rows.matrix == null) {
+      return rows.paged.score(begin, end, q);
+    }
+    return backend.score(rows.matrix, rows.getBuffer(), begin, end, q);
+  }
+
+  /**
+   * Quantize a query vector once, so that it can be projected on many Documents of a quantized projection.
+   * @return the quantized query, or null if the projection is not quantized
+   */
+  public Int8Matrix.QuantizedVector quantizeQuery(Projection projection, float[] q) {
+    return isQuantized(projection) ? Int8Matrix.quantize(q) : null;
+  }
+
+  /**
+   * Select the backend that computes inner products on in-memory matrices.
+   */
+  public void setScoringBackend(ScoringBackend backend) {
+    this.backend = backend;
+  }
+
+  public ScoringBackend getScoringBackend() {
+    return backend;
+  }
+
+  /**
+   * @return inner products of q with the given sentence rows. Uses the float vectors if they are available.
+   */
+  public float[] scoreSentences(Projection projection, int[] rows, float[] q) {
+    if(rows.length == 0) return new float[0];
+    Rows first = segments[0].get(projection);
+    if(segments.length == 1 && first.matrix != null) {
+      return first.matrix.getRows(rows).mmul(Nd4j.create(q, new int[] {q.length, 1})).toFloatVector();
+    }
+    float[] scores = new float[rows.length];
+    Rows[] segmentRows = new Rows[segments.length];
+    VectorRows[] floatRows = new VectorRows[segments.length];
+    Int8Matrix.QuantizedVector qCodes = null;
+    for(int i = 0; i < rows.length; i++) {
+      int s = getSegmentIndex(rows[i]);
+      Segment segment = segments[s];
+      if(segmentRows[s] == null) segmentRows[s] = segment.get(projection);
+      if(!segmentRows[s].hasFloats()) {
+        if(qCodes == null) qCodes = Int8Matrix.quantize(q);
+        scores[i] = segmentRows[s].quantized.score(qCodes, rows[i] - segment.begin);
+      } else {
+        if(floatRows[s] == null) floatRows[s] = segmentRows[s].getVectorRows(segment.rows());
+        scores[i] = floatRows[s].dot(rows[i] - segment.begin, q, 0);
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * @return row-wise copy [end - begin x dim] of the given range of sentence vectors
+   */
+  public float[] getSentenceVectors(Projection projection, int begin, int end) {
+    if(end <= begin) return new float[0];
+    Segment first = getSegment(begin);
+    if(end <= first.end) return first.getSentenceVectors(projection, begin - first.begin, end - first.begin);
+    int dim = getDimension(projection);
+    float[] result = new float[(end - begin) * dim];
+    for(int row = begin; row < end; ) {
+      Segment segment = getSegment(row);
+      int stop = Math.min(end, segment.end);
+      float[] block = segment.getSentenceVectors(projection, row - segment.begin, stop - segment.begin);
+      System.arraycopy(block, 0, result, (row - begin) * dim, block.length);
+      row = stop;
+    }
+    return result;
+  }
+
+  /**
+   * @return read access to all sentence vectors of a projection without copying them. Uses the float matrix
+   * if it is available and the int8 matrix otherwise, per segment.
+   */
+  public VectorRows getVectorRows(Projection projection) {
+    if(segments.length == 1) return segments[0].getVectorRows(projection);
+    VectorRows[] parts = new VectorRows[segments.length];
+    int[] begins = new int[segments.length];
+    for(int s = 0; s < segments.length; s++) {
+      parts[s] = segments[s].getVectorRows(projection);
+      begins[s] = segments[s].begin;
+    }
+    return new SegmentedRows(parts, begins, countSentences());
+  }
+
+  /**
+   * @return the number of row segments, which is increased by every update() that appends Documents
+   */
+  public int countSegments() {
+    return segments.length;
+  }
+
+  /**
+   * @return the segment that contains the given sentence row
+   */
+  protected Segment getSegment(int row) {
+    return segments[getSegmentIndex(row)];
+  }
+
+  protected int getSegmentIndex(int row) {
+    int lo = 0, hi = segments.length - 1;
+    while(lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if(segments[mid].begin <= row) lo = mid;
+      else hi = mid - 1;
+    }
+    return lo;
+  }
+
+  /**
+   * @return the index of the Document that contains the given sentence row
+   */
+  public int getDocumentIndexAtSentence(int row) {
+    int idx = Arrays.binarySearch(offsets, row);
+    if(idx < 0) return -idx - 2;
+    // skip empty Documents that share the same offset
+    while(idx < documents.length && offsets[idx + 1] == row) idx++;
+    return idx;
+  }
+
+  /**
+   * @return the index of a Document in this store, or -1 if it is not contained or deleted
+   */
+  public int getDocumentIndex(Document doc) {
+    Integer idx = documentRefs.get(doc);
+    return idx != null ? idx : -1;
+  }
+
+  /**
+   * @return the index of a Document ID in this store, or -1 if it is not contained or deleted
+   */
+  public int getDocumentIndex(String docId) {
+    Integer idx = documentIds.get(docId);
+    return idx != null ? idx : -1;
+  }
+
+  public Document getDocument(int docIndex) {
+    return documents[docIndex];
+  }
+
+  /**
+   * @return true if the Document was removed or replaced, so that its rows must not be returned
+   */
+  public boolean isDeleted(int docIndex) {
+    return deleted.get(docIndex);
+  }
+
+  /**
+   * @return all Documents that are not deleted, in index order
+   */
+  public List<Document> getDocuments() {
+    return liveDocuments;
+  }
+
+  /**
+   * @return the number of Document indexes, including deleted Documents
+   */
+  public int countDocuments() {
+    return documents.length;
+  }
+
+  public int countSentences() {
+    return offsets[documents.length];
+  }
+
+  public int countSentences(int docIndex) {
+    return offsets[docIndex + 1] - offsets[docIndex];
+  }
+
+  /**
+   * @return the first sentence row of a Document
+   */
+  public int getOffset(int docIndex) {
+    return offsets[docIndex];
+  }
+
+  /**
+   * @return character begin offsets of all sentence rows. The array is shared and must not be modified.
+   */
+  public int[] getSentenceBegins() {
+    return sentenceBegins;
+  }
+
+  /**
+   * @return character end offsets of all sentence rows. The array is shared and must not be modified.
+   */
+  public int[] getSentenceEnds() {
+    return sentenceEnds;
+  }
+
+  /**
+   * @return a copy of the offset table, which contains countDocuments() + 1 entries
+   */
+  public int[] getOffsets() {
+    return offsets.clone();
+  }
+
+  /**
+   * Sentence rows [begin, end) of the store with one representation per projection, which is addressed
+   * relative to begin. Segments are shared with the stores that are created by update(). Representations are
+   * never modified but replaced as a whole, so that readers get a consistent one with a single get().
+   */
+  protected static class Segment {
+
+    protected final int begin, end;
+    /** representations by projection, shared with rebased segments. Writers synchronize on this reference. */
+    protected final AtomicReference<Map<Projection, Rows>> representations;
+
+    protected Segment(int begin, int end) {
+      this(begin, end, new AtomicReference<>(new EnumMap<>(Projection.class)));
+    }
+
+    protected Segment(int begin, int end, AtomicReference<Map<Projection, Rows>> representations) {
+      this.begin = begin;
+      this.end = end;
+      this.representations = representations;
+    }
+
+    /**
+     * @return a segment on the same matrices that starts at another row of the store
+     */
+    protected Segment rebase(int begin) {
+      return new Segment(begin, begin + rows(), representations);
+    }
+
+    protected int rows() {
+      return end - begin;
+    }
+
+    /**
+     * @return the current representation of a projection, or null
+     */
+    protected Rows get(Projection projection) {
+      return representations.get().get(projection);
+    }
+
+    protected void put(Projection projection, Rows rows) {
+      update(projection, old -> rows);
+    }
+
+    /**
+     * Replace the representation of a projection with a new one that is computed from the current one.
+     */
+    protected void update(Projection projection, UnaryOperator<Rows> function) {
+      representations.updateAndGet(current -> {
+        Map<Projection, Rows> updated = new EnumMap<>(current);
+        updated.put(projection, function.apply(current.get(projection)));
+        return updated;
+      });
+    }
+
+    protected boolean has(Projection projection) {
+      return get(projection) != null;
+    }
+
+    protected int getDimension(Projection projection) {
+      return get(projection).dim();
+    }
+
+    /**
+     * @return row-wise copy [end - begin x dim] of the given range of segment rows
+     */
+    protected float[] getSentenceVectors(Projection projection, int begin, int end) {
+      return get(projection).getSentenceVectors(begin, end);
+    }
+
+    protected VectorRows getVectorRows(Projection projection) {
+      return get(projection).getVectorRows(rows());
+    }
+
+  }
+
+  /**
+   * Sentence rows of a projection in a segment as in-memory float, memory-mapped and/or int8 matrix. Paged and
+   * quantized representations replace the float matrix with a new instance.
+   */
+  protected static class Rows {
+
+    /** in-memory float matrix [rows x dim], or null */
+    protected final INDArray matrix;
+    /** float matrix that was paged out to disk, or null */
+    protected final MappedFloatMatrix paged;
+    /** int8 matrix that is used for scoring, or null */
+    protected final Int8Matrix quantized;
+    /** in-memory matrix wrapped for scoring in Java, which is created on first use */
+    protected volatile FloatBufferMatrix buffer;
+
+    protected Rows(INDArray matrix, MappedFloatMatrix paged, Int8Matrix quantized) {
+      this.matrix = matrix;
+      this.paged = paged;
+      this.quantized = quantized;
+    }
+
+    /**
+     * @return the representation with the in-memory matrix replaced by the paged one
+     */
+    protected Rows withPaged(MappedFloatMatrix paged) {
+      return new Rows(null, paged, quantized);
+    }
+
+    /**
+     * @param release TRUE to drop the float representations
+     */
+    protected Rows withQuantized(Int8Matrix quantized, boolean release) {
+      if(release) return new Rows(null, null, quantized);
+      Rows result = new Rows(matrix, paged, quantized);
+      result.buffer = buffer;
+      return result;
+    }
+
+    /**
+     * @return TRUE if the float vectors are available in memory or on disk
+     */
+    protected boolean hasFloats() {
+      return matrix != null || paged != null;
+    }
+
+    protected int dim() {
+      if(matrix != null) return (int) matrix.size(1);
+      else if(paged != null) return paged.dim();
+      else return quantized.dim();
+    }
+
+    /**
+     * @return row-wise copy [end - begin x dim] of the given range of rows
+     */
+    protected float[] getSentenceVectors(int begin, int end) {
+      if(end <= begin) return new float[0];
+      if(matrix != null) {
+        return matrix.get(interval(begin, end), all()).dup('c').data().asFloat();
+      } else if(paged != null) {
+        int dim = paged.dim();
+        float[] result = new float[(end - begin) * dim];
+        for(int i = begin; i < end; i++) {
+          paged.getRow(i, result, (i - begin) * dim);
+        }
+        return result;
+      }
+      return quantized.get(begin, end);
+    }
+
+    /**
+     * @return all rows of the in-memory matrix wrapped without copying them, or null if there is no matrix or it
+     * is not a row-major float matrix. The buffer is only created once, as wrapping requires native calls.
+     */
+    protected FloatBufferMatrix getBuffer() {
+      FloatBufferMatrix result = buffer;
+      if(result == null && matrix != null && !matrix.isView() && matrix.ordering() == 'c' && matrix.dataType() == DataType.FLOAT) {
+        result = FloatBufferMatrix.wrap(matrix, 0, (int) matrix.size(0));
+        buffer = result;
+      }
+      return result;
+    }
+
+    protected VectorRows getVectorRows(int rows) {
+      if(matrix != null) {
+        FloatBufferMatrix wrapped = getBuffer();
+        if(wrapped != null && wrapped.rows() == rows) return wrapped;
+        INDArray source = matrix;
+        if(wrapped == null) {
+          log.warn("copying matrix into row-major order");
+          source = source.dup('c').castTo(DataType.FLOAT);
+        }
+        return FloatBufferMatrix.wrap(source, 0, rows);
+      } else if(paged != null) {
+        return paged;
+      }
+      return quantized;
+    }
+
+  }
+
+  /**
+   * Read access to the rows of all segments as a single matrix.
+   */
+  protected static class SegmentedRows implements VectorRows {
+
+    protected final VectorRows[] parts;
+    protected final int[] begins;
+    protected final int rows;
+
+    protected SegmentedRows(VectorRows[] parts, int[] begins, int rows) {
+      this.parts = parts;
+      this.begins = begins;
+      this.rows = rows;
+    }
+
+    protected int getPart(int row) {
+      int lo = 0, hi = begins.length - 1;
+      while(lo < hi) {
+        int mid = (lo + hi + 1) >>> 1;
+        if(begins[mid] <= row) lo = mid;
+        else hi = mid - 1;
+      }
+      return lo;
+    }
+
+    @Override
+    public int rows() {
+      return rows;
+    }
+
+    @Override
+    public int dim() {
+      return parts[0].dim();
+    }
+
+    @Override
+    public float dot(int row, float[] q, int qOffset) {
+      int p = getPart(row);
+      return parts[p].dot(row - begins[p], q, qOffset);
+    }
+
+    @Override
+    public void getRow(int row, float[] dst, int dstOffset) {
+      int p = getPart(row);
+      parts[p].getRow(row - begins[p], dst, dstOffset);
+    }
+
+  }
+
+  /**
+   * Aspect-sentence similarities [segment][aspect][row] with the aspect index of each key. Each aspect has its
+   * own array per segment, so that no array grows with the number of aspects.
+   */
+  protected static class AspectHeatmaps {
+
+    protected final Map<String, Integer> rows;
+    protected final Map<String, INDArray> vectors;
+    /** aspect vectors [dim x aspects] in row order, which are scored against appended segments */
+    protected final INDArray queries;
+    protected final float[][][] scores;
+    /** TRUE if all ENTITY and ASPECT sentences have unit length */
+    protected final boolean unitLength;
+
+    protected AspectHeatmaps(Map<String, Integer> rows, Map<String, INDArray> vectors, INDArray queries, float[][][] scores, boolean unitLength) {
+      this.rows = rows;
+      this.vectors = vectors;
+      this.queries = queries;
+      this.scores = scores;
+      this.unitLength = unitLength;
+    }
+
+  }
+
+}
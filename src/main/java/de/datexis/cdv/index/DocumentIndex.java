@@ -17,6 +17,7 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
@@ -27,6 +28,7 @@ import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.BaseDirectory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.RAMDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,17 +50,30 @@ public class DocumentIndex {
   
   public final static int NUM_CANDIDATES = 64;
   
-  protected IndexReader reader;
-  protected IndexSearcher searcher;
+  /** directory of the index, which is replaced by an in-memory copy on the first update of a loaded index */
+  protected BaseDirectory directory;
+  protected volatile IndexReader reader;
+  protected volatile IndexSearcher searcher;
   protected Analyzer analyzer;
   
   public void loadModel(Resource path) throws IOException {
     FSDirectory index = FSDirectory.open(path.getPath());
+    directory = index;
     reader = DirectoryReader.open(index);
     searcher = new IndexSearcher(reader);
     analyzer = buildAnalyzer();
   }
   
+  /**
+   * @return true if the given directory contains an index
+   */
+  public static boolean exists(Resource path) throws IOException {
+    if(!path.isDirectory()) return false;
+    try(FSDirectory index = FSDirectory.open(path.getPath())) {
+      return DirectoryReader.indexExists(index);
+    }
+  }
+  
   /**
    * Build analysers for id and text fields.
    */
@@ -94,6 +109,7 @@ public class DocumentIndex {
   public void createInMemoryIndex(Dataset data) throws IOException {
     RAMDirectory indexDir = new RAMDirectory();
     createIndex(data, indexDir);
+    directory = indexDir;
     reader = DirectoryReader.open(indexDir);
     searcher = new IndexSearcher(reader);
     analyzer = buildAnalyzer();
@@ -141,6 +157,79 @@ public class DocumentIndex {
     
   }
   
+  /**
+   * Add Documents to the index, replacing existing Documents with the same ID. Searches continue on the
+   * previous reader until the update is committed. Updates are never written to a loaded index on disk, so that
+   * it always contains the Documents it was created from.
+   */
+  public synchronized void updateDocuments(Collection<de.datexis.model.Document> docs) throws IOException {
+    try(IndexWriter writer = openWriter()) {
+      for(de.datexis.model.Document doc : docs) {
+        Document p = new Document();
+        p.add(new StringField(FIELD_DOCID, doc.getId(), Field.Store.YES));
+        p.add(new TextField(FIELD_TEXT, doc.getText(), Field.Store.NO));
+        writer.updateDocument(new Term(FIELD_DOCID, doc.getId()), p);
+      }
+    }
+    reopen();
+    log.info("{} documents updated in index", docs.size());
+  }
+  
+  /**
+   * Remove Documents with the given IDs from the index.
+   */
+  public synchronized void deleteDocuments(Collection<String> docIds) throws IOException {
+    try(IndexWriter writer = openWriter()) {
+      for(String id : docIds) {
+        writer.deleteDocuments(new Term(FIELD_DOCID, id));
+      }
+    }
+    reopen();
+    log.info("{} documents deleted from index", docIds.size());
+  }
+  
+  protected IndexWriter openWriter() throws IOException {
+    if(directory == null) throw new IllegalStateException("index was not created or loaded");
+    if(directory instanceof FSDirectory) {
+      // keep the persisted index unchanged and apply runtime updates to an in-memory copy
+      RAMDirectory copy = new RAMDirectory((FSDirectory) directory, IOContext.READONCE);
+      directory = copy;
+      swap(DirectoryReader.open(copy));
+    }
+    IndexWriterConfig config = new IndexWriterConfig(analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+    config.setCommitOnClose(true);
+    config.setSimilarity(new BM25Similarity());
+    return new IndexWriter(directory, config);
+  }
+  
+  /**
+   * Swap in a new reader after an update and close the previous one.
+   */
+  protected void reopen() throws IOException {
+    DirectoryReader updated = DirectoryReader.openIfChanged((DirectoryReader) reader);
+    if(updated != null) swap(updated);
+  }
+  
+  protected void swap(DirectoryReader updated) throws IOException {
+    IndexReader previous = reader;
+    IndexSearcher updatedSearcher = new IndexSearcher(updated);
+    updatedSearcher.setSimilarity(searcher.getSimilarity());
+    reader = updated;
+    searcher = updatedSearcher;
+    previous.decRef(); // closed as soon as running searches are finished
+  }
+  
+  /**
+   * @return the current searcher with its reader referenced, which has to be released with decRef()
+   */
+  protected IndexSearcher acquireSearcher() {
+    while(true) {
+      IndexSearcher current = searcher;
+      if(current.getIndexReader().tryIncRef()) return current;
+    }
+  }
+  
   /**
    *  @return a list of <document,passage> IDs
    */
@@ -148,6 +237,7 @@ public class DocumentIndex {
     
     List<DocumentResult> result = new ArrayList<>();
     
+    IndexSearcher searcher = acquireSearcher();
     try {
       Query query = new QueryParser(FIELD_TEXT, analyzer).parse(querystring);
       TopDocs top = searcher.search(query, hits);
@@ -161,6 +251,12 @@ public class DocumentIndex {
       log.error(e.toString());
     } catch(IOException e) {
       e.printStackTrace();
+    } finally {
+      try {
+        searcher.getIndexReader().decRef();
+      } catch(IOException e) {
+        log.error(e.toString());
+      }
     }
     
     return result;
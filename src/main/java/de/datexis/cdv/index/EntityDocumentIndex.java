@@ -0,0 +1,116 @@
+package de.datexis.cdv.index;
+
+import de.datexis.cdv.model.EntityAnnotation;
+import de.datexis.cdv.model.EntityAspectAnnotation;
+import de.datexis.model.Annotation;
+import de.datexis.model.Document;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Inverted index from entity IDs to the Documents that are about them. Entities are taken from
+ * GOLD EntityAnnotations and EntityAspectAnnotations, and optionally from the predicted entity of every
+ * sentence, which is the most similar entity vector to its ENTITY projection.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class EntityDocumentIndex {
+
+  protected final static Logger log = LoggerFactory.getLogger(EntityDocumentIndex.class);
+
+  /** number of sentences that are scored against all entities at once */
+  protected final static int PREDICT_BLOCK_SIZE = 4096;
+
+  protected final Map<String, Set<Document>> documents = new HashMap<>();
+
+  /**
+   * Add all entities of GOLD EntityAnnotations and EntityAspectAnnotations.
+   */
+  public void addAnnotations(Collection<Document> docs) {
+    int count = 0;
+    for(Document doc : docs) {
+      for(EntityAspectAnnotation ann : doc.getAnnotations(Annotation.Source.GOLD, EntityAspectAnnotation.class)) {
+        count += add(ann.getEntityId(), doc);
+      }
+      for(EntityAnnotation ann : doc.getAnnotations(Annotation.Source.GOLD, EntityAnnotation.class)) {
+        count += add(ann.getLabel(), doc);
+      }
+    }
+    log.info("indexed {} entity annotations, {} entities in total", count, documents.size());
+  }
+
+  /**
+   * Add the predicted entity of every sentence in the store, if its similarity reaches the given threshold.
+   * @param entities entity vectors [dim x 1] by their ID
+   */
+  public void addPredictions(CorpusVectorStore store, Map<String, INDArray> entities, double threshold) {
+    if(!store.hasProjection(Projection.ENTITY) || entities.isEmpty()) return;
+    int dim = store.getDimension(Projection.ENTITY);
+    List<String> ids = new ArrayList<>(entities.keySet());
+    INDArray matrix = Nd4j.create(DataType.FLOAT, dim, ids.size());
+    for(int e = 0; e < ids.size(); e++) {
+      matrix.putColumn(e, Transforms.unitVec(entities.get(ids.get(e)).reshape(dim, 1).castTo(DataType.FLOAT)));
+    }
+    int rows = store.countSentences(), count = 0;
+    for(int begin = 0; begin < rows; begin += PREDICT_BLOCK_SIZE) {
+      int end = Math.min(rows, begin + PREDICT_BLOCK_SIZE);
+      INDArray block = Nd4j.create(store.getSentenceVectors(Projection.ENTITY, begin, end), new int[] {end - begin, dim});
+      float[][] scores = block.mmul(matrix).toFloatMatrix();
+      for(int i = 0; i < scores.length; i++) {
+        int d = store.getDocumentIndexAtSentence(begin + i);
+        if(store.isDeleted(d)) continue;
+        int best = -1;
+        for(int e = 0; e < ids.size(); e++) {
+          if(scores[i][e] >= threshold && (best < 0 || scores[i][e] > scores[i][best])) best = e;
+        }
+        if(best < 0) continue;
+        Document doc = store.getDocument(d);
+        if(documents.computeIfAbsent(ids.get(best), k -> new LinkedHashSet<>()).add(doc)) count++;
+      }
+    }
+    log.info("indexed {} predicted entity occurrences of {} entities", count, ids.size());
+  }
+
+  /**
+   * @return the number of entity IDs that were added
+   */
+  protected int add(String entityIds, Document doc) {
+    if(entityIds == null) return 0;
+    int count = 0;
+    for(String id : entityIds.split(EntityIndex.ID_SEPARATOR_REGEX)) {
+      id = id.trim();
+      if(id.isEmpty()) continue;
+      documents.computeIfAbsent(id, k -> new LinkedHashSet<>()).add(doc);
+      count++;
+    }
+    return count;
+  }
+
+  public boolean contains(String entityIds) {
+    return entityIds != null && Arrays.stream(entityIds.split(EntityIndex.ID_SEPARATOR_REGEX)).anyMatch(id -> documents.containsKey(id.trim()));
+  }
+
+  /**
+   * @return all Documents that are about one of the given entity IDs, separated by ";"
+   */
+  public Collection<Document> getDocuments(String entityIds) {
+    Set<Document> result = new LinkedHashSet<>();
+    for(String id : entityIds.split(EntityIndex.ID_SEPARATOR_REGEX)) {
+      result.addAll(documents.getOrDefault(id.trim(), Collections.emptySet()));
+    }
+    return result;
+  }
+
+  /**
+   * @return all entity IDs in the index
+   */
+  public Set<String> getEntityIds() {
+    return Collections.unmodifiableSet(documents.keySet());
+  }
+
+}
@@ -0,0 +1,130 @@
+package de.datexis.cdv.index;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Row-wise float matrix [rows x dim] on float buffers, e.g. the off-heap buffer of an INDArray. Rows are split
+ * into segments of whole rows, as a single buffer is limited to 2GB.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class FloatBufferMatrix implements VectorRows {
+
+  protected final int rows;
+  protected final int dim;
+
+  /** rows per segment */
+  protected final int segmentRows;
+  protected final FloatBuffer[] segments;
+
+  /** matrix that owns the wrapped memory, which is kept alive as long as this matrix is used */
+  protected final INDArray source;
+
+  protected FloatBufferMatrix(int rows, int dim, FloatBuffer[] segments, INDArray source) {
+    this.rows = rows;
+    this.dim = dim;
+    this.segmentRows = getSegmentRows(dim);
+    this.segments = segments;
+    this.source = source;
+  }
+
+  /**
+   * @return the number of rows that fit into a single buffer
+   */
+  public static int getSegmentRows(int dim) {
+    return Math.max(1, Integer.MAX_VALUE / (Math.max(1, dim) * Float.BYTES));
+  }
+
+  /**
+   * Wrap the rows [begin, end) of a row-major matrix [rows x dim] without copying them, so that row 0 is the
+   * row begin of the matrix.
+   */
+  public static FloatBufferMatrix wrap(INDArray matrix, int begin, int end) {
+    if(matrix.isView() || matrix.ordering() != 'c' || matrix.dataType() != DataType.FLOAT)
+      throw new IllegalArgumentException("expected a row-major float matrix that is not a view");
+    int dim = (int) matrix.size(1);
+    int rows = end - begin;
+    int segmentRows = getSegmentRows(dim);
+    long rowBytes = (long) dim * Float.BYTES;
+    FloatBuffer[] segments = new FloatBuffer[(rows + segmentRows - 1) / segmentRows];
+    BytePointer address = new BytePointer(matrix.data().addressPointer());
+    for(int s = 0; s < segments.length; s++) {
+      long first = begin + (long) s * segmentRows;
+      long last = first + Math.min(segmentRows, rows - s * segmentRows);
+      BytePointer segment = new BytePointer(address);
+      segment.position(first * rowBytes).limit(last * rowBytes);
+      segments[s] = segment.asByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+    return new FloatBufferMatrix(rows, dim, segments, matrix);
+  }
+
+  /**
+   * Wrap row-wise vectors [rows x dim] on the heap.
+   */
+  public static FloatBufferMatrix wrap(float[] vectors, int dim) {
+    return new FloatBufferMatrix(vectors.length / dim, dim, new FloatBuffer[] {FloatBuffer.wrap(vectors)}, null);
+  }
+
+  @Override
+  public int rows() {
+    return rows;
+  }
+
+  @Override
+  public int dim() {
+    return dim;
+  }
+
+  /**
+   * Copy a row into the given array.
+   */
+  public void getRow(int row, float[] dst) {
+    getRow(row, dst, 0);
+  }
+
+  @Override
+  public void getRow(int row, float[] dst, int dstOffset) {
+    FloatBuffer segment = segments[row / segmentRows].duplicate();
+    segment.position((row % segmentRows) * dim);
+    segment.get(dst, dstOffset, dim);
+  }
+
+  /**
+   * @return inner product of q with the given row
+   */
+  public float dot(int row, float[] q) {
+    return dot(row, q, 0);
+  }
+
+  @Override
+  public float dot(int row, float[] q, int qOffset) {
+    FloatBuffer segment = segments[row / segmentRows];
+    int offset = (row % segmentRows) * dim;
+    float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+    int i = 0;
+    for(; i + 3 < dim; i += 4) {
+      s0 += segment.get(offset + i) * q[qOffset + i];
+      s1 += segment.get(offset + i + 1) * q[qOffset + i + 1];
+      s2 += segment.get(offset + i + 2) * q[qOffset + i + 2];
+      s3 += segment.get(offset + i + 3) * q[qOffset + i + 3];
+    }
+    for(; i < dim; i++) s0 += segment.get(offset + i) * q[qOffset + i];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @return inner products of q with all rows in [begin, end)
+   */
+  public float[] score(int begin, int end, float[] q) {
+    float[] scores = new float[Math.max(0, end - begin)];
+    for(int row = begin; row < end; row++) {
+      scores[row - begin] = dot(row, q, 0);
+    }
+    return scores;
+  }
+
+}
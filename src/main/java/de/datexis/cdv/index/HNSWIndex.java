@@ -0,0 +1,290 @@
+package de.datexis.cdv.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Hierarchical Navigable Small World graph (Malkov & Yashunin, 2018) for approximate maximum inner product
+ * search over unit-length sentence vectors. Vectors are read from the given rows, which are not copied. Rows
+ * that are appended to the vectors are inserted into a copy of the graph with extend().
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class HNSWIndex {
+
+  protected final static Logger log = LoggerFactory.getLogger(HNSWIndex.class);
+
+  public final static int DEFAULT_M = 16;
+  public final static int DEFAULT_EF_CONSTRUCTION = 128;
+  public final static int DEFAULT_EF_SEARCH = 256;
+
+  protected final VectorRows vectors;
+  protected final int dim;
+  protected final int size;
+
+  /** max number of links per node on upper levels and on level 0 */
+  protected final int m, maxM0;
+  protected final int efConstruction;
+  protected int efSearch = DEFAULT_EF_SEARCH;
+
+  /** links[node][level][0] holds the number of links, followed by the neighbour ids */
+  protected final int[][][] links;
+  protected int entryPoint = -1;
+  protected int maxLevel = -1;
+
+  /** nodes [0, sharedNodes) have links that are shared with the index this one was extended from */
+  protected int sharedNodes = 0;
+  protected final BitSet copiedNodes = new BitSet();
+
+  protected final ThreadLocal<Visited> visited;
+
+  /** heap copies of the rows that are compared during insertion */
+  protected final float[] insertVector, linkVector;
+
+  public HNSWIndex(VectorRows vectors) {
+    this(vectors, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+  }
+
+  public HNSWIndex(VectorRows vectors, int m, int efConstruction) {
+    this.vectors = vectors;
+    this.dim = vectors.dim();
+    this.size = vectors.rows();
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.links = new int[size][][];
+    this.visited = ThreadLocal.withInitial(() -> new Visited(size));
+    this.insertVector = new float[dim];
+    this.linkVector = new float[dim];
+  }
+
+  /**
+   * Build the graph by inserting all vectors.
+   */
+  public HNSWIndex build() {
+    Random random = new Random(42);
+    for(int node = 0; node < size; node++) {
+      insert(node, randomLevel(random));
+      if((node + 1) % 100000 == 0) log.info("inserted {} of {} vectors into HNSW graph", node + 1, size);
+    }
+    log.info("built HNSW graph over {} vectors with {} levels", size, maxLevel + 1);
+    return this;
+  }
+
+  /**
+   * Create an index over rows that start with the rows of this index, by inserting only the appended rows into
+   * a copy of the graph. Links of existing nodes are copied before they change, so that this index can still
+   * be searched while the new one is built.
+   * @return the new index, or this index if no rows were appended
+   */
+  public HNSWIndex extend(VectorRows vectors) {
+    if(vectors.rows() < size || vectors.dim() != dim)
+      throw new IllegalArgumentException("expected rows that start with the " + size + " rows of the index");
+    if(vectors.rows() == size) return this;
+    HNSWIndex result = new HNSWIndex(vectors, m, efConstruction);
+    result.efSearch = efSearch;
+    System.arraycopy(links, 0, result.links, 0, size);
+    result.sharedNodes = size;
+    result.entryPoint = entryPoint;
+    result.maxLevel = maxLevel;
+    Random random = new Random(size);
+    for(int node = size; node < result.size; node++) {
+      result.insert(node, result.randomLevel(random));
+    }
+    log.info("inserted {} vectors into HNSW graph of {} vectors", result.size - size, size);
+    return result;
+  }
+
+  /**
+   * @return the level of a new node, drawn from an exponentially decaying distribution
+   */
+  protected int randomLevel(Random random) {
+    return (int) Math.floor(-Math.log(1. - random.nextDouble()) * (1. / Math.log(m)));
+  }
+
+  public void setEfSearch(int efSearch) {
+    this.efSearch = efSearch;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  protected void insert(int node, int level) {
+    links[node] = new int[level + 1][];
+    for(int l = 0; l <= level; l++) {
+      links[node][l] = new int[(l == 0 ? maxM0 : m) + 1];
+    }
+    if(entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = level;
+      return;
+    }
+    vectors.getRow(node, insertVector, 0);
+    int ep = entryPoint;
+    for(int l = maxLevel; l > level; l--) {
+      ep = searchGreedy(insertVector, 0, ep, l);
+    }
+    for(int l = Math.min(level, maxLevel); l >= 0; l--) {
+      List<Candidate> nearest = searchLayer(insertVector, 0, ep, efConstruction, l);
+      int maxLinks = l == 0 ? maxM0 : m;
+      int count = 0;
+      for(Candidate c : nearest) {
+        if(c.id == node) continue;
+        if(count >= m) break;
+        links[node][l][++count] = c.id;
+        addLink(c.id, node, l, maxLinks);
+      }
+      links[node][l][0] = count;
+      ep = nearest.get(0).id;
+    }
+    if(level > maxLevel) {
+      maxLevel = level;
+      entryPoint = node;
+    }
+  }
+
+  /**
+   * Add a link from node to neighbour, keeping only the most similar links if the node is full.
+   */
+  protected void addLink(int node, int neighbour, int level, int maxLinks) {
+    if(node < sharedNodes && !copiedNodes.get(node)) {
+      // copy on write, the links are still used by the previous index
+      int[][] copy = new int[links[node].length][];
+      for(int l = 0; l < copy.length; l++) copy[l] = links[node][l].clone();
+      links[node] = copy;
+      copiedNodes.set(node);
+    }
+    int[] nodeLinks = links[node][level];
+    int count = nodeLinks[0];
+    if(count < maxLinks) {
+      nodeLinks[++count] = neighbour;
+      nodeLinks[0] = count;
+      return;
+    }
+    // replace the least similar link if the new neighbour is closer
+    vectors.getRow(node, linkVector, 0);
+    int worst = -1;
+    float worstScore = dot(linkVector, 0, neighbour);
+    for(int i = 1; i <= count; i++) {
+      float score = dot(linkVector, 0, nodeLinks[i]);
+      if(score < worstScore) {
+        worstScore = score;
+        worst = i;
+      }
+    }
+    if(worst > 0) nodeLinks[worst] = neighbour;
+  }
+
+  /**
+   * @return ids of the approximate k nearest vectors to q, in descending order of similarity
+   */
+  public int[] search(float[] q, int k) {
+    if(entryPoint < 0) return new int[0];
+    int ep = entryPoint;
+    for(int l = maxLevel; l > 0; l--) {
+      ep = searchGreedy(q, 0, ep, l);
+    }
+    List<Candidate> nearest = searchLayer(q, 0, ep, Math.max(efSearch, k), 0);
+    int[] result = new int[Math.min(k, nearest.size())];
+    for(int i = 0; i < result.length; i++) {
+      result[i] = nearest.get(i).id;
+    }
+    return result;
+  }
+
+  /**
+   * Greedy search for the most similar node on a single level.
+   */
+  protected int searchGreedy(float[] q, int qOffset, int ep, int level) {
+    int current = ep;
+    float best = dot(q, qOffset, current);
+    boolean changed = true;
+    while(changed) {
+      changed = false;
+      int[] nodeLinks = links[current][level];
+      for(int i = 1; i <= nodeLinks[0]; i++) {
+        float score = dot(q, qOffset, nodeLinks[i]);
+        if(score > best) {
+          best = score;
+          current = nodeLinks[i];
+          changed = true;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Beam search on a single level.
+   * @return up to ef candidates in descending order of similarity
+   */
+  protected List<Candidate> searchLayer(float[] q, int qOffset, int ep, int ef, int level) {
+    Visited visit = visited.get();
+    visit.clear();
+    PriorityQueue<Candidate> candidates = new PriorityQueue<>((a, b) -> Float.compare(b.score, a.score));
+    PriorityQueue<Candidate> results = new PriorityQueue<>((a, b) -> Float.compare(a.score, b.score));
+    Candidate start = new Candidate(ep, dot(q, qOffset, ep));
+    visit.add(ep);
+    candidates.add(start);
+    results.add(start);
+    while(!candidates.isEmpty()) {
+      Candidate c = candidates.poll();
+      if(results.size() >= ef && c.score < results.peek().score) break;
+      int[] nodeLinks = links[c.id][level];
+      for(int i = 1; i <= nodeLinks[0]; i++) {
+        int n = nodeLinks[i];
+        if(!visit.add(n)) continue;
+        float score = dot(q, qOffset, n);
+        if(results.size() < ef || score > results.peek().score) {
+          Candidate next = new Candidate(n, score);
+          candidates.add(next);
+          results.add(next);
+          if(results.size() > ef) results.poll();
+        }
+      }
+    }
+    List<Candidate> result = new ArrayList<>(results);
+    result.sort((a, b) -> Float.compare(b.score, a.score));
+    return result;
+  }
+
+  /**
+   * @return inner product of q (starting at qOffset) with the vector of the given node
+   */
+  protected float dot(float[] q, int qOffset, int node) {
+    return vectors.dot(node, q, qOffset);
+  }
+
+  protected static class Candidate {
+    final int id;
+    final float score;
+    Candidate(int id, float score) {
+      this.id = id;
+      this.score = score;
+    }
+  }
+
+  /** visited set that is cleared in constant time */
+  protected static class Visited {
+    final int[] stamps;
+    int stamp = 0;
+    Visited(int size) {
+      stamps = new int[size];
+    }
+    void clear() {
+      if(++stamp == Integer.MAX_VALUE) {
+        Arrays.fill(stamps, 0);
+        stamp = 1;
+      }
+    }
+    /** @return true if the node was not visited before */
+    boolean add(int node) {
+      if(stamps[node] == stamp) return false;
+      stamps[node] = stamp;
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package de.datexis.cdv.index;
+
+/**
+ * Row-wise int8 scalar-quantized matrix [rows x dim] with one scale factor per row. Inner products are
+ * computed on integers and rescaled afterwards, which needs a quarter of the memory bandwidth of float32.
+ * Codes are kept in chunks of whole rows, so that the matrix is not limited to 2^31 values.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class Int8Matrix implements VectorRows {
+
+  /** maximum number of codes per chunk */
+  protected final static int CHUNK_SIZE = 1 << 30;
+
+  protected final byte[][] codes;
+  protected final float[] scales;
+  protected final int rows;
+  protected final int dim;
+  protected final int chunkRows;
+
+  public Int8Matrix(int rows, int dim) {
+    this.rows = rows;
+    this.dim = dim;
+    this.chunkRows = Math.max(1, CHUNK_SIZE / Math.max(1, dim));
+    this.codes = new byte[(rows + chunkRows - 1) / chunkRows][];
+    for(int c = 0; c < codes.length; c++) {
+      codes[c] = new byte[Math.min(chunkRows, rows - c * chunkRows) * dim];
+    }
+    this.scales = new float[rows];
+  }
+
+  /**
+   * Quantize row-wise vectors [n x dim] into the matrix, starting at the given row.
+   */
+  public void put(float[] vectors, int firstRow) {
+    int n = vectors.length / dim;
+    for(int i = 0; i < n; i++) {
+      int row = firstRow + i;
+      scales[row] = quantize(vectors, i * dim, dim, codes[row / chunkRows], (row % chunkRows) * dim);
+    }
+  }
+
+  /**
+   * Copy n quantized rows of another matrix with the same dimension into the matrix, starting at the given row.
+   */
+  public void put(Int8Matrix source, int sourceRow, int firstRow, int n) {
+    for(int i = 0; i < n; i++) {
+      int src = sourceRow + i, dst = firstRow + i;
+      System.arraycopy(source.codes[src / source.chunkRows], (src % source.chunkRows) * dim, codes[dst / chunkRows], (dst % chunkRows) * dim, dim);
+      scales[dst] = source.scales[src];
+    }
+  }
+
+  /**
+   * Quantize a vector symmetrically into [-127, 127].
+   * @return the scale factor to restore the original values
+   */
+  public static float quantize(float[] vec, int offset, int length, byte[] dst, int dstOffset) {
+    float max = 0f;
+    for(int i = 0; i < length; i++) max = Math.max(max, Math.abs(vec[offset + i]));
+    if(max == 0f) return 0f;
+    float scale = max / 127f;
+    for(int i = 0; i < length; i++) {
+      dst[dstOffset + i] = (byte) Math.round(vec[offset + i] / scale);
+    }
+    return scale;
+  }
+
+  /**
+   * Quantize a query vector once, so that it can be scored against many row ranges.
+   */
+  public static QuantizedVector quantize(float[] q) {
+    byte[] qCodes = new byte[q.length];
+    float qScale = quantize(q, 0, q.length, qCodes, 0);
+    return new QuantizedVector(qCodes, qScale);
+  }
+
+  /**
+   * @return approximate inner products of a query with all rows in [begin, end)
+   */
+  public float[] score(float[] q, int begin, int end) {
+    return score(quantize(q), begin, end);
+  }
+
+  /**
+   * @return approximate inner products of a quantized query with all rows in [begin, end)
+   */
+  public float[] score(QuantizedVector q, int begin, int end) {
+    float[] scores = new float[end - begin];
+    for(int row = begin; row < end; row++) {
+      scores[row - begin] = dot(row, q.codes) * scales[row] * q.scale;
+    }
+    return scores;
+  }
+
+  /**
+   * @return approximate inner products of a query with the given rows
+   */
+  public float[] score(float[] q, int[] rows) {
+    return score(quantize(q), rows);
+  }
+
+  /**
+   * @return approximate inner products of a quantized query with the given rows
+   */
+  public float[] score(QuantizedVector q, int[] rows) {
+    float[] scores = new float[rows.length];
+    for(int i = 0; i < rows.length; i++) {
+      scores[i] = score(q, rows[i]);
+    }
+    return scores;
+  }
+
+  /**
+   * @return approximate inner product of a quantized query with a single row
+   */
+  public float score(QuantizedVector q, int row) {
+    return dot(row, q.codes) * scales[row] * q.scale;
+  }
+
+  /**
+   * @return integer inner product of a quantized query with a row
+   */
+  public int dot(int row, byte[] qCodes) {
+    byte[] chunk = codes[row / chunkRows];
+    int offset = (row % chunkRows) * dim;
+    int sum = 0;
+    for(int i = 0; i < dim; i++) {
+      sum += qCodes[i] * chunk[offset + i];
+    }
+    return sum;
+  }
+
+  /**
+   * @return approximate inner product of a float query (starting at qOffset) with a row
+   */
+  @Override
+  public float dot(int row, float[] q, int qOffset) {
+    byte[] chunk = codes[row / chunkRows];
+    int offset = (row % chunkRows) * dim;
+    float sum = 0f;
+    for(int i = 0; i < dim; i++) {
+      sum += q[qOffset + i] * chunk[offset + i];
+    }
+    return sum * scales[row];
+  }
+
+  @Override
+  public void getRow(int row, float[] dst, int dstOffset) {
+    byte[] chunk = codes[row / chunkRows];
+    int offset = (row % chunkRows) * dim;
+    for(int i = 0; i < dim; i++) {
+      dst[dstOffset + i] = chunk[offset + i] * scales[row];
+    }
+  }
+
+  /**
+   * @return dequantized row-wise copy [end - begin x dim] of the given rows
+   */
+  public float[] get(int begin, int end) {
+    float[] result = new float[(end - begin) * dim];
+    for(int row = begin; row < end; row++) {
+      getRow(row, result, (row - begin) * dim);
+    }
+    return result;
+  }
+
+  @Override
+  public int rows() {
+    return rows;
+  }
+
+  @Override
+  public int dim() {
+    return dim;
+  }
+
+  /**
+   * A query vector that is quantized with a single scale factor.
+   */
+  public static class QuantizedVector {
+
+    protected final byte[] codes;
+    protected final float scale;
+
+    protected QuantizedVector(byte[] codes, float scale) {
+      this.codes = codes;
+      this.scale = scale;
+    }
+
+  }
+
+}
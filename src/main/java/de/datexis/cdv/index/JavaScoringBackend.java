@@ -0,0 +1,38 @@
+package de.datexis.cdv.index;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Scores in plain Java directly on the off-heap buffer of a matrix, without native calls and op dispatch. The
+ * inner loop uses independent accumulators so that it can be vectorized by the JIT compiler. This is faster
+ * than ND4J for the few dozen sentences of a single Document. Rows are read through FloatBufferMatrix, so that
+ * matrices larger than 2GB are split into buffers of whole rows.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class JavaScoringBackend implements ScoringBackend {
+
+  public final static JavaScoringBackend INSTANCE = new JavaScoringBackend();
+
+  @Override
+  public float[] score(INDArray matrix, int begin, int end, float[] q) {
+    if(end <= begin) return new float[0];
+    if(matrix.isView() || matrix.ordering() != 'c' || matrix.dataType() != DataType.FLOAT) return Nd4jScoringBackend.INSTANCE.score(matrix, begin, end, q);
+    return FloatBufferMatrix.wrap(matrix, begin, end).score(0, end - begin, q);
+  }
+
+  /**
+   * Score on the wrapped matrix, so that scoring a single Document doesn't create pointers and buffers.
+   */
+  @Override
+  public float[] score(INDArray matrix, FloatBufferMatrix buffer, int begin, int end, float[] q) {
+    if(buffer == null) return score(matrix, begin, end, q);
+    return buffer.score(begin, end, q);
+  }
+
+  @Override
+  public String toString() {
+    return "JAVA";
+  }
+
+}
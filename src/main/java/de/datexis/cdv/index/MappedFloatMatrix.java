@@ -0,0 +1,78 @@
+package de.datexis.cdv.index;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/**
+ * Row-wise float matrix [rows x dim] in a memory-mapped file, so that vectors are paged in from disk by
+ * the operating system on access.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class MappedFloatMatrix extends FloatBufferMatrix {
+
+  protected final static Logger log = LoggerFactory.getLogger(MappedFloatMatrix.class);
+
+  /** number of rows written at once */
+  protected final static int WRITE_BLOCK_SIZE = 4096;
+
+  protected MappedFloatMatrix(Path file, int rows, int dim) throws IOException {
+    super(rows, dim, map(file, rows, dim), null);
+  }
+
+  /**
+   * Map a file in segments of whole rows, as a single mapping is limited to 2GB.
+   */
+  protected static FloatBuffer[] map(Path file, int rows, int dim) throws IOException {
+    int segmentRows = getSegmentRows(dim);
+    int numSegments = (rows + segmentRows - 1) / segmentRows;
+    FloatBuffer[] segments = new FloatBuffer[numSegments];
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      for(int s = 0; s < numSegments; s++) {
+        long begin = (long) s * segmentRows * dim * Float.BYTES;
+        long length = (long) Math.min(segmentRows, rows - s * segmentRows) * dim * Float.BYTES;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, begin, length);
+        segments[s] = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * Write the first rows of a matrix [rows x dim] to a file and map it into memory.
+   */
+  public static MappedFloatMatrix write(INDArray matrix, int rows, Path file) throws IOException {
+    int dim = (int) matrix.size(1);
+    log.info("writing {} vectors to '{}'...", rows, file.toString());
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for(int begin = 0; begin < rows; begin += WRITE_BLOCK_SIZE) {
+        int end = Math.min(rows, begin + WRITE_BLOCK_SIZE);
+        float[] block = matrix.get(interval(begin, end), all()).dup('c').data().asFloat();
+        ByteBuffer buffer = ByteBuffer.allocate(block.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(block);
+        while(buffer.hasRemaining()) channel.write(buffer);
+      }
+    }
+    return new MappedFloatMatrix(file, rows, dim);
+  }
+
+  /**
+   * Map an existing file that was written with write().
+   */
+  public static MappedFloatMatrix open(Path file, int rows, int dim) throws IOException {
+    return new MappedFloatMatrix(file, rows, dim);
+  }
+
+}
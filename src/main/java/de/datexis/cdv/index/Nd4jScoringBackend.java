@@ -0,0 +1,28 @@
+package de.datexis.cdv.index;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/**
+ * Scores with a matrix-vector product in ND4J, which pays off for large ranges of sentences.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class Nd4jScoringBackend implements ScoringBackend {
+
+  public final static Nd4jScoringBackend INSTANCE = new Nd4jScoringBackend();
+
+  @Override
+  public float[] score(INDArray matrix, int begin, int end, float[] q) {
+    if(end <= begin) return new float[0];
+    return matrix.get(interval(begin, end), all()).mmul(Nd4j.create(q, new int[] {q.length, 1})).toFloatVector();
+  }
+
+  @Override
+  public String toString() {
+    return "ND4J";
+  }
+
+}
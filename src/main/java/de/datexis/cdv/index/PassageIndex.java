@@ -23,6 +23,7 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
@@ -56,8 +57,10 @@ public class PassageIndex {
   
   public final static int NUM_CANDIDATES = 64;
   
-  protected IndexReader reader;
-  protected IndexSearcher searcher;
+  /** in-memory directory that can be updated, or null if the index was loaded */
+  protected RAMDirectory directory;
+  protected volatile IndexReader reader;
+  protected volatile IndexSearcher searcher;
   protected Analyzer analyzer;
   
   public void loadModel(Resource path) throws IOException {
@@ -103,6 +106,7 @@ public class PassageIndex {
   public void createInMemoryIndex(Dataset data) throws IOException {
     RAMDirectory indexDir = new RAMDirectory();
     createIndex(data, indexDir);
+    directory = indexDir;
     reader = DirectoryReader.open(indexDir);
     searcher = new IndexSearcher(reader);
   }
@@ -135,17 +139,7 @@ public class PassageIndex {
     // articles as documents
     log.info("writing passages...");
     for(de.datexis.model.Document doc : data.getDocuments()) {
-      List<PassageAnnotation> anns = doc
-        .streamAnnotations(Annotation.Source.GOLD, PassageAnnotation.class, true)
-        .sorted()
-        .collect(Collectors.toList());
-      for(PassageAnnotation ann : anns) {
-        // add article
-        if(ann.getLength() < 10) continue;
-        Document p = new Document();
-        p.add(new StringField(FIELD_DOCID, doc.getId(), Field.Store.YES));
-        p.add(new StringField(FIELD_PARID, ann.getId(), Field.Store.YES));
-        p.add(new TextField(FIELD_TEXT, doc.getText(ann), Field.Store.NO));
+      for(Document p : createPassages(doc)) {
         passageWriter.addDocument(p);
         if(++num % 100000 == 0) log.info("wrote " + num + " passages so far");
       }
@@ -157,6 +151,87 @@ public class PassageIndex {
     
   }
   
+  /**
+   * @return Lucene documents for all GOLD passages of a Document
+   */
+  protected List<Document> createPassages(de.datexis.model.Document doc) {
+    List<PassageAnnotation> anns = doc
+      .streamAnnotations(Annotation.Source.GOLD, PassageAnnotation.class, true)
+      .sorted()
+      .collect(Collectors.toList());
+    List<Document> result = new ArrayList<>(anns.size());
+    for(PassageAnnotation ann : anns) {
+      // add article
+      if(ann.getLength() < 10) continue;
+      Document p = new Document();
+      p.add(new StringField(FIELD_DOCID, doc.getId(), Field.Store.YES));
+      p.add(new StringField(FIELD_PARID, ann.getId(), Field.Store.YES));
+      p.add(new TextField(FIELD_TEXT, doc.getText(ann), Field.Store.NO));
+      result.add(p);
+    }
+    return result;
+  }
+  
+  /**
+   * Add the passages of Documents to the index, replacing all passages of existing Documents with the same ID.
+   * Searches continue on the previous reader until the update is committed.
+   */
+  public synchronized void updateDocuments(Collection<de.datexis.model.Document> docs) throws IOException {
+    try(IndexWriter writer = openWriter()) {
+      for(de.datexis.model.Document doc : docs) {
+        writer.updateDocuments(new Term(FIELD_DOCID, doc.getId()), createPassages(doc));
+      }
+    }
+    reopen();
+    log.info("passages of {} documents updated in index", docs.size());
+  }
+  
+  /**
+   * Remove all passages of the Documents with the given IDs from the index.
+   */
+  public synchronized void deleteDocuments(Collection<String> docIds) throws IOException {
+    try(IndexWriter writer = openWriter()) {
+      for(String id : docIds) {
+        writer.deleteDocuments(new Term(FIELD_DOCID, id));
+      }
+    }
+    reopen();
+    log.info("passages of {} documents deleted from index", docIds.size());
+  }
+  
+  protected IndexWriter openWriter() throws IOException {
+    if(directory == null) throw new IllegalStateException("only in-memory indexes can be updated");
+    IndexWriterConfig config = new IndexWriterConfig(analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+    config.setCommitOnClose(true);
+    config.setSimilarity(new BM25Similarity());
+    return new IndexWriter(directory, config);
+  }
+  
+  /**
+   * Swap in a new reader after an update and close the previous one.
+   */
+  protected void reopen() throws IOException {
+    DirectoryReader updated = DirectoryReader.openIfChanged((DirectoryReader) reader);
+    if(updated == null) return;
+    IndexReader previous = reader;
+    IndexSearcher updatedSearcher = new IndexSearcher(updated);
+    updatedSearcher.setSimilarity(searcher.getSimilarity());
+    reader = updated;
+    searcher = updatedSearcher;
+    previous.decRef(); // closed as soon as running searches are finished
+  }
+  
+  /**
+   * @return the current searcher with its reader referenced, which has to be released with decRef()
+   */
+  protected IndexSearcher acquireSearcher() {
+    while(true) {
+      IndexSearcher current = searcher;
+      if(current.getIndexReader().tryIncRef()) return current;
+    }
+  }
+  
   /**
    * Add Lucene candidates to Queries as GOLD RelevanceResult
    */
@@ -286,6 +361,7 @@ public class PassageIndex {
     
     List<PassageResult> result = new ArrayList<>();
     
+    IndexSearcher searcher = acquireSearcher();
     try {
       Query query = new QueryParser(FIELD_TEXT, analyzer).parse(querystring);//.parse("\"" + name + "\"");
       TopDocs top = searcher.search(query, hits);
@@ -299,6 +375,12 @@ public class PassageIndex {
       log.error(e.toString());
     } catch(IOException e) {
       e.printStackTrace();
+    } finally {
+      try {
+        searcher.getIndexReader().decRef();
+      } catch(IOException e) {
+        log.error(e.toString());
+      }
     }
     
     return result;
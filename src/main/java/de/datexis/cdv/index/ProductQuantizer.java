@@ -0,0 +1,165 @@
+package de.datexis.cdv.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Product quantization codec (Jégou et al., 2011) for dense sentence vectors. Each vector is split into
+ * subspaces, and every subspace is encoded with the id of its nearest centroid in one byte. Query scores are
+ * approximated with asymmetric distance computation, i.e. by summing up inner products of the raw query
+ * with the centroids from a precomputed lookup table.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ProductQuantizer {
+
+  protected final static Logger log = LoggerFactory.getLogger(ProductQuantizer.class);
+
+  /** number of centroids per subspace, so that every code fits into a byte */
+  public final static int NUM_CENTROIDS = 256;
+
+  /** default number of dimensions per subspace, results in 32x compression of float vectors */
+  public final static int DEFAULT_SUBSPACE_SIZE = 8;
+
+  protected final int dim;
+  protected final int numSubspaces;
+
+  /** first dimension of each subspace, with bounds[numSubspaces] = dim */
+  protected final int[] bounds;
+
+  /** centroids[m] holds NUM_CENTROIDS x subspace size values */
+  protected final float[][] centroids;
+
+  public ProductQuantizer(int dim) {
+    this(dim, Math.max(1, dim / DEFAULT_SUBSPACE_SIZE));
+  }
+
+  public ProductQuantizer(int dim, int numSubspaces) {
+    this.dim = dim;
+    this.numSubspaces = numSubspaces;
+    this.bounds = new int[numSubspaces + 1];
+    for(int m = 0; m <= numSubspaces; m++) {
+      bounds[m] = (int) ((long) m * dim / numSubspaces);
+    }
+    this.centroids = new float[numSubspaces][];
+  }
+
+  public int getNumSubspaces() {
+    return numSubspaces;
+  }
+
+  public boolean isTrained() {
+    return centroids[0] != null;
+  }
+
+  /**
+   * Train all codebooks with k-means on a sample of vectors.
+   * @param sample row-wise vectors [n x dim]
+   */
+  public ProductQuantizer train(float[] sample, int iterations) {
+    int n = sample.length / dim;
+    if(n == 0) throw new IllegalArgumentException("cannot train product quantizer without samples");
+    Random random = new Random(42);
+    log.info("training product quantizer with {} subspaces on {} samples...", numSubspaces, n);
+    for(int m = 0; m < numSubspaces; m++) {
+      int size = bounds[m + 1] - bounds[m];
+      float[] c = new float[NUM_CENTROIDS * size];
+      // initialize with random samples
+      for(int k = 0; k < NUM_CENTROIDS; k++) {
+        System.arraycopy(sample, random.nextInt(n) * dim + bounds[m], c, k * size, size);
+      }
+      int[] assignment = new int[n];
+      for(int it = 0; it < iterations; it++) {
+        // assign samples to nearest centroid
+        for(int i = 0; i < n; i++) {
+          assignment[i] = nearestCentroid(c, size, sample, i * dim + bounds[m]);
+        }
+        // recompute centroids, keep old ones for empty clusters
+        float[] sum = new float[c.length];
+        int[] count = new int[NUM_CENTROIDS];
+        for(int i = 0; i < n; i++) {
+          int k = assignment[i];
+          count[k]++;
+          for(int j = 0; j < size; j++) sum[k * size + j] += sample[i * dim + bounds[m] + j];
+        }
+        for(int k = 0; k < NUM_CENTROIDS; k++) {
+          if(count[k] == 0) continue;
+          for(int j = 0; j < size; j++) c[k * size + j] = sum[k * size + j] / count[k];
+        }
+      }
+      centroids[m] = c;
+    }
+    return this;
+  }
+
+  protected static int nearestCentroid(float[] c, int size, float[] vec, int offset) {
+    int best = 0;
+    float bestDist = Float.MAX_VALUE;
+    for(int k = 0; k < NUM_CENTROIDS; k++) {
+      float dist = 0f;
+      for(int j = 0; j < size; j++) {
+        float d = vec[offset + j] - c[k * size + j];
+        dist += d * d;
+      }
+      if(dist < bestDist) {
+        bestDist = dist;
+        best = k;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Encode row-wise vectors [n x dim] into codes [n x numSubspaces].
+   */
+  public byte[] encode(float[] vectors) {
+    int n = vectors.length / dim;
+    byte[] codes = new byte[n * numSubspaces];
+    encode(vectors, codes, 0);
+    return codes;
+  }
+
+  /**
+   * Encode row-wise vectors [n x dim] into the given code array, starting at the given row.
+   */
+  public void encode(float[] vectors, byte[] codes, int firstRow) {
+    int n = vectors.length / dim;
+    for(int i = 0; i < n; i++) {
+      for(int m = 0; m < numSubspaces; m++) {
+        int size = bounds[m + 1] - bounds[m];
+        codes[(firstRow + i) * numSubspaces + m] = (byte) nearestCentroid(centroids[m], size, vectors, i * dim + bounds[m]);
+      }
+    }
+  }
+
+  /**
+   * @return lookup table [numSubspaces x NUM_CENTROIDS] of inner products between query and centroids
+   */
+  public float[] getDistanceTable(float[] q) {
+    float[] table = new float[numSubspaces * NUM_CENTROIDS];
+    for(int m = 0; m < numSubspaces; m++) {
+      int size = bounds[m + 1] - bounds[m];
+      float[] c = centroids[m];
+      for(int k = 0; k < NUM_CENTROIDS; k++) {
+        float dot = 0f;
+        for(int j = 0; j < size; j++) dot += q[bounds[m] + j] * c[k * size + j];
+        table[m * NUM_CENTROIDS + k] = dot;
+      }
+    }
+    return table;
+  }
+
+  /**
+   * @return approximate inner product of the query with an encoded vector
+   */
+  public float score(float[] table, byte[] codes, int row) {
+    float sum = 0f;
+    int offset = row * numSubspaces;
+    for(int m = 0; m < numSubspaces; m++) {
+      sum += table[m * NUM_CENTROIDS + (codes[offset + m] & 0xFF)];
+    }
+    return sum;
+  }
+
+}
@@ -0,0 +1,14 @@
+package de.datexis.cdv.index;
+
+/**
+ * Sentence matrix that a query is projected on.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public enum Projection {
+  /** entity-only query on entity sentence vectors */
+  ENTITY,
+  /** aspect-only query on aspect sentence vectors */
+  ASPECT,
+  /** concatenated entity/aspect query on stacked sentence vectors */
+  ENTITY_ASPECT
+}
@@ -0,0 +1,178 @@
+package de.datexis.cdv.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Product-quantized index over all sentence vectors of a CorpusVectorStore projection. Candidates are scored
+ * approximately with a scan over the compressed codes and then re-ranked with the exact vectors from the
+ * store, which may be paged out to disk. Sentences that are appended to the store are encoded with the same
+ * codebooks by extend().
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class QuantizedVectorIndex {
+
+  protected final static Logger log = LoggerFactory.getLogger(QuantizedVectorIndex.class);
+
+  public final static int DEFAULT_SAMPLE_SIZE = 65536;
+  public final static int DEFAULT_ITERATIONS = 16;
+
+  /** number of sentences that are encoded at once */
+  protected final static int ENCODE_BLOCK_SIZE = 4096;
+
+  /** maximum number of codes per chunk */
+  protected final static int CHUNK_SIZE = 1 << 30;
+
+  protected final CorpusVectorStore store;
+  protected final Projection projection;
+  protected final ProductQuantizer quantizer;
+
+  /** codes [sentences x subspaces] in chunks of whole rows, so that the index is not limited to 2^31 codes */
+  protected final byte[][] codes;
+  protected final int chunkRows;
+  protected final int size;
+
+  protected QuantizedVectorIndex(CorpusVectorStore store, Projection projection, ProductQuantizer quantizer) {
+    this(store, projection, quantizer, null);
+  }
+
+  /**
+   * @param previous index over the first sentences of the store, whose chunks are shared if they are complete
+   */
+  protected QuantizedVectorIndex(CorpusVectorStore store, Projection projection, ProductQuantizer quantizer, QuantizedVectorIndex previous) {
+    this.store = store;
+    this.projection = projection;
+    this.quantizer = quantizer;
+    this.size = store.countSentences();
+    this.chunkRows = Math.max(1, CHUNK_SIZE / quantizer.getNumSubspaces());
+    this.codes = new byte[(size + chunkRows - 1) / chunkRows][];
+    for(int c = 0; c < codes.length; c++) {
+      int length = Math.min(chunkRows, size - c * chunkRows) * quantizer.getNumSubspaces();
+      if(previous == null || c >= previous.codes.length) codes[c] = new byte[length];
+      else if(previous.codes[c].length == length) codes[c] = previous.codes[c];
+      else codes[c] = Arrays.copyOf(previous.codes[c], length);
+    }
+  }
+
+  /**
+   * Train codebooks on a random sample of the store and encode all sentences.
+   */
+  public static QuantizedVectorIndex build(CorpusVectorStore store, Projection projection) {
+    return build(store, projection, ProductQuantizer.DEFAULT_SUBSPACE_SIZE, DEFAULT_SAMPLE_SIZE, DEFAULT_ITERATIONS);
+  }
+
+  public static QuantizedVectorIndex build(CorpusVectorStore store, Projection projection, int subspaceSize, int sampleSize, int iterations) {
+    int dim = store.getDimension(projection);
+    int size = store.countSentences();
+    // draw training sample
+    Random random = new Random(42);
+    int numSamples = Math.min(sampleSize, size);
+    float[] sample = new float[numSamples * dim];
+    for(int i = 0; i < numSamples; i++) {
+      int row = numSamples == size ? i : random.nextInt(size);
+      System.arraycopy(store.getSentenceVectors(projection, row, row + 1), 0, sample, i * dim, dim);
+    }
+    ProductQuantizer quantizer = new ProductQuantizer(dim, Math.max(1, dim / subspaceSize));
+    if(numSamples > 0) quantizer.train(sample, iterations);
+    QuantizedVectorIndex index = new QuantizedVectorIndex(store, projection, quantizer);
+    index.encode(0, size);
+    log.info("encoded {} sentences into {} bytes per vector ({}x compression)", size, quantizer.getNumSubspaces(), dim * Float.BYTES / quantizer.getNumSubspaces());
+    return index;
+  }
+
+  /**
+   * Create an index over a store whose sentences start with the sentences of this index, e.g. after
+   * CorpusVectorStore.update(). Only the appended sentences are encoded with the trained codebooks.
+   */
+  public QuantizedVectorIndex extend(CorpusVectorStore store) {
+    if(store.countSentences() < size)
+      throw new IllegalArgumentException("expected a store that starts with the " + size + " sentences of the index");
+    if(!quantizer.isTrained()) return build(store, projection);
+    QuantizedVectorIndex index = new QuantizedVectorIndex(store, projection, quantizer, this);
+    index.encode(size, index.size);
+    log.info("encoded {} appended sentences", index.size - size);
+    return index;
+  }
+
+  /**
+   * Encode the sentences [begin, end) of the store, in blocks that do not cross chunks.
+   */
+  protected void encode(int begin, int end) {
+    while(begin < end) {
+      int chunk = begin / chunkRows;
+      int stop = Math.min(end, Math.min(begin + ENCODE_BLOCK_SIZE, (chunk + 1) * chunkRows));
+      quantizer.encode(store.getSentenceVectors(projection, begin, stop), codes[chunk], begin - chunk * chunkRows);
+      begin = stop;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Find the k most similar sentences to q.
+   * @param numApproximate number of candidates from the approximate scan that are re-ranked exactly
+   * @return sentence rows in descending order of exact similarity
+   */
+  public int[] search(float[] q, int k, int numApproximate) {
+    if(size == 0) return new int[0];
+    float[] table = quantizer.getDistanceTable(q);
+    // approximate scan, keep the best candidates in a min-heap
+    int capacity = Math.min(Math.max(k, numApproximate), size);
+    int[] heapRows = new int[capacity];
+    float[] heapScores = new float[capacity];
+    int count = 0;
+    for(int row = 0; row < size; row++) {
+      float score = quantizer.score(table, codes[row / chunkRows], row % chunkRows);
+      if(count < capacity) {
+        heapRows[count] = row;
+        heapScores[count] = score;
+        siftUp(heapRows, heapScores, count++);
+      } else if(score > heapScores[0]) {
+        heapRows[0] = row;
+        heapScores[0] = score;
+        siftDown(heapRows, heapScores, count);
+      }
+    }
+    // exact re-ranking
+    int[] rows = Arrays.copyOf(heapRows, count);
+    float[] exact = store.scoreSentences(projection, rows, q);
+    Integer[] order = new Integer[count];
+    for(int i = 0; i < count; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Float.compare(exact[b], exact[a]));
+    int[] result = new int[Math.min(k, count)];
+    for(int i = 0; i < result.length; i++) result[i] = rows[order[i]];
+    return result;
+  }
+
+  protected static void siftUp(int[] rows, float[] scores, int i) {
+    while(i > 0) {
+      int parent = (i - 1) / 2;
+      if(scores[parent] <= scores[i]) break;
+      swap(rows, scores, i, parent);
+      i = parent;
+    }
+  }
+
+  protected static void siftDown(int[] rows, float[] scores, int count) {
+    int i = 0;
+    while(true) {
+      int left = 2 * i + 1, right = left + 1, min = i;
+      if(left < count && scores[left] < scores[min]) min = left;
+      if(right < count && scores[right] < scores[min]) min = right;
+      if(min == i) break;
+      swap(rows, scores, i, min);
+      i = min;
+    }
+  }
+
+  protected static void swap(int[] rows, float[] scores, int i, int j) {
+    int r = rows[i]; rows[i] = rows[j]; rows[j] = r;
+    float s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+  }
+
+}
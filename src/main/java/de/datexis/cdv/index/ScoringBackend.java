@@ -0,0 +1,46 @@
+package de.datexis.cdv.index;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Computes inner products of a query vector with rows of a sentence matrix. The backend is selected with the
+ * system property cdv.scoring.backend (ND4J or JAVA) and can be changed per CorpusVectorStore.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public interface ScoringBackend {
+
+  String PROPERTY = "cdv.scoring.backend";
+
+  /**
+   * @param matrix row-wise sentence matrix [sentences x dim]
+   * @return inner products of q with the rows [begin, end)
+   */
+  float[] score(INDArray matrix, int begin, int end, float[] q);
+
+  /**
+   * @param buffer the same matrix wrapped once by FloatBufferMatrix.wrap(matrix, 0, rows), or null
+   * @return inner products of q with the rows [begin, end)
+   */
+  default float[] score(INDArray matrix, FloatBufferMatrix buffer, int begin, int end, float[] q) {
+    return score(matrix, begin, end, q);
+  }
+
+  /**
+   * @return the backend with the given name, which is either ND4J or JAVA
+   */
+  static ScoringBackend forName(String name) {
+    switch(name.trim().toUpperCase()) {
+      case "ND4J": return Nd4jScoringBackend.INSTANCE;
+      case "JAVA": return JavaScoringBackend.INSTANCE;
+      default: throw new IllegalArgumentException("unknown scoring backend '" + name + "'");
+    }
+  }
+
+  /**
+   * @return the backend selected by the system property, ND4J by default
+   */
+  static ScoringBackend getDefault() {
+    return forName(System.getProperty(PROPERTY, "ND4J"));
+  }
+
+}
@@ -0,0 +1,24 @@
+package de.datexis.cdv.index;
+
+/**
+ * Read access to the rows of a row-wise vector matrix [rows x dim], so that indexes can work on the vectors of
+ * a CorpusVectorStore in whatever form they are kept, without copying them to the heap.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public interface VectorRows {
+
+  int rows();
+
+  int dim();
+
+  /**
+   * @return inner product of q (starting at qOffset) with the given row
+   */
+  float dot(int row, float[] q, int qOffset);
+
+  /**
+   * Copy a row into dst, starting at dstOffset.
+   */
+  void getRow(int row, float[] dst, int dstOffset);
+
+}
@@ -20,6 +20,9 @@ public class EntityAspectQueryAnnotation extends Annotation {
   protected String aspect;
   protected String aspectHeading;
   
+  /** TRUE if the results of this query were cut off at a deadline */
+  protected boolean partial = false;
+  
 //  protected String focusType;
 //  protected Set<String> focusSynonyms;
 //
@@ -84,6 +87,16 @@ public class EntityAspectQueryAnnotation extends Annotation {
     this.aspectHeading = aspectHeading;
   }
   
+  @JsonIgnore
+  public boolean isPartial() {
+    return partial;
+  }
+  
+  @JsonIgnore
+  public void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+  
   @JsonIgnore
   public boolean hasEntity() {
     return entity != null && !entity.trim().isEmpty();
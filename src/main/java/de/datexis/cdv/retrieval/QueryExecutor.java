@@ -0,0 +1,301 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.common.Timer;
+import de.datexis.model.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes Queries of a QueryRunner on a dedicated ForkJoinPool. Each Query is a task that is split into chunks
+ * of candidate Documents, so that small candidate sets are parallelized over Queries and large candidate sets
+ * over Documents. Single Queries can be run asynchronously with a deadline, after which the results that were
+ * collected so far are returned.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class QueryExecutor implements AutoCloseable {
+  
+  protected final static Logger log = LoggerFactory.getLogger(QueryExecutor.class);
+  
+  /** minimum number of Documents that are retrieved in a single task */
+  public final static int MIN_CHUNK_SIZE = 16;
+  
+  /** number of chunks per worker thread that a large candidate set is split into */
+  protected final static int CHUNKS_PER_THREAD = 4;
+  
+  protected final QueryRunner runner;
+  protected final ForkJoinPool pool;
+  
+  /** timer thread for deadlines of asynchronous Queries, created on first use */
+  protected ScheduledExecutorService scheduler;
+  
+  protected long numQueries = 0;
+  protected long elapsed = 0;
+  
+  public QueryExecutor(QueryRunner runner) {
+    this(runner, Runtime.getRuntime().availableProcessors());
+  }
+  
+  public QueryExecutor(QueryRunner runner, int parallelism) {
+    this.runner = runner;
+    this.pool = new ForkJoinPool(Math.max(1, parallelism));
+  }
+  
+  /**
+   * Retrieve all given Queries with the given candidate strategy and wait until they are finished. Queries
+   * with the same query vectors and candidates are only retrieved once and share their results.
+   */
+  public void retrieveAll(Collection<Query> queries, QueryRunner.Candidates candidates) {
+    final Timer timer = new Timer();
+    timer.start();
+    final AtomicInteger finished = new AtomicInteger();
+    final int count = queries.size();
+    Collection<List<Query>> groups = coalesce(queries, candidates);
+    log.info("Retrieving {} queries ({} unique) with {} candidates on {} threads...", count, groups.size(), candidates, pool.getParallelism());
+    List<QueryTask> tasks = new ArrayList<>(groups.size());
+    for(List<Query> group : groups) {
+      tasks.add(new QueryTask(group, candidates, finished, count));
+    }
+    pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        invokeAll(tasks);
+      }
+    });
+    long time = timer.getLong();
+    numQueries += count;
+    elapsed += time;
+    log.info("Finished {} queries [{}, {} q/s]", count, Timer.millisToLongDHMS(time), String.format("%.2f", getQueriesPerSecond(count, time)));
+    runner.logCacheStats();
+  }
+  
+  /**
+   * Retrieve a Query asynchronously. If the deadline expires before all candidates are scored, the remaining
+   * Documents are cancelled and the Query is completed with the results found so far, flagged as partial.
+   * Cancelling the returned future also cancels all remaining Documents.
+   * @param deadline maximum time until the Query is completed, or null to wait for all candidates
+   */
+  public CompletableFuture<Query> retrieveAsync(Query query, QueryRunner.Candidates candidates, Duration deadline) {
+    final AsyncQueryTask task = createTask(query, candidates, true);
+    if(deadline != null) {
+      ScheduledFuture<?> timeout = getScheduler().schedule(task::expire, deadline.toNanos(), TimeUnit.NANOSECONDS);
+      task.future.whenComplete((q, e) -> timeout.cancel(false));
+    }
+    task.future.whenComplete((q, e) -> {
+      if(task.future.isCancelled()) task.cancelled.set(true);
+    });
+    pool.execute(task);
+    return task.future;
+  }
+  
+  /**
+   * @param attach TRUE to add the results to the Query on completion, otherwise they are only kept in the task
+   */
+  protected AsyncQueryTask createTask(Query query, QueryRunner.Candidates candidates, boolean attach) {
+    return new AsyncQueryTask(query, candidates, attach);
+  }
+  
+  protected void execute(AsyncQueryTask task) {
+    pool.execute(task);
+  }
+  
+  /**
+   * @return groups of Queries that have the same results, in the order of their first Query
+   */
+  protected Collection<List<Query>> coalesce(Collection<Query> queries, QueryRunner.Candidates candidates) {
+    Map<Object, List<Query>> groups = new LinkedHashMap<>();
+    for(Query query : queries) {
+      String key = runner.getCoalescingKey(query, candidates);
+      // Queries without key get a group of their own, which is only equal to itself
+      groups.computeIfAbsent(key != null ? key : new Object(), k -> new ArrayList<>()).add(query);
+    }
+    return groups.values();
+  }
+  
+  protected synchronized ScheduledExecutorService getScheduler() {
+    if(scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "query-deadline");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return scheduler;
+  }
+  
+  /**
+   * @return the throughput over all Queries that were executed so far
+   */
+  public double getQueriesPerSecond() {
+    return getQueriesPerSecond(numQueries, elapsed);
+  }
+  
+  protected static double getQueriesPerSecond(long queries, long millis) {
+    return millis > 0 ? queries * 1000. / millis : 0.;
+  }
+  
+  /**
+   * @return the number of candidate Documents that are retrieved in a single task
+   */
+  protected int getChunkSize(int numDocs) {
+    int chunks = pool.getParallelism() * CHUNKS_PER_THREAD;
+    return Math.max(MIN_CHUNK_SIZE, (numDocs + chunks - 1) / chunks);
+  }
+  
+  public int getParallelism() {
+    return pool.getParallelism();
+  }
+  
+  @Override
+  public synchronized void close() {
+    pool.shutdown();
+    if(scheduler != null) scheduler.shutdownNow();
+  }
+  
+  /**
+   * Plans a Query, retrieves all chunks of its candidates and adds the results to the Query and all other Queries
+   * of its group.
+   */
+  protected class QueryTask extends RecursiveAction {
+    
+    protected final List<Query> group;
+    protected final QueryRunner.Candidates candidates;
+    protected final AtomicInteger finished;
+    protected final int count;
+    
+    protected QueryTask(List<Query> group, QueryRunner.Candidates candidates, AtomicInteger finished, int count) {
+      this.group = group;
+      this.candidates = candidates;
+      this.finished = finished;
+      this.count = count;
+    }
+    
+    @Override
+    protected void compute() {
+      Query query = group.get(0);
+      QueryRunner.QueryPlan plan = runner.planQuery(query, candidates);
+      if(plan != null) {
+        TopKCollector results = runner.createCollector();
+        int size = plan.docs.size();
+        int chunkSize = getChunkSize(size);
+        if(plan.rankPassages) {
+          runner.retrieveRankedPassages(plan, results);
+        } else if(size <= chunkSize) {
+          runner.retrieveDocuments(plan, results, 0, size);
+        } else {
+          invokeAll(createChunks(plan, results, null));
+        }
+        // every Query gets its own result annotations, which refer to its own candidates
+        for(Query member : group) runner.addResults(results, member, candidates);
+      }
+      if(log.isDebugEnabled()) {
+        EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+        log.debug("Finished query {}/{} '{}' ({}) - '{}'", finished.addAndGet(group.size()), count, ann.getEntity(), ann.getEntityId(), ann.getAspect());
+      }
+    }
+    
+  }
+  
+  /**
+   * @return tasks that cover all candidate Documents of a plan
+   * @param cancelled flag that stops the tasks before the next Document, or null
+   */
+  protected List<ChunkTask> createChunks(QueryRunner.QueryPlan plan, TopKCollector results, AtomicBoolean cancelled) {
+    int size = plan.docs.size();
+    int chunkSize = getChunkSize(size);
+    List<ChunkTask> chunks = new ArrayList<>();
+    for(int begin = 0; begin < size; begin += chunkSize) {
+      chunks.add(new ChunkTask(plan, results, begin, Math.min(size, begin + chunkSize), cancelled));
+    }
+    return chunks;
+  }
+  
+  /**
+   * Retrieves a Query asynchronously and completes its future either after all candidates were scored or at
+   * the deadline, whichever comes first.
+   */
+  protected class AsyncQueryTask extends RecursiveAction {
+    
+    protected final Query query;
+    protected final QueryRunner.Candidates candidates;
+    protected final CompletableFuture<Query> future = new CompletableFuture<>();
+    protected final TopKCollector results = runner.createCollector();
+    protected final AtomicBoolean cancelled = new AtomicBoolean(false);
+    protected final AtomicBoolean finished = new AtomicBoolean(false);
+    protected final boolean attach;
+    
+    protected AsyncQueryTask(Query query, QueryRunner.Candidates candidates, boolean attach) {
+      this.query = query;
+      this.candidates = candidates;
+      this.attach = attach;
+    }
+    
+    @Override
+    protected void compute() {
+      try {
+        QueryRunner.QueryPlan plan = runner.planQuery(query, candidates);
+        if(plan != null && !cancelled.get()) {
+          if(plan.rankPassages) runner.retrieveRankedPassages(plan, results, cancelled);
+          else invokeAll(createChunks(plan, results, cancelled));
+        }
+        complete(false);
+      } catch(Throwable e) {
+        if(finished.compareAndSet(false, true)) future.completeExceptionally(e);
+      }
+    }
+    
+    /**
+     * Cancel all remaining Documents and complete the Query with the results found so far.
+     */
+    protected void expire() {
+      cancelled.set(true);
+      if(complete(true)) log.debug("Query '{}' reached its deadline with {} results", query.getText(), results.size());
+    }
+    
+    protected boolean complete(boolean partial) {
+      if(!finished.compareAndSet(false, true)) return false;
+      if(attach) results.addTo(query);
+      EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+      if(ann != null) ann.setPartial(partial);
+      return future.complete(query);
+    }
+    
+  }
+  
+  /**
+   * Retrieves a Query on a range of its candidate Documents.
+   */
+  protected class ChunkTask extends RecursiveAction {
+    
+    protected final QueryRunner.QueryPlan plan;
+    protected final TopKCollector results;
+    protected final int begin, end;
+    protected final AtomicBoolean cancelled;
+    
+    protected ChunkTask(QueryRunner.QueryPlan plan, TopKCollector results, int begin, int end, AtomicBoolean cancelled) {
+      this.plan = plan;
+      this.results = results;
+      this.begin = begin;
+      this.end = end;
+      this.cancelled = cancelled;
+    }
+    
+    @Override
+    protected void compute() {
+      if(cancelled == null) {
+        runner.retrieveDocuments(plan, results, begin, end);
+      } else {
+        for(int d = begin; d < end && !cancelled.get(); d++) {
+          runner.retrieveDocuments(plan, results, d, d + 1);
+        }
+      }
+    }
+    
+  }
+  
+}
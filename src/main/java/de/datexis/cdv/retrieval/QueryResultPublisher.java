@@ -0,0 +1,223 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.common.Timer;
+import de.datexis.model.Query;
+import de.datexis.retrieval.model.ScoredResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the top-k results of a batch of Queries to a single Subscriber as soon as each Query is finished,
+ * following the reactive streams protocol. Queries are only started when the Subscriber requested their results,
+ * so that a slow consumer throttles retrieval and at most the requested results are held in memory. Results are
+ * not added to the Queries themselves.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class QueryResultPublisher {
+
+  protected final static Logger log = LoggerFactory.getLogger(QueryResultPublisher.class);
+
+  /** number of Queries per worker thread that are retrieved at the same time */
+  protected final static int QUERIES_PER_THREAD = 2;
+
+  /**
+   * Receives the results of a QueryResultPublisher. All methods are called sequentially.
+   */
+  public interface Subscriber {
+
+    /** Called once before any other method. Nothing is emitted until results are requested. */
+    void onSubscribe(Subscription subscription);
+
+    /** Called with the results of a finished Query, at most as often as requested. */
+    void onNext(QueryResult result);
+
+    /** Called once if a Query failed. No further results are emitted. */
+    void onError(Throwable error);
+
+    /** Called once after the results of all Queries were emitted. */
+    void onComplete();
+
+  }
+
+  public interface Subscription {
+
+    /** Request the results of n more Queries. */
+    void request(long n);
+
+    /** Stop retrieval of all remaining Queries. */
+    void cancel();
+
+  }
+
+  /**
+   * Top-k results of a single Query in descending order of score.
+   */
+  public static class QueryResult {
+
+    protected final Query query;
+    protected final List<ScoredResult> results;
+
+    protected QueryResult(Query query, List<ScoredResult> results) {
+      this.query = query;
+      this.results = results;
+    }
+
+    public Query getQuery() {
+      return query;
+    }
+
+    public List<ScoredResult> getResults() {
+      return results;
+    }
+
+    /**
+     * Add the results to the Query as PRED ScoredResults, e.g. for evaluation.
+     */
+    public void addToQuery() {
+      for(ScoredResult result : results) query.addResult(result);
+    }
+
+  }
+
+  protected final QueryRunner runner;
+  protected final Iterator<Query> queries;
+  protected final QueryRunner.Candidates candidates;
+  protected final int parallelism;
+
+  protected final AtomicBoolean subscribed = new AtomicBoolean(false);
+  protected Subscriber subscriber;
+  protected QueryExecutor executor;
+  protected final Timer timer = new Timer();
+  protected long count = 0;
+
+  /** finished results that were not emitted yet */
+  protected final Queue<QueryResult> ready = new ConcurrentLinkedQueue<>();
+  /** Queries that are currently retrieved */
+  protected final Set<QueryExecutor.AsyncQueryTask> running = ConcurrentHashMap.newKeySet();
+  /** number of results that were requested but not emitted yet */
+  protected final AtomicLong demand = new AtomicLong();
+  /** number of pending drain() calls, only the first one does the work */
+  protected final AtomicInteger pending = new AtomicInteger();
+  protected volatile boolean cancelled = false;
+  protected volatile Throwable error;
+  protected boolean done = false;
+
+  public QueryResultPublisher(QueryRunner runner, Iterable<Query> queries, QueryRunner.Candidates candidates, int parallelism) {
+    this.runner = runner;
+    this.queries = queries.iterator();
+    this.candidates = candidates;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Start streaming to the given Subscriber. A publisher can only be subscribed once.
+   */
+  public void subscribe(Subscriber subscriber) {
+    if(!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Subscription() {
+        @Override public void request(long n) {}
+        @Override public void cancel() {}
+      });
+      subscriber.onError(new IllegalStateException("QueryResultPublisher was already subscribed"));
+      return;
+    }
+    this.subscriber = subscriber;
+    this.executor = new QueryExecutor(runner, parallelism);
+    timer.start();
+    subscriber.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        if(n <= 0) {
+          fail(new IllegalArgumentException("number of requested results must be positive, but was " + n));
+        } else {
+          demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+        }
+        drain();
+      }
+      @Override
+      public void cancel() {
+        cancelled = true;
+        drain();
+      }
+    });
+  }
+
+  protected void fail(Throwable e) {
+    if(error == null) error = e;
+  }
+
+  /**
+   * Emit finished results, start new Queries for the remaining demand and signal completion. The work is done
+   * by one thread at a time, calls from other threads in the meantime cause another round.
+   */
+  protected void drain() {
+    if(pending.getAndIncrement() != 0) return;
+    do {
+      if(done) return;
+      if(cancelled) {
+        terminate();
+        log.debug("Streaming was cancelled after {} queries", count);
+        return;
+      }
+      if(error != null) {
+        terminate();
+        subscriber.onError(error);
+        return;
+      }
+      // emit
+      while(demand.get() > 0 && !cancelled) {
+        QueryResult result = ready.poll();
+        if(result == null) break;
+        if(demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+        count++;
+        subscriber.onNext(result);
+      }
+      // schedule Queries for the remaining demand
+      int maxRunning = parallelism * QUERIES_PER_THREAD;
+      while(!cancelled && error == null && queries.hasNext() && running.size() < maxRunning && running.size() + ready.size() < demand.get()) {
+        submit(queries.next());
+      }
+      // results are added to ready before the task is removed from running
+      if(!cancelled && error == null && !queries.hasNext() && running.isEmpty() && ready.isEmpty()) {
+        terminate();
+        long time = timer.getLong();
+        log.info("Streamed {} queries [{}, {} q/s]", count, Timer.millisToLongDHMS(time), String.format("%.2f", QueryExecutor.getQueriesPerSecond(count, time)));
+        subscriber.onComplete();
+        return;
+      }
+    } while(pending.decrementAndGet() != 0);
+  }
+
+  protected void submit(Query query) {
+    QueryExecutor.AsyncQueryTask task = executor.createTask(query, candidates, false);
+    running.add(task);
+    task.future.whenComplete((q, e) -> {
+      if(e != null) fail(e);
+      else ready.add(new QueryResult(query, task.results.getResults()));
+      running.remove(task);
+      drain();
+    });
+    executor.execute(task);
+  }
+
+  /**
+   * Stop all running Queries and release the executor. No further signals are sent after this.
+   */
+  protected void terminate() {
+    done = true;
+    for(QueryExecutor.AsyncQueryTask task : running) task.cancelled.set(true);
+    ready.clear();
+    executor.close();
+  }
+
+}
@@ -1,16 +1,31 @@
 package de.datexis.cdv.retrieval;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import de.datexis.cdv.index.AspectIndexBuilder;
+import de.datexis.cdv.index.ConeTreeIndex;
+import de.datexis.cdv.index.CorpusVectorStore;
 import de.datexis.cdv.index.DocumentIndex;
+import de.datexis.cdv.index.EntityDocumentIndex;
+import de.datexis.cdv.index.HNSWIndex;
+import de.datexis.cdv.index.Int8Matrix;
+import de.datexis.cdv.index.PassageIndex;
+import de.datexis.cdv.index.Projection;
+import de.datexis.cdv.index.QuantizedVectorIndex;
 import de.datexis.cdv.index.QueryIndex;
+import de.datexis.cdv.index.ScoringBackend;
 import de.datexis.cdv.model.EntityAspectAnnotation;
-import de.datexis.common.AnnotationHelpers;
+import de.datexis.cdv.tagger.CDVTagger;
+import de.datexis.common.Resource;
 import de.datexis.common.Timer;
-import de.datexis.encoder.IEncoder;
 import de.datexis.model.*;
 import de.datexis.model.impl.PassageAnnotation;
 import de.datexis.retrieval.model.RelevanceResult;
 import de.datexis.retrieval.model.ScoredResult;
 import org.apache.commons.math3.util.FastMath;
+import org.apache.lucene.queryparser.classic.QueryParser;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.ops.transforms.Transforms;
@@ -18,9 +33,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.*;
 
 /**
  * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
@@ -43,32 +70,459 @@ public class QueryRunner {
     /** Take candidates given in query results */
     GIVEN,
     /** Use index to retrieve K candidates */
-    INDEX
+    INDEX,
+    /** Use approximate nearest neighbour search over sentence vectors to retrieve candidates */
+    ANN,
+    /** Use a product-quantized scan with exact re-ranking over sentence vectors to retrieve candidates */
+    PQ,
+    /** Use the Documents with the most similar centroids of their sentence vectors as candidates */
+    CENTROID,
+    /** Use exact cone tree search to retrieve all Documents with a sentence above the passage threshold */
+    THRESHOLD,
+    /** Use BM25 passage search to retrieve candidates and fuse lexical with CDV scores */
+    HYBRID,
+    /** Use the Documents that are annotated with or predicted as the query entity ID */
+    ENTITY
+  }
+  
+  /** Fusion of BM25 and CDV scores in HYBRID candidate mode */
+  public enum Fusion {
+    /** reciprocal rank fusion of both rankings */
+    RRF,
+    /** linear combination of CDV similarity and BM25 score normalized by the best BM25 score */
+    LINEAR
   }
   
   public final static int NUM_CANDIDATES = 64;
   
+  /** number of results that are kept per query by ShardServers and the ShardCoordinator. Evaluation keeps all
+   * results by default, so that rankings are not cut. */
+  public final static int NUM_RESULTS = 1000;
+  
+  /** number of queries that are stacked into a single query matrix in batch mode */
+  public final static int QUERY_BATCH_SIZE = 256;
+  
+  /** number of passages that are ranked at once before a cancelled Query is stopped */
+  public final static int PASSAGE_BLOCK_SIZE = 4096;
+  
+  /** minimum number of sentences that are multiplied at once in batch mode */
+  public final static int SENTENCE_BLOCK_SIZE = 16384;
+  
+  /** number of nearest sentences that are retrieved for ANN candidate generation */
+  public final static int NUM_ANN_SENTENCES = 1024;
+  
+  /** number of sentences from the product-quantized scan that are re-ranked with exact vectors */
+  public final static int NUM_PQ_SENTENCES = 1024;
+  
+  /** number of re-ranked sentences that are used for PQ candidate generation */
+  public final static int NUM_RERANK_SENTENCES = 256;
+  
+  /** number of Documents that are kept after scoring Document centroids */
+  public final static int NUM_CENTROID_DOCUMENTS = 256;
+  
+  /** default similarity that starts a passage in SENTENCE_THRESHOLD strategy */
+  public final static double THRESHOLD_IN = 0.8;
+  
+  /** default similarity below which a passage ends in SENTENCE_THRESHOLD strategy */
+  public final static double THRESHOLD_OUT = 0.6;
+  
+  /** number of BM25 passages that are fused with CDV scores in HYBRID mode */
+  public final static int NUM_HYBRID_PASSAGES = 256;
+  
+  /** minimum similarity of a sentence to its most similar entity to be indexed for that entity */
+  public final static double ENTITY_PREDICTION_THRESHOLD = 0.5;
+  
+  /** rank offset for reciprocal rank fusion */
+  public final static int RRF_K = 60;
+  
+  /** slack below the passage threshold for exact candidate search, to cover rounding differences in scoring */
+  protected final static double THRESHOLD_TOLERANCE = 1e-4;
+  
+  /** maximum number of entity and aspect vectors that are cached each */
+  public final static int QUERY_CACHE_SIZE = 16384;
+  
   Dataset corpus;
   QueryIndex entityIndex, aspectIndex;
   Strategy strategy;
+  /** Lucene index for INDEX candidates, created on first use */
   DocumentIndex index;
+  /** inverted entity index for ENTITY candidates, created on first use */
+  volatile EntityDocumentIndex entityDocumentIndex;
+  /** Lucene passage index for HYBRID candidates, created on first use */
+  PassageIndex passageIndex;
+  Fusion fusion = Fusion.RRF;
+  /** weight of CDV scores in LINEAR fusion */
+  double fusionWeight = 0.5;
+  /** directory to load the Lucene index from or to write it to, or null to keep it in memory */
+  Resource indexPath;
+  /** directory for float matrices that are paged out once a product-quantized index is built, or null */
+  Resource pageOutPath;
+  /** number of matrices paged out so far, which keeps file names unique across store updates */
+  protected final AtomicInteger pageOutCount = new AtomicInteger();
+  /** current vector store, which is replaced as a whole on updates */
+  volatile CorpusVectorStore store;
+  int maxResults = 0;
+  int parallelism = Runtime.getRuntime().availableProcessors();
+  double thresIn = THRESHOLD_IN, thresOut = THRESHOLD_OUT;
+  /** query vectors, keyed by entity ID and name or by preprocessed aspect key, shared by all threads */
+  protected final Cache<String, INDArray> entityCache = CacheBuilder.newBuilder().maximumSize(QUERY_CACHE_SIZE).recordStats().build();
+  protected final Cache<String, INDArray> aspectCache = CacheBuilder.newBuilder().maximumSize(QUERY_CACHE_SIZE).recordStats().build();
+  /** sentence indexes per vector store, for the current and the previous store after an update. Each index
+   * is built once by the first Query that needs it, other Queries wait on its future. */
+  protected final Map<CorpusVectorStore, Map<Projection, CompletableFuture<HNSWIndex>>> annIndex = new IdentityHashMap<>();
+  protected final Map<CorpusVectorStore, Map<Projection, CompletableFuture<QuantizedVectorIndex>>> pqIndex = new IdentityHashMap<>();
+  protected final Map<CorpusVectorStore, Map<Projection, CompletableFuture<ConeTreeIndex>>> exactIndex = new IdentityHashMap<>();
+  /** IDs of removed Documents that may still be contained in the current store */
+  protected final Set<String> removedIds = ConcurrentHashMap.newKeySet();
+  /** tagger that encodes added Documents */
+  protected CDVTagger tagger;
+  /** single thread that applies corpus updates in order, created on first use */
+  protected ExecutorService updateExecutor;
   protected Timer timer = new Timer();
+  /** executor for asynchronous Queries, created on first use */
+  protected QueryExecutor asyncExecutor;
   
   public QueryRunner(Dataset corpus, QueryIndex entityIndex, QueryIndex aspectIndex) {
     this(corpus, entityIndex, aspectIndex, Strategy.SENTENCE_THRESHOLD);
   }
   
   public QueryRunner(Dataset corpus, QueryIndex entityIndex, QueryIndex aspectIndex, Strategy strategy)  {
+    this(corpus, null, entityIndex, aspectIndex, strategy);
+  }
+  
+  /**
+   * Create a QueryRunner that reads all sentence vectors from the given store instead of the Documents.
+   */
+  public QueryRunner(Dataset corpus, CorpusVectorStore store, QueryIndex entityIndex, QueryIndex aspectIndex, Strategy strategy)  {
     this.corpus = corpus;
+    this.store = store;
     this.entityIndex = entityIndex;
     this.aspectIndex = aspectIndex;
     this.strategy = strategy;
-    this.index = new DocumentIndex();
-    try {
-      index.createInMemoryIndex(corpus);
-    } catch(IOException e) {
-      e.printStackTrace();
+  }
+  
+  /**
+   * Keep the Lucene index for INDEX candidates in the given directory. An existing index is loaded from there,
+   * otherwise it is created from the corpus. Has to be called before the first Query.
+   */
+  public void setIndexPath(Resource indexPath) {
+    this.indexPath = indexPath;
+  }
+  
+  /**
+   * Page out the float matrix of every projection that gets a product-quantized index to a memory-mapped file
+   * in the given directory, so that only the PQ codes are kept in memory and exact vectors are read from disk.
+   * The memory is not released while an ANN or THRESHOLD index of the projection reads from the matrix.
+   * Disabled by default.
+   */
+  public void setPageOutPath(Resource pageOutPath) {
+    this.pageOutPath = pageOutPath;
+  }
+  
+  /**
+   * Precompute the similarities of all aspects of the dataset and of all Queries with every sentence in the
+   * store. Aspect-only Queries then become lookups, and combined Queries only compute the entity projection.
+   */
+  public void buildAspectHeatmaps() {
+    Dataset queries = getQueryCorpus();
+    Set<String> aspects = new LinkedHashSet<>(AspectIndexBuilder.getAspectKeys(queries.getName()));
+    for(Query query : queries.getQueries()) {
+      EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+      if(ann != null && ann.hasAspect()) aspects.add(ann.getAspect());
+    }
+    buildAspectHeatmaps(aspects);
+  }
+  
+  /**
+   * @return the Dataset whose name and Queries define the aspects and entities that are precomputed, which is
+   * the corpus itself unless it is a part of a larger corpus
+   */
+  protected Dataset getQueryCorpus() {
+    return corpus;
+  }
+  
+  /**
+   * Precompute the similarities of the given aspects with every sentence in the store.
+   */
+  public void buildAspectHeatmaps(Collection<String> aspects) {
+    if(store == null || aspectIndex == null) return;
+    Map<String, INDArray> vectors = new LinkedHashMap<>();
+    for(String aspect : aspects) {
+      EntityAspectQueryAnnotation ann = new EntityAspectQueryAnnotation(null, aspect);
+      INDArray qa = lookupAspect(ann);
+      if(qa != null) vectors.put(getAspectKey(ann), qa);
     }
+    store.buildAspectHeatmaps(vectors);
+  }
+  
+  /**
+   * Set the fusion of BM25 and CDV scores in HYBRID mode.
+   * @param weight weight of the CDV score in LINEAR fusion, the BM25 score gets 1 - weight
+   */
+  public void setFusion(Fusion fusion, double weight) {
+    this.fusion = fusion;
+    this.fusionWeight = weight;
+  }
+  
+  /**
+   * @return the inverted index from entity IDs to Documents, which is created on first use from the GOLD
+   * entity annotations and the predicted entity of every sentence in the store. The index is built without
+   * holding the lock, so that other Queries are not blocked, and only published if the store was not swapped.
+   */
+  protected EntityDocumentIndex getEntityDocumentIndex() {
+    EntityDocumentIndex index = entityDocumentIndex;
+    if(index == null) {
+      final CorpusVectorStore store = this.store;
+      index = new EntityDocumentIndex();
+      index.addAnnotations(store != null ? store.getDocuments() : corpus.getDocuments());
+      if(store != null && entityIndex != null) {
+        // predict among all known entities of the corpus and the Queries
+        Set<String> ids = new HashSet<>(index.getEntityIds());
+        for(Query query : getQueryCorpus().getQueries()) {
+          EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+          if(ann != null && ann.getEntityId() != null) ids.add(ann.getEntityId());
+        }
+        Map<String, INDArray> vectors = new HashMap<>();
+        for(String id : ids) {
+          INDArray vec = entityIndex.lookup(id);
+          if(vec != null) vectors.put(id, vec);
+        }
+        index.addPredictions(store, vectors, ENTITY_PREDICTION_THRESHOLD);
+      }
+      synchronized(this) {
+        if(entityDocumentIndex == null && this.store == store) entityDocumentIndex = index;
+      }
+    }
+    return index;
+  }
+  
+  /**
+   * @return the Lucene index over all passages, which is created on first use
+   */
+  protected synchronized PassageIndex getPassageIndex() {
+    if(passageIndex == null) {
+      PassageIndex index = new PassageIndex();
+      try {
+        index.createInMemoryIndex(corpus);
+        // add Documents that were added to the store after construction, removed ones are filtered on search
+        List<Document> added = getAddedDocuments();
+        if(!added.isEmpty()) index.updateDocuments(added);
+      } catch(IOException e) {
+        throw new IllegalStateException("could not create passage index", e);
+      }
+      passageIndex = index;
+    }
+    return passageIndex;
+  }
+  
+  /**
+   * @return the Lucene index over all Documents, which is loaded or created on first use
+   */
+  protected synchronized DocumentIndex getDocumentIndex() {
+    if(index == null) {
+      DocumentIndex index = new DocumentIndex();
+      try {
+        if(indexPath != null && DocumentIndex.exists(indexPath)) {
+          log.info("Loading document index from '{}'...", indexPath.toString());
+          index.loadModel(indexPath);
+        } else if(indexPath != null) {
+          index.createIndex(corpus, indexPath);
+          index.loadModel(indexPath);
+        } else {
+          index.createInMemoryIndex(corpus);
+        }
+        // add Documents that were added to the store after construction, removed ones are filtered on search.
+        // They only go to an in-memory copy, so that a persisted index is loaded unchanged the next time.
+        List<Document> added = getAddedDocuments();
+        if(!added.isEmpty()) index.updateDocuments(added);
+      } catch(IOException e) {
+        throw new IllegalStateException("could not create document index", e);
+      }
+      this.index = index;
+    }
+    return index;
+  }
+  
+  /**
+   * @return all Documents in the store that were added after construction and are not in the corpus
+   */
+  protected List<Document> getAddedDocuments() {
+    CorpusVectorStore store = this.store;
+    if(store == null) return Collections.emptyList();
+    Set<String> ids = corpus.getDocuments().stream().map(Document::getId).collect(Collectors.toSet());
+    return store.getDocuments().stream()
+      .filter(doc -> doc.getId() != null && !ids.contains(doc.getId()))
+      .collect(Collectors.toList());
+  }
+  
+  /**
+   * @return all Documents of the corpus, in the order of the vector store if available
+   */
+  public Collection<Document> getDocuments() {
+    CorpusVectorStore store = this.store;
+    return store != null ? store.getDocuments() : corpus.getDocuments();
+  }
+  
+  public CorpusVectorStore getVectorStore() {
+    return store;
+  }
+  
+  /**
+   * Set the number of results that are kept per query, or 0 to keep all results (default).
+   */
+  public void setMaxResults(int maxResults) {
+    this.maxResults = maxResults;
+  }
+  
+  /**
+   * Select the backend that scores Queries against the in-memory matrices of the vector store. The default is
+   * given by the system property cdv.scoring.backend.
+   */
+  public void setScoringBackend(ScoringBackend backend) {
+    CorpusVectorStore store = this.store;
+    if(store != null) store.setScoringBackend(backend);
+  }
+  
+  /**
+   * Set the number of worker threads that are used by retrieveAllQueries().
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+  
+  /**
+   * Set the similarities that start and end a passage in SENTENCE_THRESHOLD strategy.
+   */
+  public void setThresholds(double thresIn, double thresOut) {
+    this.thresIn = thresIn;
+    this.thresOut = thresOut;
+  }
+  
+  protected TopKCollector createCollector() {
+    return new TopKCollector(maxResults);
+  }
+  
+  /**
+   * Set the tagger that encodes Documents added with addDocuments().
+   */
+  public void setTagger(CDVTagger tagger) {
+    this.tagger = tagger;
+  }
+  
+  /**
+   * Encode and add Documents to the corpus in the background. Documents that have the ID of an existing
+   * Document replace it. Queries keep running on the previous vector store until the new one is swapped in.
+   * @return a future that completes when the Documents are searchable
+   */
+  public CompletableFuture<Void> addDocuments(Collection<Document> docs) {
+    if(tagger == null) throw new IllegalStateException("adding Documents requires a CDVTagger, see setTagger()");
+    if(store == null) throw new IllegalStateException("adding Documents requires a CorpusVectorStore");
+    final List<Document> added = new ArrayList<>(docs);
+    return CompletableFuture.runAsync(() -> {
+      log.info("Encoding {} added documents...", added.size());
+      CorpusVectorStore encoded = tagger.encodeCorpusVectorStore(added);
+      Set<String> ids = added.stream().map(Document::getId).filter(Objects::nonNull).collect(Collectors.toSet());
+      try {
+        DocumentIndex index = this.index;
+        if(index != null) index.updateDocuments(added);
+        PassageIndex passageIndex = this.passageIndex;
+        if(passageIndex != null) passageIndex.updateDocuments(added);
+      } catch(IOException e) {
+        throw new IllegalStateException("could not update document index", e);
+      }
+      swapStore(store.update(encoded, ids));
+      removedIds.removeAll(ids);
+    }, getUpdateExecutor());
+  }
+  
+  /**
+   * Remove Documents from the corpus. They are excluded from all results immediately and marked as deleted in
+   * the vector store in the background.
+   * @return a future that completes when the Documents are removed from the vector store
+   */
+  public CompletableFuture<Void> removeDocuments(Collection<String> ids) {
+    if(store == null) throw new IllegalStateException("removing Documents requires a CorpusVectorStore");
+    final Set<String> removed = new HashSet<>(ids);
+    removedIds.addAll(removed);
+    return CompletableFuture.runAsync(() -> {
+      try {
+        DocumentIndex index = this.index;
+        if(index != null) index.deleteDocuments(removed);
+        PassageIndex passageIndex = this.passageIndex;
+        if(passageIndex != null) passageIndex.deleteDocuments(removed);
+      } catch(IOException e) {
+        throw new IllegalStateException("could not update document index", e);
+      }
+      swapStore(store.update(null, removed));
+    }, getUpdateExecutor());
+  }
+  
+  /**
+   * @return true if the Document was removed from the corpus but may still be contained in the vector store
+   */
+  protected boolean isRemoved(Document doc) {
+    return !removedIds.isEmpty() && doc.getId() != null && removedIds.contains(doc.getId());
+  }
+  
+  /**
+   * Extend all sentence indexes of the current store to a new store and replace it. Running Queries finish
+   * on the store they started with.
+   */
+  protected void swapStore(CorpusVectorStore updated) {
+    CorpusVectorStore previous = store;
+    Map<Projection, CompletableFuture<HNSWIndex>> previousAnn;
+    Map<Projection, CompletableFuture<QuantizedVectorIndex>> previousPq;
+    Map<Projection, CompletableFuture<ConeTreeIndex>> previousExact;
+    synchronized(this) {
+      previousAnn = new HashMap<>(annIndex.getOrDefault(previous, Collections.emptyMap()));
+      previousPq = new HashMap<>(pqIndex.getOrDefault(previous, Collections.emptyMap()));
+      previousExact = new HashMap<>(exactIndex.getOrDefault(previous, Collections.emptyMap()));
+    }
+    // insert appended sentences without holding the lock, so that Queries are not blocked.
+    // Indexes that are still built for the previous store are awaited, failed ones are built again on next use.
+    Map<Projection, CompletableFuture<HNSWIndex>> ann = new EnumMap<>(Projection.class);
+    Map<Projection, CompletableFuture<QuantizedVectorIndex>> pq = new EnumMap<>(Projection.class);
+    Map<Projection, CompletableFuture<ConeTreeIndex>> exact = new EnumMap<>(Projection.class);
+    for(Map.Entry<Projection, CompletableFuture<HNSWIndex>> e : previousAnn.entrySet()) {
+      HNSWIndex index = awaitIndex(e.getValue());
+      if(index != null) ann.put(e.getKey(), CompletableFuture.completedFuture(index.extend(updated.getVectorRows(e.getKey()))));
+    }
+    for(Map.Entry<Projection, CompletableFuture<QuantizedVectorIndex>> e : previousPq.entrySet()) {
+      QuantizedVectorIndex index = awaitIndex(e.getValue());
+      if(index == null) continue;
+      pq.put(e.getKey(), CompletableFuture.completedFuture(index.extend(updated)));
+      // only appended segments, the segments of the previous store are still read by running Queries
+      if(previous.isPagedOut(e.getKey())) pageOut(updated, e.getKey(), previous.countSegments());
+    }
+    for(Map.Entry<Projection, CompletableFuture<ConeTreeIndex>> e : previousExact.entrySet()) {
+      ConeTreeIndex index = awaitIndex(e.getValue());
+      if(index != null) exact.put(e.getKey(), CompletableFuture.completedFuture(index.extend(updated.getVectorRows(e.getKey()))));
+    }
+    synchronized(this) {
+      // keep indexes of the previous store for Queries that are still running on it
+      annIndex.keySet().removeIf(s -> s != previous);
+      pqIndex.keySet().removeIf(s -> s != previous);
+      exactIndex.keySet().removeIf(s -> s != previous);
+      annIndex.put(updated, ann);
+      pqIndex.put(updated, pq);
+      exactIndex.put(updated, exact);
+    }
+    store = updated;
+    synchronized(this) {
+      entityDocumentIndex = null; // rebuilt on next use
+    }
+    log.info("Updated vector store to {} documents with {} sentences", updated.getDocuments().size(), updated.countSentences());
+  }
+  
+  protected synchronized ExecutorService getUpdateExecutor() {
+    if(updateExecutor == null) {
+      updateExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "corpus-update");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return updateExecutor;
   }
   
   /**
@@ -79,26 +533,39 @@ public class QueryRunner {
   }
   
   /**
-   * Retrieve all Queries with given candidate strategy.
+   * Retrieve all Queries with given candidate strategy. Queries and their candidate Documents are scheduled
+   * together on a QueryExecutor.
    */
   public void retrieveAllQueries(Candidates candidateStrategy) {
-    final Timer timer = new Timer();
-    timer.start();
-    AtomicInteger i = new AtomicInteger();
-    long count = corpus.countQueries();
-    //timer.setSplit("query")
-    log.info("Retrieving {} queries on {} documents...", count, corpus.countDocuments());
-    corpus.getQueries().stream()
-      //.parallel() // we're already parallelizing over documents, which should be enough
-      .forEach(q -> {
-        EntityAspectQueryAnnotation ann = q.getAnnotation(EntityAspectQueryAnnotation.class);
-        if(candidateStrategy.equals(Candidates.GIVEN)) retrieveQueryFromCandidates(q);
-        else if(candidateStrategy.equals(Candidates.INDEX)) retrieveQueryFromIndex(q);
-        else retrieveQuery(q);
-        log.info("Finished query {}/{} '{}' ({}) - '{}' [{}]", i.incrementAndGet(), count, ann.getEntity(), ann.getEntityId(), ann.getAspect(), Timer.millisToLongDHMS(timer.setSplit("query")));
-      });
-    long elapsed = timer.getLong();
-    log.info("Finished {} queries on {} documents... [{}, {}/q]", count, corpus.countDocuments(), Timer.millisToLongDHMS(elapsed), Timer.millisToLongDHMS(elapsed / count));
+    try(QueryExecutor executor = new QueryExecutor(this, parallelism)) {
+      executor.retrieveAll(corpus.getQueries(), candidateStrategy);
+    }
+  }
+  
+  /**
+   * Stream the results of all Queries with given candidate strategy. Queries are retrieved as the subscriber
+   * requests their results, which are not added to the Queries.
+   */
+  public QueryResultPublisher publishAllQueries(Candidates candidateStrategy) {
+    return publishQueries(corpus.getQueries(), candidateStrategy);
+  }
+  
+  public QueryResultPublisher publishQueries(Iterable<Query> queries, Candidates candidateStrategy) {
+    return new QueryResultPublisher(this, queries, candidateStrategy, parallelism);
+  }
+  
+  /**
+   * Retrieve a Query asynchronously with given candidate strategy. If the deadline expires, the Query is
+   * completed with the results found so far and flagged as partial (see EntityAspectQueryAnnotation.isPartial()).
+   * @param deadline maximum time until the Query is completed, or null to wait for all candidates
+   */
+  public CompletableFuture<Query> retrieveAsync(Query query, Candidates candidateStrategy, Duration deadline) {
+    return getAsyncExecutor().retrieveAsync(query, candidateStrategy, deadline);
+  }
+  
+  protected synchronized QueryExecutor getAsyncExecutor() {
+    if(asyncExecutor == null) asyncExecutor = new QueryExecutor(this, parallelism);
+    return asyncExecutor;
   }
   
   /**
@@ -124,34 +591,436 @@ public class QueryRunner {
    * Retrieve Query on the whole corpus.
    */
   public Query retrieveQuery(Query query) {
-    return retrieveQueryFromDocs(query, corpus.getDocuments());
+    return retrieveQueryFromDocs(query, getDocuments());
   }
   
   /**
    * Retrieve Query only using the given candidates.
    */
   public Query retrieveQueryFromCandidates(Query query) {
-    Collection<RelevanceResult> candidates = query.getResults(Annotation.Source.GOLD, RelevanceResult.class);
-    candidates.addAll(query.getResults(Annotation.Source.SILVER, RelevanceResult.class));
-    Set<Document> docs = new HashSet<>();
-    for(Result r : candidates) {
-      docs.add(r.getDocumentRef());
-    }
-    query = retrieveQueryFromDocs(query, docs, candidates);
-    return query;
+    return retrieveQuery(planQuery(query, Candidates.GIVEN), query);
   }
   
   /**
    * Retrieve Query only using the document index.
    */
   public Query retrieveQueryFromIndex(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.INDEX), query);
+  }
+  
+  /**
+   * Retrieve Query only on Documents that contain the nearest sentences in the HNSW index.
+   */
+  public Query retrieveQueryFromNearestNeighbours(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.ANN), query);
+  }
+  
+  /**
+   * Retrieve Query only on Documents that contain the best sentences in the product-quantized index.
+   */
+  public Query retrieveQueryFromQuantizedIndex(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.PQ), query);
+  }
+  
+  /**
+   * Encode a Query and select its candidate Documents.
+   * @return the plan, or null if the Query can't be encoded
+   */
+  protected QueryPlan planQuery(Query query, Candidates candidateStrategy) {
     EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
-    Collection<DocumentIndex.DocumentResult> candidates = index.search(ann.getEntity(), NUM_CANDIDATES);
-    List<Document> docs = candidates.stream()
-      .map(cand -> corpus.getDocument(cand.documentId).get())
+    INDArray qf = lookupEntity(ann);
+    INDArray qa = lookupAspect(ann);
+    Projection projection = getProjection(qf, qa);
+    if(projection == null) return null;
+    INDArray q = getQueryVector(qf, qa);
+    // use the same store for the whole Query, even if it is replaced in the meantime
+    final CorpusVectorStore store = this.store;
+    Collection<Document> docs;
+    Collection<? extends Annotation> candidates = null;
+    switch(candidateStrategy) {
+      case GIVEN: {
+        Collection<RelevanceResult> given = query.getResults(Annotation.Source.GOLD, RelevanceResult.class);
+        given.addAll(query.getResults(Annotation.Source.SILVER, RelevanceResult.class));
+        docs = new LinkedHashSet<>();
+        List<RelevanceResult> accepted = new ArrayList<>(given.size());
+        for(RelevanceResult r : given) {
+          if(!isGivenDocument(r.getDocumentRef())) continue;
+          docs.add(r.getDocumentRef());
+          accepted.add(r);
+        }
+        candidates = accepted;
+        break;
+      }
+      case INDEX: {
+        docs = getDocumentsFromIndex(store, ann);
+        break;
+      }
+      case ENTITY: {
+        EntityDocumentIndex entities = getEntityDocumentIndex();
+        if(entities.contains(ann.getEntityId())) {
+          docs = entities.getDocuments(ann.getEntityId()).stream()
+            .map(doc -> store != null ? getDocument(store, doc) : doc)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+        } else {
+          // unknown entities fall back to the free-text index
+          docs = getDocumentsFromIndex(store, ann);
+        }
+        break;
+      }
+      case ANN: {
+        docs = getDocumentsAtSentences(store, getNearestNeighbourIndex(store, projection).search(q.toFloatVector(), NUM_ANN_SENTENCES));
+        break;
+      }
+      case PQ: {
+        docs = getDocumentsAtSentences(store, getQuantizedIndex(store, projection).search(q.toFloatVector(), NUM_RERANK_SENTENCES, NUM_PQ_SENTENCES));
+        break;
+      }
+      case THRESHOLD: {
+        docs = getDocumentsAtSentences(store, getThresholdIndex(store, projection).search(q.toFloatVector(), thresIn - THRESHOLD_TOLERANCE));
+        break;
+      }
+      case CENTROID: {
+        docs = getDocumentsByCentroid(store, projection, q, NUM_CENTROID_DOCUMENTS);
+        break;
+      }
+      case HYBRID: {
+        return planHeatmap(planHybridQuery(store, ann, projection, q), ann, qf);
+      }
+      default:
+      case ALL: {
+        docs = store != null ? store.getDocuments() : corpus.getDocuments();
+      }
+    }
+    return planHeatmap(createPlan(store, projection, q, docs, candidates), ann, qf);
+  }
+  
+  /**
+   * @return true if a given candidate Document is retrieved by this runner, which are all of them unless the
+   * corpus is split into shards
+   */
+  protected boolean isGivenDocument(Document doc) {
+    return true;
+  }
+  
+  /**
+   * Use the precomputed aspect heatmap of the store for a plan, if available and equal to the direct projection.
+   */
+  protected QueryPlan planHeatmap(QueryPlan plan, EntityAspectQueryAnnotation ann, INDArray qf) {
+    if(plan.store == null || plan.projection == Projection.ENTITY) return plan;
+    String key = getAspectKey(ann);
+    if(!plan.store.hasAspectHeatmap(key) || !plan.store.isAspectHeatmapExact(plan.projection)) return plan;
+    if(plan.projection == Projection.ENTITY_ASPECT) {
+      if(!plan.store.hasProjection(Projection.ENTITY)) return plan;
+      plan.qf = Transforms.unitVec(qf);
+      plan.qfVector = plan.qf.toFloatVector();
+      plan.qfCodes = plan.store.quantizeQuery(Projection.ENTITY, plan.qfVector);
+    }
+    plan.aspectKey = key;
+    return plan;
+  }
+  
+  /**
+   * @return the Documents that match the entity name in the Lucene index
+   */
+  protected List<Document> getDocumentsFromIndex(CorpusVectorStore store, EntityAspectQueryAnnotation ann) {
+    return getDocumentIndex().search(ann.getEntity(), NUM_CANDIDATES).stream()
+      .map(cand -> store != null ? getDocument(store, cand.documentId) : corpus.getDocument(cand.documentId).orElse(null))
+      .filter(Objects::nonNull)
       .collect(Collectors.toList());
-    query = retrieveQueryFromDocs(query, docs);
-    return query;
+  }
+  
+  /**
+   * Retrieve BM25 passage candidates for a Query, which are ranked together with their CDV scores.
+   */
+  protected QueryPlan planHybridQuery(CorpusVectorStore store, EntityAspectQueryAnnotation ann, Projection projection, INDArray q) {
+    List<PassageIndex.PassageResult> hits = getPassageIndex().search(getLexicalQuery(ann), NUM_HYBRID_PASSAGES);
+    List<Annotation> passages = new ArrayList<>(hits.size());
+    double[] lexical = new double[hits.size()];
+    Set<Document> docs = new LinkedHashSet<>();
+    for(PassageIndex.PassageResult hit : hits) {
+      Document doc = store != null ? getDocument(store, hit.documentId) : corpus.getDocument(hit.documentId).orElse(null);
+      if(doc == null || doc.isEmpty() || isRemoved(doc)) continue;
+      Optional<PassageAnnotation> passage = doc.streamAnnotations(Annotation.Source.GOLD, PassageAnnotation.class, true)
+        .filter(p -> hit.passageId.equals(p.getId()))
+        .findFirst();
+      if(!passage.isPresent()) continue;
+      passage.get().setDocumentRef(doc);
+      lexical[passages.size()] = hit.score;
+      passages.add(passage.get());
+      docs.add(doc);
+    }
+    QueryPlan plan = new QueryPlan(store, projection, q, docs, passages);
+    plan.lexicalScores = Arrays.copyOf(lexical, passages.size());
+    if(hasPassageCentroids(store, projection)) planPassages(plan);
+    if(!plan.rankPassages) {
+      plan.passageRefs = passages.toArray(new Annotation[0]);
+      plan.rankPassages = true;
+    }
+    return plan;
+  }
+  
+  /**
+   * @return the Lucene query string for entity and aspect
+   */
+  protected String getLexicalQuery(EntityAspectQueryAnnotation ann) {
+    String aspect = ann.getAspectHeading() != null ? ann.getAspectHeading() : ann.getAspect();
+    String query = (ann.hasEntity() ? ann.getEntity() : "") + " " + (aspect != null ? aspect : "");
+    return QueryParser.escape(query.replace("/", " ").replace("-", " ").replace(":", " ").trim());
+  }
+  
+  /**
+   * @return the Document with the given ID in a store, or null if it was removed
+   */
+  protected Document getDocument(CorpusVectorStore store, String docId) {
+    int d = store.getDocumentIndex(docId);
+    return d >= 0 && !isRemoved(store.getDocument(d)) ? store.getDocument(d) : null;
+  }
+  
+  /**
+   * @return the given Document in the store, which is looked up by ID or by reference if it has no ID, or null
+   * if it is not contained or removed
+   */
+  protected Document getDocument(CorpusVectorStore store, Document doc) {
+    if(doc.getId() != null) return getDocument(store, doc.getId());
+    int d = store.getDocumentIndex(doc);
+    if(d < 0) log.warn("skipping Document without ID that is not contained in the current store: '{}'", doc.getTitle());
+    return d >= 0 && !store.isDeleted(d) ? doc : null;
+  }
+  
+  /**
+   * @return a plan for the given query vector and candidates, which ranks precomputed passage centroids if
+   * possible
+   */
+  protected QueryPlan createPlan(CorpusVectorStore store, Projection projection, INDArray q, Collection<Document> docs, Collection<? extends Annotation> candidates) {
+    QueryPlan plan = new QueryPlan(store, projection, q, docs, candidates);
+    if(strategy == Strategy.PASSAGE_RANK && hasPassageCentroids(store, projection)) planPassages(plan);
+    return plan;
+  }
+  
+  /**
+   * @return true if passage centroids are available in the vector store, which are precomputed on first use.
+   * Quantized projections are scored on their int8 sentences instead, as float centroids would bypass them.
+   */
+  protected boolean hasPassageCentroids(CorpusVectorStore store, Projection projection) {
+    if(store == null || !store.hasProjection(projection) || store.isQuantized(projection)) return false;
+    if(!store.hasPassageCentroids(projection)) {
+      // locks only this store, so that Queries on other stores or without centroids are not blocked
+      synchronized(store) {
+        if(!store.hasPassageCentroids(projection)) {
+          log.info("Precomputing passage centroids over {} documents...", store.countDocuments());
+          store.buildPassageCentroids();
+        }
+      }
+    }
+    return store.hasPassageCentroids(projection);
+  }
+  
+  /**
+   * Map the candidates of a plan to passage rows of the vector store. The plan is left unchanged if any
+   * candidate is not contained in the store.
+   */
+  protected void planPassages(QueryPlan plan) {
+    final CorpusVectorStore store = plan.store;
+    final INDArray centroids = store.getPassageCentroids(plan.projection);
+    if(centroids == null) return;
+    List<Annotation> refs = new ArrayList<>();
+    List<Integer> rows = new ArrayList<>();
+    if(plan.candidates == null) {
+      for(Document doc : plan.docs) {
+        int d = store.getDocumentIndex(doc);
+        if(d < 0) return;
+        for(int p = store.getPassageOffset(d); p < store.getPassageOffset(d) + store.countPassages(d); p++) {
+          rows.add(p);
+          refs.add(store.getPassage(p));
+        }
+      }
+    } else {
+      for(Annotation cand : plan.candidates) {
+        Document doc = cand.getDocumentRef();
+        if(doc.isEmpty()) continue;
+        int d = store.getDocumentIndex(doc);
+        int p = d >= 0 ? store.getPassageIndex(d, cand.getBegin(), cand.getEnd()) : -1;
+        if(p < 0) return;
+        rows.add(p);
+        refs.add(cand);
+      }
+    }
+    // rank all centroids at once if the whole corpus is requested
+    boolean all = plan.candidates == null && rows.size() == store.countPassages() && plan.docs.size() == store.countDocuments();
+    plan.passageRows = all ? null : rows.stream().mapToInt(Integer::intValue).toArray();
+    plan.passageRefs = refs.toArray(new Annotation[0]);
+    plan.rankPassages = true;
+    plan.centroids = centroids;
+  }
+  
+  /**
+   * Retrieve Query only on Documents that contain a sentence above the passage threshold. With
+   * SENTENCE_THRESHOLD strategy, the results are the same as on the whole corpus.
+   */
+  public Query retrieveQueryFromThresholdIndex(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.THRESHOLD), query);
+  }
+  
+  /**
+   * Retrieve Query only on the Documents with the most similar centroids.
+   */
+  public Query retrieveQueryFromCentroids(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.CENTROID), query);
+  }
+  
+  /**
+   * Retrieve Query only on Documents that are annotated with or predicted as the query entity.
+   */
+  public Query retrieveQueryFromEntityIndex(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.ENTITY), query);
+  }
+  
+  /**
+   * Retrieve Query on the best BM25 passages and fuse lexical and CDV scores into a single ranking.
+   */
+  public Query retrieveQueryHybrid(Query query) {
+    return retrieveQuery(planQuery(query, Candidates.HYBRID), query);
+  }
+  
+  /**
+   * @return the k Documents whose centroids are most similar to the query vector, in descending order
+   */
+  protected List<Document> getDocumentsByCentroid(CorpusVectorStore store, Projection projection, INDArray q, int k) {
+    if(store == null || !store.hasProjection(projection))
+      throw new IllegalStateException("CENTROID candidates require a CorpusVectorStore with projection " + projection);
+    if(!store.hasDocumentCentroids(projection)) {
+      synchronized(store) {
+        if(!store.hasDocumentCentroids(projection)) {
+          log.info("Precomputing document centroids over {} documents...", store.countDocuments());
+          store.buildDocumentCentroids();
+        }
+      }
+    }
+    int[] idx = store.searchDocuments(projection, q, k);
+    List<Document> docs = new ArrayList<>(idx.length);
+    for(int d : idx) docs.add(store.getDocument(d));
+    return docs;
+  }
+  
+  /**
+   * @return all Documents that contain the given sentence rows of the vector store, in order of first occurrence.
+   * Rows of deleted Documents are skipped.
+   */
+  protected Set<Document> getDocumentsAtSentences(CorpusVectorStore store, int[] sentences) {
+    Set<Document> docs = new LinkedHashSet<>();
+    for(int row : sentences) {
+      int d = store.getDocumentIndexAtSentence(row);
+      if(!store.isDeleted(d)) docs.add(store.getDocument(d));
+    }
+    return docs;
+  }
+  
+  /**
+   * @return the HNSW index over all sentences for a projection, which is built on first use
+   */
+  protected HNSWIndex getNearestNeighbourIndex(CorpusVectorStore store, Projection projection) {
+    if(store == null || !store.hasProjection(projection))
+      throw new IllegalStateException("ANN candidates require a CorpusVectorStore with projection " + projection);
+    return getIndex(annIndex, store, projection, this::buildNearestNeighbourIndex);
+  }
+  
+  protected HNSWIndex buildNearestNeighbourIndex(CorpusVectorStore store, Projection projection) {
+    log.info("Building HNSW index over {} sentences for {} projection...", store.countSentences(), projection);
+    return new HNSWIndex(store.getVectorRows(projection)).build();
+  }
+  
+  /**
+   * @return the exact cone tree index over all sentences for a projection, which is built on first use
+   */
+  protected ConeTreeIndex getThresholdIndex(CorpusVectorStore store, Projection projection) {
+    if(store == null || !store.hasProjection(projection))
+      throw new IllegalStateException("THRESHOLD candidates require a CorpusVectorStore with projection " + projection);
+    return getIndex(exactIndex, store, projection, this::buildThresholdIndex);
+  }
+  
+  protected ConeTreeIndex buildThresholdIndex(CorpusVectorStore store, Projection projection) {
+    log.info("Building cone tree index over {} sentences for {} projection...", store.countSentences(), projection);
+    return new ConeTreeIndex(store.getVectorRows(projection)).build();
+  }
+  
+  /**
+   * @return the product-quantized index over all sentences for a projection, which is built on first use
+   */
+  protected QuantizedVectorIndex getQuantizedIndex(CorpusVectorStore store, Projection projection) {
+    if(store == null || !store.hasProjection(projection))
+      throw new IllegalStateException("PQ candidates require a CorpusVectorStore with projection " + projection);
+    return getIndex(pqIndex, store, projection, this::buildQuantizedIndex);
+  }
+  
+  protected QuantizedVectorIndex buildQuantizedIndex(CorpusVectorStore store, Projection projection) {
+    log.info("Building product-quantized index over {} sentences for {} projection...", store.countSentences(), projection);
+    QuantizedVectorIndex index = QuantizedVectorIndex.build(store, projection);
+    pageOut(store, projection, 0);
+    return index;
+  }
+  
+  /**
+   * @return the index of a store and projection. The first caller builds it without holding the lock, so
+   * that Queries with other strategies are not blocked, and concurrent callers wait for the same index.
+   * If the build fails, the next caller tries again.
+   */
+  protected <T> T getIndex(Map<CorpusVectorStore, Map<Projection, CompletableFuture<T>>> indexes, CorpusVectorStore store, Projection projection, BiFunction<CorpusVectorStore, Projection, T> build) {
+    CompletableFuture<T> future;
+    boolean owner = false;
+    synchronized(this) {
+      Map<Projection, CompletableFuture<T>> byProjection = indexes.computeIfAbsent(store, s -> new EnumMap<>(Projection.class));
+      future = byProjection.get(projection);
+      if(future == null) {
+        future = new CompletableFuture<>();
+        byProjection.put(projection, future);
+        owner = true;
+      }
+    }
+    if(owner) {
+      try {
+        future.complete(build.apply(store, projection));
+      } catch(RuntimeException | Error e) {
+        synchronized(this) {
+          Map<Projection, CompletableFuture<T>> byProjection = indexes.get(store);
+          if(byProjection != null) byProjection.remove(projection, future);
+        }
+        future.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return future.join();
+    } catch(CompletionException e) {
+      if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if(e.getCause() instanceof Error) throw (Error) e.getCause();
+      throw e;
+    }
+  }
+  
+  /**
+   * @return the index of a future, or null if it could not be built
+   */
+  protected static <T> T awaitIndex(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch(CompletionException | CancellationException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Page out the in-memory float sentences of a projection to a new file in the page out path, if it is set.
+   * @param firstSegment first segment of the store that is paged out
+   */
+  protected void pageOut(CorpusVectorStore store, Projection projection, int firstSegment) {
+    if(pageOutPath == null) return;
+    Resource file = pageOutPath.resolve(projection.name().toLowerCase() + "-" + pageOutCount.incrementAndGet() + ".f32");
+    try {
+      store.pageOut(projection, file, firstSegment);
+    } catch(IOException e) {
+      log.error("Could not page out {} matrix to '{}': {}", projection, file.toString(), e.toString());
+    }
   }
   
   protected Query retrieveQueryFromDocs(Query query, Collection<Document> docs) {
@@ -161,33 +1030,280 @@ public class QueryRunner {
   protected Query retrieveQueryFromDocs(Query query, Collection<Document> docs, Collection<? extends Annotation> candidates) {
     // encode query terms once
     EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
-    INDArray qf = null, qa = null;
-    if(entityIndex != null && ann.hasEntity()) {
-      qf = entityIndex.lookup(ann.getEntityId() != null ? ann.getEntityId() : ann.getEntity()); // query vector lookup
-      if(qf == null) {
-        log.debug("fallback encoding entity '{}'", ann.getEntity());
-        qf = entityIndex.encode(ann.getEntity()); // fallback encoding
+    INDArray qf = lookupEntity(ann);
+    INDArray qa = lookupAspect(ann);
+    Projection projection = getProjection(qf, qa);
+    if(projection == null) return query;
+    return retrieveQuery(createPlan(store, projection, getQueryVector(qf, qa), docs, candidates), query);
+  }
+  
+  /**
+   * Retrieve a planned Query on all of its candidate Documents.
+   */
+  protected Query retrieveQuery(QueryPlan plan, Query query) {
+    if(plan == null) return query;
+    collectQuery(plan).addTo(query);
+    return query;
+  }
+  
+  /**
+   * @return the top-k results of a planned Query, without adding them to the Query
+   */
+  protected TopKCollector collectQuery(QueryPlan plan) {
+    final TopKCollector results = createCollector();
+    if(plan == null) return results;
+    if(plan.rankPassages) {
+      retrieveRankedPassages(plan, results);
+    } else {
+      // correlate documents with query (projection)
+      IntStream.range(0, plan.docs.size())
+        .parallel()
+        .forEach(d -> retrieveDocuments(plan, results, d, d + 1));
+    }
+    return results;
+  }
+  
+  /**
+   * Rank all candidate passages of a plan at once, with a single product of the query vector and the passage
+   * centroids if available. Lexical scores of the plan are fused into the result.
+   */
+  protected void retrieveRankedPassages(QueryPlan plan, TopKCollector results) {
+    retrieveRankedPassages(plan, results, null);
+  }
+  
+  /**
+   * Rank the candidate passages of a plan. A cancellable Query is ranked in blocks of PASSAGE_BLOCK_SIZE and
+   * stops before the next block once it is cancelled. Lexical scores are then fused over the passages that were
+   * scored so far, which are the best lexical candidates.
+   * @param cancelled flag that stops ranking before the next block, or null to rank all passages at once
+   */
+  protected void retrieveRankedPassages(QueryPlan plan, TopKCollector results, AtomicBoolean cancelled) {
+    int size = plan.passageRefs.length;
+    int blockSize = cancelled != null ? PASSAGE_BLOCK_SIZE : Math.max(1, size);
+    double[] scores = new double[size];
+    Map<Document, float[]> histograms = new IdentityHashMap<>();
+    Map<Document, SentenceSpans> spans = new IdentityHashMap<>();
+    int scored = 0;
+    while(scored < size && (cancelled == null || !cancelled.get())) {
+      int end = Math.min(size, scored + blockSize);
+      scorePassages(plan, scores, scored, end, histograms, spans);
+      if(plan.lexicalScores == null) offerPassages(plan, results, scores, scored, end);
+      scored = end;
+    }
+    if(plan.lexicalScores != null && scored > 0) {
+      double[] fused = fuseScores(Arrays.copyOf(plan.lexicalScores, scored), Arrays.copyOf(scores, scored));
+      offerPassages(plan, results, fused, 0, scored);
+    }
+  }
+  
+  /**
+   * Offer the scored passages [begin, end) of a plan, except passages without score or of removed Documents.
+   */
+  protected void offerPassages(QueryPlan plan, TopKCollector results, double[] scores, int begin, int end) {
+    for(int i = begin; i < end; i++) {
+      Annotation passage = plan.passageRefs[i];
+      if(Double.isNaN(scores[i]) || isRemoved(passage.getDocumentRef())) continue;
+      results.offer(passage.getDocumentRef(), passage, scores[i]);
+    }
+  }
+  
+  /**
+   * Score the passages [begin, end) of a plan on the passage centroids if available, otherwise as mean sentence
+   * similarity or NaN for passages without sentences.
+   * @param histograms projected Documents, which are reused by the following passages of the same Document
+   * @param spans sentence spans of the projected Documents
+   */
+  protected void scorePassages(QueryPlan plan, double[] scores, int begin, int end, Map<Document, float[]> histograms, Map<Document, SentenceSpans> spans) {
+    if(plan.centroids != null) {
+      int[] rows;
+      if(plan.passageRows != null) rows = Arrays.copyOfRange(plan.passageRows, begin, end);
+      else if(begin > 0 || end < scores.length) rows = IntStream.range(begin, end).toArray();
+      else rows = null; // all centroids of the store
+      float[] block = plan.store.scorePassages(plan.centroids, rows, plan.q);
+      for(int i = 0; i < block.length; i++) scores[begin + i] = block[i];
+      return;
+    }
+    for(int i = begin; i < end; i++) {
+      Document doc = plan.passageRefs[i].getDocumentRef();
+      float[] hist = histograms.computeIfAbsent(doc, d -> projectHistogram(plan, d));
+      if(hist == null) {
+        scores[i] = Double.NaN;
+        continue;
       }
+      SentenceSpans sents = spans.computeIfAbsent(doc, d -> getSentenceSpans(plan.store, d));
+      scores[i] = getPassageScore(hist, 0, sents, plan.passageRefs[i].getBegin(), plan.passageRefs[i].getEnd());
     }
-    if(aspectIndex != null && ann.hasAspect()) {
-      qa = aspectIndex.lookup(aspectIndex.getKeyPreprocessor().preProcess(ann.getAspect())); // query vector lookup, make sure the key is not split here
-      if(qa == null) {
-        log.error("fallback encoding aspect '{}'", ann.getAspect());
-        qa = aspectIndex.encode(ann.getAspect()); // fallback encoding
+  }
+  
+  /**
+   * Fuse lexical scores, which are in descending order, with CDV scores of the same passages.
+   */
+  protected double[] fuseScores(double[] lexical, double[] cdv) {
+    double[] fused = new double[cdv.length];
+    switch(fusion) {
+      case LINEAR: {
+        double max = 0.;
+        for(double score : lexical) max = Math.max(max, score);
+        for(int i = 0; i < fused.length; i++) {
+          fused[i] = fusionWeight * cdv[i] + (1. - fusionWeight) * (max > 0. ? lexical[i] / max : 0.);
+        }
+        break;
+      }
+      default:
+      case RRF: {
+        Integer[] order = new Integer[cdv.length];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(Double.isNaN(cdv[b]) ? -1. : cdv[b], Double.isNaN(cdv[a]) ? -1. : cdv[a]));
+        for(int rank = 0; rank < order.length; rank++) {
+          int i = order[rank];
+          fused[i] = 1. / (RRF_K + i + 1) + (Double.isNaN(cdv[i]) ? 0. : 1. / (RRF_K + rank + 1));
+        }
       }
     }
-    final INDArray qf2 = qf;
-    final INDArray qa2 = qa;
-    // correlate documents with query (projection)
-    docs.stream()
-      .parallel()
+    return fused;
+  }
+  
+  /**
+   * Retrieve a planned Query on the candidate Documents [begin, end) in the current thread.
+   */
+  protected void retrieveDocuments(QueryPlan plan, TopKCollector results, int begin, int end) {
+    for(int d = begin; d < end; d++) {
+      Document doc = plan.docs.get(d);
+      if(doc.isEmpty() || isRemoved(doc)) continue;
+      // encode histogram
+      float[] hist = projectHistogram(plan, doc);
+      if(hist == null) continue; // Document was replaced and has no vectors attached
+      retrievePassages(doc, results, hist, 0, getSentenceSpans(plan.store, doc), plan.candidates);
+    }
+  }
+  
+  /**
+   * Retrieve all Queries on the whole corpus in batch mode.
+   */
+  public void retrieveAllQueriesBatched() {
+    retrieveQueriesBatched(corpus.getQueries(), QUERY_BATCH_SIZE);
+  }
+  
+  /**
+   * Retrieve the given Queries on the whole corpus in batch mode. Query vectors are stacked into a single
+   * matrix and multiplied with blocks of the corpus sentence matrix, so that we run a few large GEMMs instead
+   * of one small projection per Query and Document. The scores are then split into per-Document histograms.
+   */
+  public void retrieveQueriesBatched(Collection<Query> queries, int batchSize) {
+    final Timer timer = new Timer();
+    timer.start();
+    // group queries by the sentence matrix they are projected on
+    Map<Projection, List<Query>> groups = new EnumMap<>(Projection.class);
+    Map<Query, INDArray> vectors = new IdentityHashMap<>();
+    for(Query q : queries) {
+      EntityAspectQueryAnnotation ann = q.getAnnotation(EntityAspectQueryAnnotation.class);
+      INDArray qf = lookupEntity(ann);
+      INDArray qa = lookupAspect(ann);
+      Projection projection = getProjection(qf, qa);
+      if(projection == null) continue;
+      vectors.put(q, getQueryVector(qf, qa));
+      groups.computeIfAbsent(projection, p -> new ArrayList<>()).add(q);
+    }
+    final CorpusVectorStore store = this.store;
+    // with a store, docs are in index order to match its offsets, including deleted Documents
+    List<Document> docs = store != null ? IntStream.range(0, store.countDocuments()).mapToObj(store::getDocument).collect(Collectors.toList()) : corpus.getDocuments().stream()
       .filter(doc -> !doc.isEmpty())
-      .forEach(doc -> {
-        // encode histogram
-        INDArray hist = getHistogram(doc, qf2, qa2);
-        retrievePassages(doc, query, hist, candidates);
-      });
-    return query;
+      .collect(Collectors.toList());
+    log.info("Retrieving {} queries on {} documents in batches of {}...", vectors.size(), docs.size(), batchSize);
+    for(Map.Entry<Projection, List<Query>> group : groups.entrySet()) {
+      // concatenate sentence vectors of all documents once per projection
+      int[] offsets = store != null ? store.getOffsets() : new int[docs.size() + 1];
+      INDArray sentences = store != null ? store.getMatrix(group.getKey()) : getCorpusMatrix(docs, group.getKey(), offsets);
+      int[] begins = store != null ? store.getSentenceBegins() : new int[offsets[docs.size()]];
+      int[] ends = store != null ? store.getSentenceEnds() : new int[offsets[docs.size()]];
+      if(store == null) getSentenceSpans(docs, offsets, begins, ends);
+      for(List<Query> batch : Lists.partition(group.getValue(), batchSize)) {
+        INDArray q = Nd4j.vstack(batch.stream()
+          .map(query -> vectors.get(query).reshape(1, vectors.get(query).length()))
+          .toArray(INDArray[]::new));
+        TopKCollector[] results = new TopKCollector[batch.size()];
+        for(int i = 0; i < results.length; i++) results[i] = createCollector();
+        retrieveQueryBatch(batch, results, q, store, docs, sentences, offsets, begins, ends);
+        for(int i = 0; i < results.length; i++) results[i].addTo(batch.get(i));
+      }
+    }
+    long elapsed = timer.getLong();
+    log.info("Finished {} queries on {} documents... [{}]", vectors.size(), docs.size(), Timer.millisToLongDHMS(elapsed));
+  }
+  
+  /**
+   * Score a batch of Queries [batch x dim] against all sentences [sentences x dim] in blocks of whole Documents.
+   * @param store vector store whose deleted Documents are skipped, or null
+   * @param begins character begin offsets of all sentence rows
+   * @param ends character end offsets of all sentence rows
+   */
+  protected void retrieveQueryBatch(List<Query> batch, TopKCollector[] results, INDArray q, CorpusVectorStore store, List<Document> docs, INDArray sentences, int[] offsets, int[] begins, int[] ends) {
+    int first = 0;
+    while(first < docs.size()) {
+      // collect Documents until the block is large enough
+      int last = first;
+      while(last < docs.size() && offsets[last] - offsets[first] < SENTENCE_BLOCK_SIZE) last++;
+      final int from = first, to = last;
+      final int blockBegin = offsets[from];
+      final int blockLength = offsets[to] - blockBegin;
+      INDArray scores = q.mmul(sentences.get(interval(blockBegin, offsets[to]), all()).transpose());
+      // passages are scored directly on a heap copy of the whole block
+      final float[] block = scores.dup('c').data().asFloat();
+      // split scores into histograms, each Query is handled by a single thread
+      IntStream.range(0, batch.size())
+        .parallel()
+        .forEach(i -> {
+          for(int d = from; d < to; d++) {
+            if(offsets[d + 1] == offsets[d] || isRemoved(docs.get(d)) || (store != null && store.isDeleted(d))) continue; // empty or removed document
+            SentenceSpans spans = new SentenceSpans(begins, ends, offsets[d], offsets[d + 1] - offsets[d]);
+            retrievePassages(docs.get(d), results[i], block, i * blockLength + offsets[d] - blockBegin, spans, null);
+          }
+        });
+      first = last;
+    }
+  }
+  
+  /**
+   * Write character begin and end offsets of all sentences of the given Documents into begins and ends.
+   */
+  protected void getSentenceSpans(List<Document> docs, int[] offsets, int[] begins, int[] ends) {
+    for(int d = 0; d < docs.size(); d++) {
+      int row = offsets[d];
+      for(Sentence s : docs.get(d).getSentences()) {
+        begins[row] = s.getBegin();
+        ends[row] = s.getEnd();
+        row++;
+      }
+    }
+  }
+  
+  /**
+   * @return all sentence vectors [sentences x dim] of the given Documents for a projection, with Document
+   * boundaries written into offsets
+   */
+  protected INDArray getCorpusMatrix(List<Document> docs, Projection projection, int[] offsets) {
+    INDArray[] matrices = new INDArray[docs.size()];
+    int d = 0;
+    offsets[0] = 0;
+    for(Document doc : docs) {
+      INDArray vec = getDocumentMatrix(doc, projection);
+      matrices[d] = vec.transpose();
+      offsets[d + 1] = offsets[d] + (int) vec.size(1);
+      d++;
+    }
+    return Nd4j.vstack(matrices);
+  }
+  
+  /**
+   * @return the normalized sentence matrix [dim x sentences] of a Document for a given projection
+   */
+  protected INDArray getDocumentMatrix(Document doc, Projection projection) {
+    switch(projection) {
+      case ENTITY: return doc.getVector(entityIndex.getClass());
+      case ASPECT: return doc.getVector(aspectIndex.getClass());
+      default:
+      case ENTITY_ASPECT: return stackDocumentMatrix(doc);
+    }
   }
   
   /**
@@ -197,19 +1313,40 @@ public class QueryRunner {
     // encode histogram
     INDArray hist = getHistogram(doc, query);
     // correlate document with query (projection)
-    return retrievePassages(doc, query, hist);
+    TopKCollector results = createCollector();
+    retrievePassages(doc, results, hist, null);
+    results.addTo(query);
+    return query;
   }
   
-  protected Query retrievePassages(Document doc, Query query, INDArray hist) {
-    return retrievePassages(doc, query, hist, null);
+  protected void retrievePassages(Document doc, TopKCollector results, INDArray hist, Collection<? extends Annotation> candidates) {
+    retrievePassages(doc, results, hist.toFloatVector(), 0, getSentenceSpans(store, doc), candidates);
   }
   
-  protected Query retrievePassages(Document doc, Query query, INDArray hist, Collection<? extends Annotation> candidates) {
+  /**
+   * Retrieve passages from a histogram of sentence similarities without any ND4J calls.
+   * @param hist sentence similarities of the Document, starting at histOffset
+   */
+  protected void retrievePassages(Document doc, TopKCollector results, float[] hist, int histOffset, SentenceSpans spans, Collection<? extends Annotation> candidates) {
     switch(this.strategy) {
-      case PASSAGE_RANK: return retrievePassagesByRanking(doc, query, hist, candidates);
+      case PASSAGE_RANK: retrievePassagesByRanking(doc, results, hist, histOffset, spans, candidates); break;
       default:
-      case SENTENCE_THRESHOLD: return retrievePassagesByThreshold(doc, query, hist);
+      case SENTENCE_THRESHOLD: segmentPassages(doc, results, hist, histOffset, spans.begins, spans.ends, spans.first, spans.length, thresIn, thresOut); break;
+    }
+  }
+  
+  /**
+   * @return character offsets of the sentences of a Document, taken from the store if it contains the Document
+   */
+  protected SentenceSpans getSentenceSpans(CorpusVectorStore store, Document doc) {
+    int docIndex = store != null ? store.getDocumentIndex(doc) : -1;
+    if(docIndex >= 0) {
+      return new SentenceSpans(store.getSentenceBegins(), store.getSentenceEnds(), store.getOffset(docIndex), store.countSentences(docIndex));
     }
+    int[] offsets = {0, doc.countSentences()};
+    int[] begins = new int[offsets[1]], ends = new int[offsets[1]];
+    getSentenceSpans(Collections.singletonList(doc), offsets, begins, ends);
+    return new SentenceSpans(begins, ends, 0, offsets[1]);
   }
   
   /**
@@ -218,57 +1355,229 @@ public class QueryRunner {
   public INDArray getHistogram(Document doc, Query query) {
     // encode query terms
     EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
-    INDArray qf = null, qa = null;
-    if(entityIndex != null && ann.hasEntity()) {
+    return getHistogram(doc, lookupEntity(ann), lookupAspect(ann));
+  }
+  
+  /**
+   * @return the entity vector for a Query, or null if the Query has no entity. The returned vector is cached
+   * and must not be modified.
+   */
+  protected INDArray lookupEntity(EntityAspectQueryAnnotation ann) {
+    if(entityIndex == null || !ann.hasEntity()) return null;
+    String key = getEntityKey(ann);
+    INDArray qf = entityCache.getIfPresent(key);
+    if(qf == null) {
       qf = entityIndex.lookup(ann.getEntityId() != null ? ann.getEntityId() : ann.getEntity()); // query vector lookup
       if(qf == null) {
+        log.debug("fallback encoding entity '{}'", ann.getEntity());
         qf = entityIndex.encode(ann.getEntity()); // fallback encoding
       }
+      if(qf != null) entityCache.put(key, qf);
     }
-    if(aspectIndex != null && ann.hasAspect()) {
-      qa = aspectIndex.lookup(ann.getAspect()); // query vector lookup
+    return qf;
+  }
+  
+  /**
+   * @return the aspect vector for a Query, or null if the Query has no aspect. The returned vector is cached
+   * and must not be modified.
+   */
+  protected INDArray lookupAspect(EntityAspectQueryAnnotation ann) {
+    if(aspectIndex == null || !ann.hasAspect()) return null;
+    String key = getAspectKey(ann);
+    INDArray qa = aspectCache.getIfPresent(key);
+    if(qa == null) {
+      qa = aspectIndex.lookup(key); // query vector lookup, make sure the key is not split here
       if(qa == null) {
+        log.error("fallback encoding aspect '{}'", ann.getAspect());
         qa = aspectIndex.encode(ann.getAspect()); // fallback encoding
       }
+      if(qa != null) aspectCache.put(key, qa);
+    }
+    return qa;
+  }
+  
+  /**
+   * @return the cache key of the entity vector of a Query
+   */
+  protected String getEntityKey(EntityAspectQueryAnnotation ann) {
+    // the fallback encoding depends on the name, so both are part of the key
+    return ann.getEntityId() != null ? ann.getEntityId() + "\t" + ann.getEntity() : ann.getEntity();
+  }
+  
+  /**
+   * @return the cache key of the aspect vector of a Query
+   */
+  protected String getAspectKey(EntityAspectQueryAnnotation ann) {
+    return aspectIndex.getKeyPreprocessor().preProcess(ann.getAspect());
+  }
+  
+  /**
+   * @return a key that is equal for all Queries that have the same query vectors and candidates, and therefore
+   * the same results, or null if the Query can't be retrieved
+   */
+  protected String getCoalescingKey(Query query, Candidates candidateStrategy) {
+    EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+    if(ann == null) return null;
+    StringBuilder key = new StringBuilder();
+    key.append(entityIndex != null && ann.hasEntity() ? getEntityKey(ann) : "").append('\n');
+    key.append(aspectIndex != null && ann.hasAspect() ? getAspectKey(ann) : "").append('\n');
+    switch(candidateStrategy) {
+      case GIVEN: {
+        List<Result> given = new ArrayList<>(query.getResults(Annotation.Source.GOLD, RelevanceResult.class));
+        given.addAll(query.getResults(Annotation.Source.SILVER, RelevanceResult.class));
+        // candidates of different Queries are only known to be equal by Document ID
+        if(given.stream().anyMatch(r -> r.getDocumentRef() == null || r.getDocumentRef().getId() == null)) return null;
+        given.stream()
+          .map(QueryRunner::getCandidateKey)
+          .sorted()
+          .forEach(r -> key.append(r).append(' '));
+        break;
+      }
+      case INDEX: {
+        key.append(ann.getEntity());
+        break;
+      }
+      case HYBRID: {
+        key.append(getLexicalQuery(ann));
+        break;
+      }
+      default: // candidates only depend on the query vector
+    }
+    return key.toString();
+  }
+  
+  /**
+   * @return a key of a candidate or result span that is equal across Queries
+   */
+  protected static String getCandidateKey(Annotation ann) {
+    return ann.getDocumentRef().getId() + ":" + ann.getBegin() + "-" + ann.getEnd();
+  }
+  
+  /**
+   * Add the results of a coalesced group to one of its Queries. With GIVEN candidates, the results refer to
+   * the candidates of the Query that was retrieved, so they are pointed to the equal candidates of the given
+   * Query instead.
+   */
+  protected void addResults(TopKCollector results, Query query, Candidates candidateStrategy) {
+    if(candidateStrategy != Candidates.GIVEN) {
+      results.addTo(query);
+      return;
     }
-    return getHistogram(doc, qf, qa);
+    Map<String, Result> candidates = new HashMap<>();
+    for(Result r : query.getResults(Annotation.Source.GOLD, RelevanceResult.class)) candidates.put(getCandidateKey(r), r);
+    for(Result r : query.getResults(Annotation.Source.SILVER, RelevanceResult.class)) candidates.putIfAbsent(getCandidateKey(r), r);
+    for(ScoredResult result : results.getResults()) {
+      Result candidate = candidates.get(getCandidateKey(result));
+      if(candidate != null) {
+        result.setDocumentRef(candidate.getDocumentRef());
+        if(result.getAnnotationRef() != null) result.setAnnotationRef(candidate);
+      }
+      query.addResult(result);
+    }
+  }
+  
+  public CacheStats getEntityCacheStats() {
+    return entityCache.stats();
+  }
+  
+  public CacheStats getAspectCacheStats() {
+    return aspectCache.stats();
+  }
+  
+  /**
+   * Remove all cached query vectors, e.g. after the entity or aspect index was changed.
+   */
+  public void clearQueryCache() {
+    entityCache.invalidateAll();
+    aspectCache.invalidateAll();
+  }
+  
+  protected void logCacheStats() {
+    CacheStats entity = getEntityCacheStats(), aspect = getAspectCacheStats();
+    log.info("Query vector cache: entities {} hits / {} misses, aspects {} hits / {} misses",
+      entity.hitCount(), entity.missCount(), aspect.hitCount(), aspect.missCount());
+  }
+  
+  /**
+   * @return the projection that is used for the given query vectors
+   */
+  protected Projection getProjection(INDArray qf, INDArray qa) {
+    if(qf != null && qa != null) return Projection.ENTITY_ASPECT;
+    else if(qf != null) return Projection.ENTITY;
+    else if(qa != null) return Projection.ASPECT;
+    else return null;
+  }
+  
+  /**
+   * @return the normalized query vector [dim x 1] for the given projection
+   */
+  protected INDArray getQueryVector(INDArray qf, INDArray qa) {
+    if(qf != null && qa != null) return Transforms.unitVec(Nd4j.vstack(Transforms.unitVec(qf), Transforms.unitVec(qa)));
+    else if(qf != null) return Transforms.unitVec(qf);
+    else if(qa != null) return Transforms.unitVec(qa);
+    else return null;
   }
   
   protected INDArray getHistogram(Document doc, INDArray qf, INDArray qa) {
     // encode histograms for document
-    if(qf != null && qa != null) {
-      return projectQuery(doc, qf, qa); // concatenated query
-    } else if(qf != null) {
-      return projectQuery(doc, qf, entityIndex);
-    } else if(qa != null) {
-      return projectQuery(doc, qa, aspectIndex);
-    } else return null;
+    Projection projection = getProjection(qf, qa);
+    if(projection == null) return null;
+    else return projectQuery(doc, projection, getQueryVector(qf, qa));
+  }
+  
+  /**
+   * Project a normalized query vector on the sentence matrix of a Document.
+   * @return histogram [sentences x 1] of cosine similarities
+   */
+  protected INDArray projectQuery(Document doc, Projection projection, INDArray q) {
+    return projectQuery(store, doc, projection, q);
   }
   
-  protected INDArray projectQuery(Document doc, INDArray q, IEncoder encoder) {
-    // TODO: make sure we have normalized sentence vectors from attachCDVDocumentMatrix()
-    // get vector for EntityIndex or AspectIndex
-    INDArray vec = doc.getVector(encoder.getClass());
-    //vec.diviColumnVector(vec.norm1(1)); // normalize over full document - is already done in CDVTagger.attachCDVDocumentMatrix()
-    return Transforms.unitVec(q).transpose().mmul(vec).transpose();
+  /**
+   * Project a normalized query vector on the sentence matrix of a Document in the given store, or on the
+   * matrix attached to the Document if it is not contained in the store.
+   * @return histogram [sentences x 1] of cosine similarities, or null if no sentence vectors are available
+   */
+  protected INDArray projectQuery(CorpusVectorStore store, Document doc, Projection projection, INDArray q) {
+    if(store != null) {
+      int docIndex = store.getDocumentIndex(doc);
+      if(docIndex >= 0) return store.score(projection, docIndex, q);
+    }
+    INDArray vec = getDocumentMatrix(doc, projection);
+    return vec != null ? vec.transpose().mmul(q) : null;
+  }
+  
+  /**
+   * Project a planned Query on the sentence matrix of a Document. Aspect similarities are looked up from the
+   * precomputed heatmap if the plan uses one, so that only the entity half is computed. Documents in the store
+   * are scored into a heap array directly, ND4J is only used for Documents that carry their own matrix.
+   * @return histogram of cosine similarities, or null if no vectors are available
+   */
+  protected float[] projectHistogram(QueryPlan plan, Document doc) {
+    int docIndex = plan.store != null ? plan.store.getDocumentIndex(doc) : -1;
+    if(docIndex >= 0) {
+      if(plan.aspectKey == null) return plan.store.scoreHistogram(plan.projection, docIndex, plan.qVector, plan.qCodes);
+      else if(plan.projection == Projection.ASPECT) return plan.store.lookupAspectHistogram(plan.aspectKey, docIndex);
+      else return plan.store.scoreWithAspect(docIndex, plan.qfVector, plan.qfCodes, plan.aspectKey);
+    }
+    INDArray hist = projectQuery(plan.store, doc, plan.projection, plan.q);
+    return hist != null ? hist.toFloatVector() : null;
   }
   
   /** project entity/aspect query with concatenation */
   protected INDArray projectQuery(Document doc, INDArray qf, INDArray qa) {
-    // get vector for EntityIndex or AspectIndex
-    INDArray vf = doc.getVector(entityIndex.getClass());
-    INDArray va = doc.getVector(aspectIndex.getClass());
-    INDArray q = Nd4j.vstack(Transforms.unitVec(qf), Transforms.unitVec(qa));
+    return projectQuery(doc, Projection.ENTITY_ASPECT, getQueryVector(qf, qa));
+  }
+  
+  /**
+   * @return the stacked entity/aspect sentence matrix of a Document, normalized per sentence. Uses the matrix
+   * precomputed by CDVTagger.attachStackedDocumentMatrix() if available.
+   */
+  protected INDArray stackDocumentMatrix(Document doc) {
+    INDArray vec = doc.getVector(CDVTagger.class);
+    if(vec != null) return vec;
     // vf and va are already normalized in CDVTagger.attachCDVDocumentMatrix()
-    INDArray vec = Nd4j.vstack(vf, va);
-    // normalize all sentences to Unit length after stacking
-    for(int i = 0; i < vec.size(1); i++) {
-      INDArray sentVec = vec.getColumn(i);
-      vec.getColumn(i).assign(Transforms.unitVec(sentVec));
-    }
-    //if(encoder.getClass().equals(EntityIndex.class))
-    //  vec.diviColumnVector(vec.norm2(1));
-    return Transforms.unitVec(q).transpose().mmul(vec).transpose();
+    return CDVTagger.stackDocumentMatrix(doc.getVector(entityIndex.getClass()), doc.getVector(aspectIndex.getClass()));
   }
   
   @Deprecated
@@ -281,7 +1590,11 @@ public class QueryRunner {
     else throw new IllegalArgumentException("Both encodings are null");
   }
   
-  protected Query retrievePassagesByRanking(Document doc, Query query, INDArray hist, Collection<? extends Annotation> candidates) {
+  protected void retrievePassagesByRanking(Document doc, TopKCollector results, INDArray hist, Collection<? extends Annotation> candidates) {
+    retrievePassagesByRanking(doc, results, hist.toFloatVector(), 0, getSentenceSpans(store, doc), candidates);
+  }
+  
+  protected void retrievePassagesByRanking(Document doc, TopKCollector results, float[] hist, int histOffset, SentenceSpans spans, Collection<? extends Annotation> candidates) {
     if(candidates == null) {
       // generate candidate passages from annotations
       candidates = doc
@@ -296,20 +1609,33 @@ public class QueryRunner {
     }
     for(Annotation cand : candidates) {
       if(cand.getDocumentRef() != doc) continue;
-      List<Sentence> sents = AnnotationHelpers.streamSpansInRange(doc,Sentence.class, cand.getBegin(), cand.getEnd(), true).collect(Collectors.toList());
-      INDArray slice = Nd4j.zeros(sents.size());
-      int length = 0;
-      for(Sentence s : sents) {
-        int t = doc.getSentenceIndexAtPosition(s.getBegin());
-        double p = hist.getDouble(t);
-        slice.putScalar(length++, p);
-      }
-      if(length > 0) {
-        //INDArray top5 = Nd4j.sort(slice, false).get(NDArrayIndex.interval(0, Math.min(5, slice.length())));
-        addResult(query, doc, cand, slice.meanNumber().doubleValue());
-      }
+      double score = getPassageScore(hist, histOffset, spans, cand.getBegin(), cand.getEnd());
+      if(!Double.isNaN(score)) results.offer(doc, cand, score);
     }
-    return query;
+  }
+  
+  /**
+   * @return mean similarity of all sentences that are enclosed in a passage, or NaN if there are none
+   */
+  protected double getPassageScore(Document doc, INDArray hist, Annotation passage) {
+    return getPassageScore(hist.toFloatVector(), 0, getSentenceSpans(store, doc), passage.getBegin(), passage.getEnd());
+  }
+  
+  /**
+   * @param hist sentence similarities of the Document, starting at histOffset
+   * @return mean similarity of all sentences that are enclosed in [begin, end), or NaN if there are none
+   */
+  protected static double getPassageScore(float[] hist, int histOffset, SentenceSpans spans, int begin, int end) {
+    // sentences are ordered, so the enclosed ones are consecutive
+    int t = Arrays.binarySearch(spans.begins, spans.first, spans.first + spans.length, begin);
+    if(t < 0) t = -t - 1;
+    double sum = 0.;
+    int count = 0;
+    for(; t < spans.first + spans.length && spans.ends[t] <= end; t++) {
+      sum += hist[histOffset + t - spans.first];
+      count++;
+    }
+    return count > 0 ? sum / count : Double.NaN;
   }
   
   /** copy from BaseNDArray, which has a bug */
@@ -351,44 +1677,54 @@ public class QueryRunner {
   }
   
   
-  protected Query retrievePassagesByThreshold(Document doc, Query query, INDArray hist) {
-    
-    double docMaxRelevance = hist.maxNumber().doubleValue();
-    double docSumRelevance = hist.sumNumber().doubleValue();
-    double docAvgRelevance = hist.meanNumber().doubleValue();
+  protected void retrievePassagesByThreshold(Document doc, TopKCollector results, INDArray hist) {
+    retrievePassagesByThreshold(doc, results, hist, thresIn, thresOut);
+  }
+  
+  /**
+   * Segment a Document into passages of consecutive sentences. A passage starts at a sentence with similarity
+   * of at least thresIn and ends before the first sentence with similarity below thresOut.
+   */
+  public void retrievePassagesByThreshold(Document doc, TopKCollector results, INDArray hist, double thresIn, double thresOut) {
+    float[] scores = hist.toFloatVector();
+    SentenceSpans spans = getSentenceSpans(store, doc);
+    segmentPassages(doc, results, scores, 0, spans.begins, spans.ends, spans.first, scores.length, thresIn, thresOut);
+  }
   
+  /**
+   * Threshold state machine over a histogram of sentence similarities, without any allocations.
+   * @param hist sentence similarities, starting at histOffset
+   * @param begins character begin offsets of sentences, starting at first
+   * @param ends character end offsets of sentences, starting at first
+   * @param length number of sentences in the Document
+   */
+  protected static void segmentPassages(Document doc, TopKCollector results, float[] hist, int histOffset, int[] begins, int[] ends, int first, int length, double thresIn, double thresOut) {
     // TODO: try quadratic mean?
-    int t = 0;
-    double thresIn = 0.8;
-    double thresOut = 0.6;
     boolean inside = false;
-    int begin = 0, end = 0;
-    double length = 1;
+    int begin = 0, end = 0, count = 0;
     double sum = 0.;
-    // state machine
-    for(Sentence s : doc.getSentences()) {
-      double p = hist.getDouble(t++);
-      if(!inside && p >= thresIn) {
+    for(int t = 0; t < length; t++) {
+      float p = hist[histOffset + t];
+      if(inside) {
+        if(p < thresOut) {
+          inside = false;
+          results.offer(doc, begin, end, sum / count);
+        } else {
+          count++;
+          sum += p;
+          end = ends[first + t];
+        }
+      } else if(p >= thresIn) {
         inside = true;
-        length = 1;
+        count = 1;
         sum = p;
-        begin = s.getBegin();
-        end = s.getEnd();
-      } else if(inside && p < thresOut) {
-        inside = false;
-        addResult(query, doc, begin, end, sum / length);
-      } else if(inside) {
-        length++;
-        sum += p;
-        end = s.getEnd();
-      }
-      // print
-      //System.out.println(hist.getDouble(t++) + "\t" + s.getText().trim());
+        begin = begins[first + t];
+        end = ends[first + t];
+      }
     }
     if(inside) {
-      addResult(query, doc, begin, end, sum / length);
+      results.offer(doc, begin, end, sum / count);
     }
-    return query;
   }
   
   /** add a result with free begin / end */
@@ -397,7 +1733,8 @@ public class QueryRunner {
     ann.setConfidence(score);
     ann.setScore(score);
     q.addResult(ann);
-    log.trace("adding result from document '{}' with relevance {}: '{}'", doc.getTitle(), score, doc.getText(ann));
+    if(log.isTraceEnabled())
+      log.trace("adding result from document '{}' with relevance {}: '{}'", doc.getTitle(), score, doc.getText(ann));
   }
   
   /** add a result that was already defined as a passage */
@@ -407,7 +1744,74 @@ public class QueryRunner {
     ann.setScore(score);
     ann.setAnnotationRef(passage);
     q.addResult(ann);
-    log.trace("adding result from document '{}' with relevance {}: '{}'", doc.getTitle(), score, doc.getText(ann));
+    if(log.isTraceEnabled())
+      log.trace("adding result from document '{}' with relevance {}: '{}'", doc.getTitle(), score, doc.getText(ann));
+  }
+  
+  /**
+   * Character offsets of the sentences of a single Document, which are begins[first + t] and ends[first + t]
+   * for sentence t. The arrays may be shared with the vector store and must not be modified.
+   */
+  protected static class SentenceSpans {
+    
+    protected final int[] begins, ends;
+    protected final int first, length;
+    
+    protected SentenceSpans(int[] begins, int[] ends, int first, int length) {
+      this.begins = begins;
+      this.ends = ends;
+      this.first = first;
+      this.length = length;
+    }
+    
+  }
+  
+  /**
+   * An encoded Query with its projection and candidate Documents.
+   */
+  protected static class QueryPlan {
+    
+    /** vector store that was current when the Query was planned, or null */
+    protected final CorpusVectorStore store;
+    protected final Projection projection;
+    /** normalized query vector [dim x 1] */
+    protected final INDArray q;
+    /** heap copy of q, which is projected without any further ND4J calls */
+    protected final float[] qVector;
+    /** q quantized once for all Documents if the projection is quantized, or null */
+    protected final Int8Matrix.QuantizedVector qCodes;
+    protected final List<Document> docs;
+    /** candidate passages, or null to use all passages */
+    protected final Collection<? extends Annotation> candidates;
+    /** TRUE if all candidate passages are ranked at once */
+    protected boolean rankPassages = false;
+    /** passage rows in the vector store, or null for all passages */
+    protected int[] passageRows;
+    /** passages that are offered as results, aligned with the scores */
+    protected Annotation[] passageRefs;
+    /** precomputed centroids of the store that passageRows refer to, or null */
+    protected INDArray centroids;
+    /** BM25 scores of the candidate passages in descending order, or null */
+    protected double[] lexicalScores;
+    /** key of the precomputed aspect heatmap in the store, or null to project the full query vector */
+    protected String aspectKey;
+    /** normalized entity vector, which is combined with the aspect heatmap for ENTITY_ASPECT */
+    protected INDArray qf;
+    /** heap copy of qf */
+    protected float[] qfVector;
+    /** qf quantized if the ENTITY projection is quantized, or null */
+    protected Int8Matrix.QuantizedVector qfCodes;
+    
+    protected QueryPlan(CorpusVectorStore store, Projection projection, INDArray q, Collection<Document> docs, Collection<? extends Annotation> candidates) {
+      this.store = store;
+      this.projection = projection;
+      this.q = q;
+      this.qVector = q != null ? q.toFloatVector() : null;
+      this.qCodes = store != null && qVector != null ? store.quantizeQuery(projection, qVector) : null;
+      this.docs = docs instanceof List ? (List<Document>) docs : new ArrayList<>(docs);
+      this.candidates = candidates;
+    }
+    
   }
   
 }
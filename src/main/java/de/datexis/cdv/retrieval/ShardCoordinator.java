@@ -0,0 +1,228 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.common.Timer;
+import de.datexis.model.Annotation;
+import de.datexis.model.Dataset;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import de.datexis.model.impl.PassageAnnotation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scatters Queries to several ShardServers and merges their top-k results. Every shard request has a timeout
+ * and is retried with backoff if the connection fails. A shard that times out is not asked again, as it is
+ * most likely overloaded. If a shard does not answer, the Query is completed with the results of the other
+ * shards and flagged as partial (see EntityAspectQueryAnnotation.isPartial()). The coordinator holds no
+ * vectors or indexes, it only needs the Documents of the corpus to resolve the IDs in the results.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ShardCoordinator implements AutoCloseable {
+
+  protected final static Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+
+  public final static Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+  public final static int DEFAULT_RETRIES = 2;
+  /** wait before the first retry, which doubles with every further retry */
+  public final static Duration DEFAULT_BACKOFF = Duration.ofMillis(100);
+
+  protected final Dataset corpus;
+  protected final List<InetSocketAddress> shards;
+  /** Documents of the whole corpus by ID, to resolve the results of the shards */
+  protected final Map<String, Document> documents = new HashMap<>();
+  protected final ExecutorService executor;
+
+  protected Duration timeout = DEFAULT_TIMEOUT;
+  protected int retries = DEFAULT_RETRIES;
+  protected Duration backoff = DEFAULT_BACKOFF;
+  protected int maxResults = QueryRunner.NUM_RESULTS;
+
+  /**
+   * @param corpus Documents of all shards, which are only used to resolve the Document IDs of the results
+   * @param ports local ports of the ShardServers
+   */
+  public ShardCoordinator(Dataset corpus, int... ports) {
+    this(corpus, Arrays.stream(ports).mapToObj(port -> new InetSocketAddress("localhost", port)).toArray(InetSocketAddress[]::new));
+  }
+
+  public ShardCoordinator(Dataset corpus, InetSocketAddress... shards) {
+    this.corpus = corpus;
+    this.shards = Arrays.asList(shards);
+    for(Document doc : corpus.getDocuments()) {
+      if(doc.getId() != null) documents.put(doc.getId(), doc);
+    }
+    this.executor = Executors.newFixedThreadPool(Math.max(1, shards.length) * Runtime.getRuntime().availableProcessors(), r -> {
+      Thread thread = new Thread(r, "shard-request");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Set the timeout of a single shard request and the number of retries after a failed connection.
+   */
+  public void setTimeout(Duration timeout, int retries) {
+    this.timeout = timeout;
+    this.retries = retries;
+  }
+
+  /**
+   * Set the wait before the first retry, which doubles with every further retry.
+   */
+  public void setBackoff(Duration backoff) {
+    this.backoff = backoff;
+  }
+
+  public void setMaxResults(int maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * Retrieve all Queries of the corpus with given candidate strategy and wait until they are finished.
+   */
+  public void retrieveAllQueries(QueryRunner.Candidates candidateStrategy) {
+    final Timer timer = new Timer();
+    timer.start();
+    Collection<Query> queries = corpus.getQueries();
+    log.info("Retrieving {} queries with {} candidates on {} shard servers...", queries.size(), candidateStrategy, shards.size());
+    CompletableFuture.allOf(queries.stream()
+      .map(query -> retrieveAsync(query, candidateStrategy))
+      .toArray(CompletableFuture[]::new))
+      .join();
+    long time = timer.getLong();
+    log.info("Finished {} queries [{}, {} q/s]", queries.size(), Timer.millisToLongDHMS(time), String.format("%.2f", QueryExecutor.getQueriesPerSecond(queries.size(), time)));
+  }
+
+  public Query retrieveQuery(Query query, QueryRunner.Candidates candidateStrategy) {
+    return retrieveAsync(query, candidateStrategy).join();
+  }
+
+  /**
+   * Send a Query to all shards concurrently and add the merged top-k results to it.
+   */
+  public CompletableFuture<Query> retrieveAsync(Query query, QueryRunner.Candidates candidateStrategy) {
+    final String request = ShardServer.Request.fromQuery(query, candidateStrategy).toString();
+    final TopKCollector results = new TopKCollector(maxResults);
+    List<CompletableFuture<Boolean>> scattered = new ArrayList<>(shards.size());
+    for(InetSocketAddress shard : shards) {
+      scattered.add(CompletableFuture.supplyAsync(() -> requestShard(shard, request, results), executor));
+    }
+    return CompletableFuture.allOf(scattered.toArray(new CompletableFuture[0])).thenApply(v -> {
+      boolean complete = scattered.stream().allMatch(CompletableFuture::join);
+      results.addTo(query);
+      EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+      if(ann != null) ann.setPartial(!complete);
+      return query;
+    });
+  }
+
+  /**
+   * Send a request to a shard and offer its results. A request is only offered once it was received completely,
+   * so that a failed attempt does not leave any results behind. Failed connections are retried after a backoff,
+   * timeouts are not retried, as the shard would only get more load.
+   * @return TRUE if the shard answered within the allowed attempts
+   */
+  protected boolean requestShard(InetSocketAddress shard, String request, TopKCollector results) {
+    for(int attempt = 0; attempt <= retries; attempt++) {
+      if(attempt > 0 && !sleep(backoff.toMillis() << Math.min(attempt - 1, 16))) break;
+      try {
+        TopKCollector shardResults = new TopKCollector(maxResults);
+        sendRequest(shard, request, shardResults);
+        results.offerAll(shardResults);
+        return true;
+      } catch(SocketTimeoutException e) {
+        log.warn("shard {} timed out after {} ms (attempt {}/{})", shard, timeout.toMillis(), attempt + 1, retries + 1);
+        break;
+      } catch(IOException e) {
+        log.warn("shard {} failed: {} (attempt {}/{})", shard, e.toString(), attempt + 1, retries + 1);
+      }
+    }
+    log.error("shard {} did not answer, results are incomplete", shard);
+    return false;
+  }
+
+  /**
+   * @return FALSE if the thread was interrupted
+   */
+  protected static boolean sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+      return true;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Send a request and read the results. The timeout covers the whole request, so every read only waits for
+   * the remaining time.
+   */
+  protected void sendRequest(InetSocketAddress shard, String request, TopKCollector results) throws IOException {
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    try(Socket socket = new Socket()) {
+      socket.connect(shard, getRemainingMillis(deadline));
+      PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out.print(request + "\n");
+      out.flush();
+      String line;
+      while(true) {
+        socket.setSoTimeout(getRemainingMillis(deadline));
+        if((line = in.readLine()) == null) break;
+        if(System.currentTimeMillis() > deadline) throw new SocketTimeoutException("response exceeded timeout");
+        String[] fields = line.split("\t", -1);
+        if(fields[0].equals(ShardServer.END)) return;
+        if(fields[0].equals(ShardServer.ERROR)) throw new IOException("shard error: " + (fields.length > 1 ? fields[1] : ""));
+        if(!fields[0].equals(ShardServer.RESULT) || fields.length != 6) throw new IOException("malformed response: " + line);
+        Document doc = documents.get(fields[1]);
+        if(doc == null) {
+          log.warn("shard {} returned unknown document '{}'", shard, fields[1]);
+          continue;
+        }
+        int begin = Integer.parseInt(fields[2]), end = Integer.parseInt(fields[3]);
+        results.offer(doc, getPassage(doc, ShardServer.unescape(fields[5]), begin, end), begin, end, Double.parseDouble(fields[4]));
+      }
+      throw new EOFException("connection closed before end of results");
+    }
+  }
+
+  /**
+   * @return the milliseconds until the deadline, which are at least 1 as a socket timeout of 0 waits forever
+   * @throws SocketTimeoutException if the deadline has passed
+   */
+  protected static int getRemainingMillis(long deadline) throws SocketTimeoutException {
+    long remaining = deadline - System.currentTimeMillis();
+    if(remaining <= 0) throw new SocketTimeoutException("response exceeded timeout");
+    return (int) Math.min(Integer.MAX_VALUE, remaining);
+  }
+
+  /**
+   * @return the GOLD passage of a Document with the given ID and span, or null if there is none
+   */
+  protected Annotation getPassage(Document doc, String passageId, int begin, int end) {
+    if(passageId == null) return null;
+    Optional<PassageAnnotation> passage = doc.streamAnnotations(Annotation.Source.GOLD, PassageAnnotation.class, true)
+      .filter(p -> passageId.equals(p.getId()) && p.getBegin() == begin && p.getEnd() == end)
+      .findFirst();
+    if(!passage.isPresent()) log.warn("document '{}' has no passage '{}'", doc.getId(), passageId);
+    return passage.orElse(null);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,336 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.annotator.AnnotatorFactory;
+import de.datexis.cdv.CDVAnnotator;
+import de.datexis.cdv.index.AspectIndex;
+import de.datexis.cdv.index.AspectIndexBuilder;
+import de.datexis.cdv.index.CorpusVectorStore;
+import de.datexis.cdv.index.EntityIndex;
+import de.datexis.common.CommandLineParser;
+import de.datexis.common.ObjectSerializer;
+import de.datexis.common.Resource;
+import de.datexis.model.Dataset;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import de.datexis.retrieval.model.ScoredResult;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves Queries on one shard of a corpus over a line-based protocol on a local socket, so that a corpus can be
+ * split over several JVMs (see ShardCoordinator). Each request is a single line
+ * <pre>QUERY \t candidates \t entityId \t entity \t aspect \t aspectHeading</pre>
+ * which is answered with one line per result
+ * <pre>RESULT \t documentId \t begin \t end \t score \t passageId</pre>
+ * in descending order of score and a final END line, or with a single ERROR line. The passage ID refers to
+ * the GOLD PassageAnnotation of a PASSAGE_RANK result and is empty for other results.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ShardServer implements AutoCloseable {
+
+  protected final static Logger log = LoggerFactory.getLogger(ShardServer.class);
+
+  public final static String QUERY = "QUERY";
+  public final static String RESULT = "RESULT";
+  public final static String END = "END";
+  public final static String ERROR = "ERROR";
+
+  public final static int DEFAULT_PORT = 7400;
+
+  protected final QueryRunner runner;
+  protected final ServerSocket socket;
+  protected final ExecutorService connections;
+  protected volatile boolean running = true;
+
+  /**
+   * Open a server on the loopback interface. Call serve() to accept connections.
+   * @param port local port, or 0 to choose a free port
+   */
+  public ShardServer(QueryRunner runner, int port) throws IOException {
+    this.runner = runner;
+    this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.connections = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "shard-connection");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * Accept connections until the server is closed. Each connection is handled in its own thread.
+   */
+  public void serve() {
+    log.info("Serving shard with {} documents on port {}", runner.getDocuments().size(), getPort());
+    while(running) {
+      try {
+        Socket client = socket.accept();
+        connections.execute(() -> handle(client));
+      } catch(SocketException e) {
+        if(running) log.error("socket closed unexpectedly: {}", e.toString());
+        return;
+      } catch(IOException e) {
+        log.error("could not accept connection: {}", e.toString());
+      }
+    }
+  }
+
+  /**
+   * Answer all requests of a connection until it is closed by the client.
+   */
+  protected void handle(Socket client) {
+    try(Socket s = client;
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+      String line;
+      while((line = in.readLine()) != null) {
+        try {
+          Request request = Request.parse(line);
+          Query query = request.toQuery();
+          TopKCollector results = runner.collectQuery(runner.planQuery(query, request.candidates));
+          writeResults(out, results);
+        } catch(Exception e) {
+          log.error("could not answer request '{}': {}", line, e.toString());
+          out.print(ERROR + "\t" + escape(e.toString()) + "\n");
+        }
+        out.flush();
+      }
+    } catch(IOException e) {
+      log.warn("connection closed: {}", e.toString());
+    }
+  }
+
+  protected static void writeResults(PrintWriter out, TopKCollector results) {
+    for(ScoredResult result : results.getResults()) {
+      String passageId = result.getAnnotationRef() != null ? result.getAnnotationRef().getId() : null;
+      out.print(RESULT + "\t" + escape(result.getDocumentRef().getId()) + "\t" + result.getBegin() + "\t" + result.getEnd() + "\t" + result.getScore() + "\t" + escape(passageId) + "\n");
+    }
+    out.print(END + "\n");
+  }
+
+  /**
+   * @return the value without protocol delimiters, or an empty string for null
+   */
+  protected static String escape(String value) {
+    return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  protected static String unescape(String value) {
+    return value.isEmpty() ? null : value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    running = false;
+    socket.close();
+    connections.shutdownNow();
+  }
+
+  /**
+   * A Query as it is sent over the socket.
+   */
+  protected static class Request {
+
+    protected QueryRunner.Candidates candidates;
+    protected String entityId, entity, aspect, aspectHeading;
+
+    protected static Request fromQuery(Query query, QueryRunner.Candidates candidates) {
+      EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+      Request request = new Request();
+      request.candidates = candidates;
+      request.entityId = ann.getEntityId();
+      request.entity = ann.getEntity();
+      request.aspect = ann.getAspect();
+      request.aspectHeading = ann.getAspectHeading();
+      return request;
+    }
+
+    protected static Request parse(String line) {
+      String[] fields = line.split("\t", -1);
+      if(fields.length != 6 || !fields[0].equals(QUERY))
+        throw new IllegalArgumentException("malformed request");
+      Request request = new Request();
+      request.candidates = QueryRunner.Candidates.valueOf(fields[1]);
+      if(request.candidates == QueryRunner.Candidates.GIVEN)
+        throw new IllegalArgumentException("GIVEN candidates are not supported by shard servers");
+      request.entityId = unescape(fields[2]);
+      request.entity = unescape(fields[3]);
+      request.aspect = unescape(fields[4]);
+      request.aspectHeading = unescape(fields[5]);
+      return request;
+    }
+
+    protected Query toQuery() {
+      Query query = EntityAspectQueryAnnotation.createQuery(entity, aspect);
+      EntityAspectQueryAnnotation ann = query.getAnnotation(EntityAspectQueryAnnotation.class);
+      ann.setEntityId(entityId);
+      ann.setAspectHeading(aspectHeading);
+      return query;
+    }
+
+    @Override
+    public String toString() {
+      return QUERY + "\t" + candidates.name() + "\t" + escape(entityId) + "\t" + escape(entity) + "\t" + escape(aspect) + "\t" + escape(aspectHeading);
+    }
+
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    final ShardServer.ExecParams params = new ShardServer.ExecParams();
+    final CommandLineParser parser = new CommandLineParser(params);
+
+    try {
+      parser.parse(args);
+      if(params.shardsDir != null) {
+        writeShards(ObjectSerializer.readFromJSON(Resource.fromDirectory(params.datasetDir), Dataset.class), params.numShards, Resource.fromDirectory(params.shardsDir));
+        return;
+      }
+      ShardServer server = createServer(params);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          server.close();
+        } catch(IOException e) {
+          log.warn(e.toString());
+        }
+      }));
+      server.serve();
+    } catch(ParseException e) {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("shard-server", "TeXoo: serve CDV retrieval on one shard of a corpus", params.setUpCliOptions(), "", true);
+      System.exit(1);
+    } catch(Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+
+  }
+
+  protected static class ExecParams implements CommandLineParser.Options {
+
+    protected String multiTaskModelDir = null;
+    protected String encoderDir = null;
+    protected String datasetDir = null;
+    protected int shard = 0;
+    protected int numShards = 1;
+    protected int port = DEFAULT_PORT;
+    protected QueryRunner.Strategy strategy = QueryRunner.Strategy.PASSAGE_RANK;
+    protected boolean presplit = false;
+    protected String shardsDir = null;
+
+    @Override
+    public void setParams(CommandLine parse) {
+      multiTaskModelDir = parse.getOptionValue("m");
+      encoderDir = parse.getOptionValue("p");
+      datasetDir = parse.getOptionValue("d");
+      shard = Integer.parseInt(parse.getOptionValue("s", "0"));
+      numShards = Integer.parseInt(parse.getOptionValue("n", "1"));
+      port = Integer.parseInt(parse.getOptionValue("o", String.valueOf(DEFAULT_PORT + shard)));
+      strategy = QueryRunner.Strategy.valueOf(parse.getOptionValue("t", QueryRunner.Strategy.PASSAGE_RANK.name()));
+      presplit = parse.hasOption("x");
+      shardsDir = parse.getOptionValue("w");
+    }
+
+    @Override
+    public Options setUpCliOptions() {
+      Options op = new Options();
+      op.addOption("m", "model", true, "path to the pre-trained CDV multi-task model (required to serve a shard)");
+      op.addOption("p", "path", true, "search path to sentence embedding models (if not provided by the model itself)");
+      op.addRequiredOption("d", "dataset", true, "path to the corpus (json)");
+      op.addOption("s", "shard", true, "index of the shard that is served (default: 0)");
+      op.addOption("n", "shards", true, "total number of shards (default: 1)");
+      op.addOption("o", "port", true, "local port (default: " + DEFAULT_PORT + " + shard)");
+      op.addOption("t", "strategy", true, "retrieval strategy PASSAGE_RANK or SENTENCE_THRESHOLD (default: PASSAGE_RANK)");
+      op.addOption("x", "presplit", false, "the dataset is a shard file written with --write-shards, which is served as is");
+      op.addOption("w", "write-shards", true, "split the dataset into one file per shard in this directory and exit");
+      return op;
+    }
+
+  }
+
+  /**
+   * Split a corpus into one file per shard, so that every ShardServer only reads its own Documents. Each file
+   * keeps the name and all Queries of the corpus.
+   */
+  public static void writeShards(Dataset corpus, int numShards, Resource outputDir) throws IOException {
+    List<Dataset> shards = new ArrayList<>(numShards);
+    for(int i = 0; i < numShards; i++) {
+      Dataset shard = new Dataset(corpus.getName());
+      for(Query query : corpus.getQueries()) shard.addQuery(query);
+      shards.add(shard);
+    }
+    for(Document doc : corpus.getDocuments()) {
+      shards.get(ShardedQueryRunner.getShardIndex(doc.getId(), numShards)).addDocument(doc);
+    }
+    outputDir.toFile().mkdirs();
+    for(int i = 0; i < numShards; i++) {
+      log.info("writing shard {} with {} documents...", i, shards.get(i).countDocuments());
+      ObjectSerializer.writeJSON(shards.get(i), outputDir.resolve(getShardFileName(corpus.getName(), i)));
+    }
+  }
+
+  /**
+   * @return the file name of a shard written by writeShards()
+   */
+  public static String getShardFileName(String corpusName, int shard) {
+    return corpusName + "-" + shard + ".json";
+  }
+
+  /**
+   * Load the model and encode all Documents that belong to the given shard. The shard is either filtered from
+   * the whole corpus or read from a file written by writeShards().
+   */
+  protected static ShardServer createServer(ShardServer.ExecParams params) throws IOException {
+
+    if(params.multiTaskModelDir == null) throw new IllegalArgumentException("model path is required to serve a shard");
+    Resource datasetPath = Resource.fromDirectory(params.datasetDir);
+    Resource cdvModelPath = Resource.fromDirectory(params.multiTaskModelDir);
+    Resource embeddingPath = Resource.fromDirectory(params.encoderDir != null ? params.encoderDir : params.multiTaskModelDir);
+
+    // --- load data ---------------------------------------------------------------------------------------------------
+    Dataset corpus = ObjectSerializer.readFromJSON(datasetPath, Dataset.class);
+    Dataset shard = corpus;
+    if(!params.presplit) {
+      shard = new Dataset(corpus.getName());
+      for(Query query : corpus.getQueries()) shard.addQuery(query);
+      for(Document doc : corpus.getDocuments()) {
+        if(ShardedQueryRunner.getShardIndex(doc.getId(), params.numShards) == params.shard) shard.addDocument(doc);
+      }
+    }
+
+    // --- load model --------------------------------------------------------------------------------------------------
+    CDVAnnotator cdv = (CDVAnnotator) AnnotatorFactory.loadAnnotator(cdvModelPath, embeddingPath);
+    EntityIndex entityIndex = (EntityIndex) cdv.getEntityEncoder();
+    AspectIndex aspectIndex = AspectIndexBuilder.buildAspectIndex(cdv.getAspectEncoder(), corpus.getName());
+
+    // --- annotate ----------------------------------------------------------------------------------------------------
+    cdv.getTagger().setMaxWordsPerSentence(-1); // don't limit sentence length during inference
+    cdv.getTagger().setMaxTimeSeriesLength(-1); // don't limit document length during inference
+    cdv.getTagger().setBatchSize(16);
+    CorpusVectorStore store = cdv.annotateCorpus(shard.getDocuments());
+
+    QueryRunner runner = new QueryRunner(shard, store, entityIndex, aspectIndex, params.strategy);
+    runner.setMaxResults(QueryRunner.NUM_RESULTS); // results are sent over the socket, see ShardCoordinator
+    return new ShardServer(runner, params.port);
+
+  }
+
+}
@@ -0,0 +1,226 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.cdv.index.CorpusVectorStore;
+import de.datexis.cdv.index.QueryIndex;
+import de.datexis.cdv.tagger.CDVTagger;
+import de.datexis.common.Timer;
+import de.datexis.model.Dataset;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Partitions a corpus into shards by Document ID. Every shard is a QueryRunner with its own vector store and
+ * Lucene indexes, so that shards can be updated independently and their structures stay small. Queries are
+ * scattered to all shards concurrently and the top-k results of the shards are merged into the global top-k.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ShardedQueryRunner implements AutoCloseable {
+
+  protected final static Logger log = LoggerFactory.getLogger(ShardedQueryRunner.class);
+
+  protected final Dataset corpus;
+  protected final List<Shard> shards;
+  protected final ForkJoinPool pool;
+  protected int maxResults = 0;
+
+  public ShardedQueryRunner(Dataset corpus, CorpusVectorStore store, QueryIndex entityIndex, QueryIndex aspectIndex, QueryRunner.Strategy strategy, int numShards) {
+    this(corpus, store, entityIndex, aspectIndex, strategy, numShards, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param store vector store of the whole corpus, which is split into one store per shard. May be null to read
+   *              the vectors from the Documents.
+   * @param parallelism number of threads that retrieve shards
+   */
+  public ShardedQueryRunner(Dataset corpus, CorpusVectorStore store, QueryIndex entityIndex, QueryIndex aspectIndex, QueryRunner.Strategy strategy, int numShards, int parallelism) {
+    if(numShards < 1) throw new IllegalArgumentException("number of shards must be positive");
+    this.corpus = corpus;
+    this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    List<Dataset> datasets = new ArrayList<>(numShards);
+    for(int i = 0; i < numShards; i++) {
+      datasets.add(new Dataset(corpus.getName() + "-" + i));
+    }
+    for(Document doc : store != null ? store.getDocuments() : corpus.getDocuments()) {
+      datasets.get(getShardIndex(doc.getId(), numShards)).addDocument(doc);
+    }
+    this.shards = new ArrayList<>(numShards);
+    for(int i = 0; i < numShards; i++) {
+      CorpusVectorStore shardStore = store != null ? splitStore(store, datasets.get(i)) : null;
+      Shard shard = new Shard(corpus, datasets.get(i), shardStore, entityIndex, aspectIndex, strategy, i, numShards, i > 0 ? shards.get(0) : null);
+      shard.setParallelism(1);
+      shards.add(shard);
+    }
+    log.info("Split {} documents into {} shards", datasets.stream().mapToInt(Dataset::countDocuments).sum(), numShards);
+  }
+
+  /**
+   * @return a copy of the store that only contains the Documents of the given shard, including their
+   * precomputed centroids and heatmaps
+   */
+  protected static CorpusVectorStore splitStore(CorpusVectorStore store, Dataset shard) {
+    return store.select(shard.getDocuments());
+  }
+
+  protected static int getShardIndex(String docId, int numShards) {
+    return docId != null ? Math.floorMod(docId.hashCode(), numShards) : 0;
+  }
+
+  public int getNumShards() {
+    return shards.size();
+  }
+
+  /**
+   * @return the QueryRunner of a single shard, e.g. to configure or rebuild it
+   */
+  public QueryRunner getShard(int index) {
+    return shards.get(index);
+  }
+
+  /**
+   * Set the number of results that are kept per query and shard, or 0 to keep all results (default).
+   */
+  public void setMaxResults(int maxResults) {
+    this.maxResults = maxResults;
+    for(Shard shard : shards) shard.setMaxResults(maxResults);
+  }
+
+  public void setThresholds(double thresIn, double thresOut) {
+    for(Shard shard : shards) shard.setThresholds(thresIn, thresOut);
+  }
+
+  public void setTagger(CDVTagger tagger) {
+    for(Shard shard : shards) shard.setTagger(tagger);
+  }
+
+  /**
+   * Add Documents to the shards they belong to. Documents that have the ID of an existing Document replace it.
+   * @return a future that completes when the Documents are searchable in all shards
+   */
+  public CompletableFuture<Void> addDocuments(Collection<Document> docs) {
+    Map<Integer, List<Document>> byShard = docs.stream().collect(Collectors.groupingBy(doc -> getShardIndex(doc.getId(), shards.size())));
+    return CompletableFuture.allOf(byShard.entrySet().stream()
+      .map(e -> shards.get(e.getKey()).addDocuments(e.getValue()))
+      .toArray(CompletableFuture[]::new));
+  }
+
+  /**
+   * Remove Documents from the shards they belong to. They are excluded from all results immediately.
+   * @return a future that completes when the Documents are removed from all shard stores
+   */
+  public CompletableFuture<Void> removeDocuments(Collection<String> ids) {
+    Map<Integer, List<String>> byShard = ids.stream().collect(Collectors.groupingBy(id -> getShardIndex(id, shards.size())));
+    return CompletableFuture.allOf(byShard.entrySet().stream()
+      .map(e -> shards.get(e.getKey()).removeDocuments(e.getValue()))
+      .toArray(CompletableFuture[]::new));
+  }
+
+  /**
+   * Retrieve all Queries of the corpus with given candidate strategy and wait until they are finished.
+   */
+  public void retrieveAllQueries(QueryRunner.Candidates candidateStrategy) {
+    retrieveQueries(corpus.getQueries(), candidateStrategy);
+  }
+
+  public void retrieveQueries(Collection<Query> queries, QueryRunner.Candidates candidateStrategy) {
+    final Timer timer = new Timer();
+    timer.start();
+    log.info("Retrieving {} queries with {} candidates on {} shards...", queries.size(), candidateStrategy, shards.size());
+    CompletableFuture.allOf(queries.stream()
+      .map(query -> retrieveAsync(query, candidateStrategy))
+      .toArray(CompletableFuture[]::new))
+      .join();
+    long time = timer.getLong();
+    log.info("Finished {} queries [{}, {} q/s]", queries.size(), Timer.millisToLongDHMS(time), String.format("%.2f", QueryExecutor.getQueriesPerSecond(queries.size(), time)));
+    shards.get(0).logCacheStats();
+  }
+
+  public Query retrieveQuery(Query query, QueryRunner.Candidates candidateStrategy) {
+    return retrieveAsync(query, candidateStrategy).join();
+  }
+
+  /**
+   * Retrieve a Query on all shards concurrently and add the merged top-k results to it.
+   */
+  public CompletableFuture<Query> retrieveAsync(Query query, QueryRunner.Candidates candidateStrategy) {
+    List<CompletableFuture<TopKCollector>> scattered = shards.stream()
+      .map(shard -> CompletableFuture.supplyAsync(() -> shard.retrieveShard(query, candidateStrategy), pool))
+      .collect(Collectors.toList());
+    return CompletableFuture.allOf(scattered.toArray(new CompletableFuture[0])).thenApply(v -> {
+      TopKCollector results = new TopKCollector(maxResults);
+      for(CompletableFuture<TopKCollector> shardResults : scattered) {
+        results.offerAll(shardResults.join());
+      }
+      results.addTo(query);
+      return query;
+    });
+  }
+
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+
+  /**
+   * QueryRunner on a part of the corpus. Query vectors are looked up in the cache of the first shard, so that
+   * every Query is only encoded once. Aspects and entities are precomputed for the Queries of the whole corpus.
+   */
+  protected static class Shard extends QueryRunner {
+
+    protected final Dataset parent;
+    protected final int index, numShards;
+    protected final Shard encoder;
+
+    protected Shard(Dataset parent, Dataset corpus, CorpusVectorStore store, QueryIndex entityIndex, QueryIndex aspectIndex, Strategy strategy, int index, int numShards, Shard encoder) {
+      super(corpus, store, entityIndex, aspectIndex, strategy);
+      this.parent = parent;
+      this.index = index;
+      this.numShards = numShards;
+      this.encoder = encoder;
+    }
+
+    @Override
+    protected INDArray lookupEntity(EntityAspectQueryAnnotation ann) {
+      return encoder != null ? encoder.lookupEntity(ann) : super.lookupEntity(ann);
+    }
+
+    @Override
+    protected INDArray lookupAspect(EntityAspectQueryAnnotation ann) {
+      return encoder != null ? encoder.lookupAspect(ann) : super.lookupAspect(ann);
+    }
+
+    @Override
+    protected Dataset getQueryCorpus() {
+      return parent;
+    }
+
+    /**
+     * GIVEN candidates are restricted to the Documents of this shard, all other strategies only find those.
+     */
+    @Override
+    protected boolean isGivenDocument(Document doc) {
+      return getShardIndex(doc.getId(), numShards) == index;
+    }
+
+    /**
+     * Retrieve a Query on this shard in the current thread.
+     */
+    protected TopKCollector retrieveShard(Query query, Candidates candidateStrategy) {
+      TopKCollector results = createCollector();
+      QueryPlan plan = planQuery(query, candidateStrategy);
+      if(plan == null) return results;
+      if(plan.rankPassages) retrieveRankedPassages(plan, results);
+      else retrieveDocuments(plan, results, 0, plan.docs.size());
+      return results;
+    }
+
+  }
+
+}
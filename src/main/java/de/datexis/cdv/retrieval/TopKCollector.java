@@ -0,0 +1,173 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.model.Annotation;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import de.datexis.retrieval.model.ScoredResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the top-k passages of a Query as primitive (document, begin, end, score) tuples in a bounded
+ * min-heap. ScoredResults are only created for the final top-k. Offers are thread-safe.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class TopKCollector {
+
+  protected final static Logger log = LoggerFactory.getLogger(TopKCollector.class);
+
+  /** initial capacity for unbounded collectors */
+  protected final static int INITIAL_CAPACITY = 64;
+
+  /** maximum number of results, or 0 if unbounded */
+  protected final int k;
+
+  protected int size = 0;
+  protected Document[] docs;
+  protected Annotation[] passages;
+  protected int[] begins;
+  protected int[] ends;
+  protected double[] scores;
+
+  /** minimum score that is accepted once the heap is full */
+  protected volatile double threshold = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @param k maximum number of results to keep, or 0 to keep all results
+   */
+  public TopKCollector(int k) {
+    this.k = Math.max(0, k);
+    int capacity = this.k > 0 ? this.k : INITIAL_CAPACITY;
+    docs = new Document[capacity];
+    passages = new Annotation[capacity];
+    begins = new int[capacity];
+    ends = new int[capacity];
+    scores = new double[capacity];
+  }
+
+  /**
+   * Offer a result with free begin / end.
+   */
+  public void offer(Document doc, int begin, int end, double score) {
+    offer(doc, null, begin, end, score);
+  }
+
+  /**
+   * Offer a result that was already defined as a passage.
+   */
+  public void offer(Document doc, Annotation passage, double score) {
+    offer(doc, passage, passage.getBegin(), passage.getEnd(), score);
+  }
+
+  protected void offer(Document doc, Annotation passage, int begin, int end, double score) {
+    if(score <= threshold) return; // fast path without locking
+    synchronized(this) {
+      if(k == 0) {
+        if(size == scores.length) grow();
+        set(size++, doc, passage, begin, end, score);
+      } else if(size < k) {
+        set(size, doc, passage, begin, end, score);
+        siftUp(size++);
+        if(size == k) threshold = scores[0];
+      } else if(score > scores[0]) {
+        set(0, doc, passage, begin, end, score);
+        siftDown(0);
+        threshold = scores[0];
+      }
+    }
+  }
+
+  /**
+   * Offer all results of another collector, e.g. to merge the top-k of several shards.
+   */
+  public void offerAll(TopKCollector other) {
+    synchronized(other) {
+      for(int i = 0; i < other.size; i++) {
+        offer(other.docs[i], other.passages[i], other.begins[i], other.ends[i], other.scores[i]);
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Add all collected results to the given Query in descending order of score.
+   */
+  public void addTo(Query query) {
+    for(ScoredResult ann : getResults()) {
+      query.addResult(ann);
+    }
+  }
+
+  /**
+   * @return all collected results in descending order of score
+   */
+  public synchronized List<ScoredResult> getResults() {
+    Integer[] order = new Integer[size];
+    for(int i = 0; i < size; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+    List<ScoredResult> result = new ArrayList<>(size);
+    for(int i : order) {
+      ScoredResult ann = new ScoredResult(Annotation.Source.PRED, docs[i], begins[i], ends[i]);
+      ann.setConfidence(scores[i]);
+      ann.setScore(scores[i]);
+      if(passages[i] != null) ann.setAnnotationRef(passages[i]);
+      result.add(ann);
+      if(log.isTraceEnabled())
+        log.trace("adding result from document '{}' with relevance {}: '{}'", docs[i].getTitle(), scores[i], docs[i].getText(ann));
+    }
+    return result;
+  }
+
+  protected void set(int i, Document doc, Annotation passage, int begin, int end, double score) {
+    docs[i] = doc;
+    passages[i] = passage;
+    begins[i] = begin;
+    ends[i] = end;
+    scores[i] = score;
+  }
+
+  protected void grow() {
+    int capacity = scores.length * 2;
+    docs = Arrays.copyOf(docs, capacity);
+    passages = Arrays.copyOf(passages, capacity);
+    begins = Arrays.copyOf(begins, capacity);
+    ends = Arrays.copyOf(ends, capacity);
+    scores = Arrays.copyOf(scores, capacity);
+  }
+
+  protected void siftUp(int i) {
+    while(i > 0) {
+      int parent = (i - 1) / 2;
+      if(scores[parent] <= scores[i]) break;
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  protected void siftDown(int i) {
+    while(true) {
+      int left = 2 * i + 1, right = left + 1, min = i;
+      if(left < size && scores[left] < scores[min]) min = left;
+      if(right < size && scores[right] < scores[min]) min = right;
+      if(min == i) break;
+      swap(i, min);
+      i = min;
+    }
+  }
+
+  protected void swap(int i, int j) {
+    Document d = docs[i]; docs[i] = docs[j]; docs[j] = d;
+    Annotation p = passages[i]; passages[i] = passages[j]; passages[j] = p;
+    int b = begins[i]; begins[i] = begins[j]; begins[j] = b;
+    int e = ends[i]; ends[i] = ends[j]; ends[j] = e;
+    double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+  }
+
+}
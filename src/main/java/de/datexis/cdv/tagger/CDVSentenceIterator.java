@@ -16,11 +16,11 @@ import de.datexis.model.Span;
 import de.datexis.model.Token;
 import de.datexis.model.impl.PassageAnnotation;
 import de.datexis.tagger.DocumentSentenceIterator;
-import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.factory.Nd4j;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -94,7 +94,8 @@ public class CDVSentenceIterator extends DocumentSentenceIterator {
   
   public INDArray createMask(List<Document> input, int maxTimeSteps, Class<? extends Span> timeStepClass) {
 
-    INDArray mask = Nd4j.zeros(DataType.FLOAT, input.size(), maxTimeSteps);
+    // fill the mask on the heap and copy it in a single call
+    float[] mask = new float[input.size() * maxTimeSteps];
     Document example;
 
     for(int batchIndex = 0; batchIndex < input.size(); batchIndex++) {
@@ -104,12 +105,10 @@ public class CDVSentenceIterator extends DocumentSentenceIterator {
       if(timeStepClass == Token.class) spanCount = example.countTokens();
       else if(timeStepClass == Sentence.class) spanCount = example.countSentences();
 
-      for(int t = 0; t < spanCount && t < maxTimeSteps; t++) {
-        mask.putScalar(new int[] {batchIndex, t}, 1);
-      }
+      Arrays.fill(mask, batchIndex * maxTimeSteps, batchIndex * maxTimeSteps + Math.min(spanCount, maxTimeSteps), 1f);
       
     }
-    return mask;
+    return Nd4j.create(mask, new int[] {input.size(), maxTimeSteps}, 'c');
   }
 
   public <S extends Span, A extends PassageAnnotation> INDArray encodeTarget(INDArray labelMask, List<Document> input, int maxTimeSteps, IEncoder encoder, Class<S> timeStepClass, Class<A> passageClass) {
@@ -120,7 +119,7 @@ public class CDVSentenceIterator extends DocumentSentenceIterator {
     for(int batchIndex = 0; batchIndex < input.size(); batchIndex++) {
       example = input.get(batchIndex);
       int t = 0;
-      INDArray vec = Nd4j.zeros(DataType.FLOAT, encoder.getEmbeddingVectorSize(), 1);
+      INDArray vec = null; // assigned at the first time step
       double weight = 0;
       Collection<A> current, last = null;
       for(Map.Entry<S, Collection<A>> ann : AnnotationHelpers.getSpanAnnotationsMultiMap(example, timeStepClass, passageClass)) {
@@ -2,7 +2,9 @@ package de.datexis.cdv.tagger;
 
 import com.google.common.collect.Lists;
 import de.datexis.cdv.index.AspectIndex;
+import de.datexis.cdv.index.CorpusVectorStore;
 import de.datexis.cdv.index.EntityIndex;
+import de.datexis.cdv.index.Projection;
 import de.datexis.common.Resource;
 import de.datexis.encoder.Encoder;
 import de.datexis.encoder.EncodingHelpers;
@@ -365,13 +367,70 @@ public class CDVTagger extends Tagger implements IEncoder {
   }
   
   protected void attachCDVDocumentMatrix(DocumentSentenceIterator.DocumentBatch batch) {
+    INDArray[] targets = predictDocumentMatrices(batch);
+    INDArray entityTarget = targets[0], aspectTarget = targets[1];
+    // append matrices to documents
+    int batchIndex = 0; for(Document doc : batch.docs) {
+      if(doc.countSentences() > 0) {
+        if(entityTarget != null) {
+          INDArray docVec = entityTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
+          doc.putVector(getEntityEncoder().getClass(), normalizeSentences(docVec));
+        }
+        if(aspectTarget != null) {
+          INDArray docVec = aspectTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
+          doc.putVector(getAspectEncoder().getClass(), normalizeSentences(docVec));
+        }
+      }
+      batchIndex++;
+    }
+  }
+  
+  /**
+   * Encode all Documents into a contiguous CorpusVectorStore instead of attaching a matrix to every Document.
+   */
+  public CorpusVectorStore encodeCorpusVectorStore(Collection<Document> docs) {
+    CorpusVectorStore store = new CorpusVectorStore(docs);
+    if(getEntityEncoder() != null) store.allocate(Projection.ENTITY, getEntityEncoder().getEmbeddingVectorSize());
+    if(getAspectEncoder() != null) store.allocate(Projection.ASPECT, getAspectEncoder().getEmbeddingVectorSize());
+    DocumentSentenceIterator it = createIterator(Stage.ENCODE, docs);
+    while(it.hasNext()) {
+      encodeCorpusVectorStore(it.nextDocumentBatch(), store);
+    }
+    store.stackProjections();
+    return store;
+  }
+  
+  protected void encodeCorpusVectorStore(DocumentSentenceIterator.DocumentBatch batch, CorpusVectorStore store) {
+    INDArray[] targets = predictDocumentMatrices(batch);
+    INDArray entityTarget = targets[0], aspectTarget = targets[1];
+    // copy matrices into the store
+    int batchIndex = 0; for(Document doc : batch.docs) {
+      int docIndex = store.getDocumentIndex(doc);
+      if(doc.countSentences() > 0 && docIndex >= 0) {
+        if(entityTarget != null) {
+          INDArray docVec = entityTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
+          store.putDocumentMatrix(Projection.ENTITY, docIndex, normalizeSentences(docVec));
+        }
+        if(aspectTarget != null) {
+          INDArray docVec = aspectTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
+          store.putDocumentMatrix(Projection.ASPECT, docIndex, normalizeSentences(docVec));
+        }
+      }
+      batchIndex++;
+    }
+  }
+  
+  /**
+   * @return entity and aspect output [batch x dim x sentences] for a batch, or null if the model has no such head
+   */
+  protected INDArray[] predictDocumentMatrices(DocumentSentenceIterator.DocumentBatch batch) {
     // predict outputs
     INDArray[] weights;
     synchronized(getNN()) {
       getNN().setLabels(batch.dataset.getLabels()); // setting empty labels because batchsize is calculated from labels array
       weights = getNN().output(false, batch.dataset.getFeatures(), batch.dataset.getFeaturesMaskArrays(), batch.dataset.getLabelsMaskArrays());
     }
-    INDArray entityTarget = null, aspectTarget = null, embedding = null;
+    INDArray entityTarget = null, aspectTarget = null;
     if(getEntityEncoder() != null && getAspectEncoder() != null) {
       // Multi-Task model
       entityTarget = weights[0];
@@ -381,32 +440,42 @@ public class CDVTagger extends Tagger implements IEncoder {
     } else if(getAspectEncoder() != null) {
       aspectTarget = weights[0];
     }
-    // append matrices to documents
-    int batchIndex = 0; for(Document doc : batch.docs) {
-      if(doc.countSentences() > 0) {
-        if(entityTarget != null) {
-          INDArray docVec = entityTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
-          // normalize all sentences to Unit length
-          for(int i = 0; i < docVec.size(1); i++) {
-            INDArray sentVec = docVec.getColumn(i);
-            docVec.getColumn(i).assign(Transforms.unitVec(sentVec));
-          }
-          doc.putVector(getEntityEncoder().getClass(), docVec);
-        }
-        if(aspectTarget != null) {
-          INDArray docVec = aspectTarget.get(point(batchIndex), all(), interval(0, doc.countSentences()));
-          // normalize all sentences to Unit length
-          for(int i = 0; i < docVec.size(1); i++) {
-            INDArray sentVec = docVec.getColumn(i);
-            docVec.getColumn(i).assign(Transforms.unitVec(sentVec));
-          }
-          doc.putVector(getAspectEncoder().getClass(), docVec);
-        }
-      }
-      batchIndex++;
+    return new INDArray[] {entityTarget, aspectTarget};
+  }
+  
+  /**
+   * Normalize all sentences of a Document matrix [dim x sentences] to unit length (in place).
+   */
+  public static INDArray normalizeSentences(INDArray docVec) {
+    return docVec.diviRowVector(Transforms.max(docVec.norm2(0), Nd4j.EPS_THRESHOLD, false));
+  }
+  
+  /**
+   * Attach the stacked entity/aspect matrix to each Document, so that concatenated queries can be projected
+   * with a single matrix-vector product. Requires attachCDVDocumentMatrix() to run first.
+   */
+  public void attachStackedDocumentMatrix(Collection<Document> docs) {
+    if(getEntityEncoder() == null || getAspectEncoder() == null) return;
+    attachStackedDocumentMatrix(docs, getEntityEncoder().getClass(), getAspectEncoder().getClass());
+  }
+  
+  /**
+   * Attach the stacked matrix of two single-task models to each Document.
+   */
+  public static void attachStackedDocumentMatrix(Collection<Document> docs, Class<? extends IEncoder> entityClass, Class<? extends IEncoder> aspectClass) {
+    for(Document doc : docs) {
+      if(doc.countSentences() == 0) continue;
+      doc.putVector(CDVTagger.class, stackDocumentMatrix(doc.getVector(entityClass), doc.getVector(aspectClass)));
     }
   }
   
+  /**
+   * @return stacked matrix [entity+aspect x sentences] with all sentences normalized to unit length
+   */
+  public static INDArray stackDocumentMatrix(INDArray entityVec, INDArray aspectVec) {
+    return normalizeSentences(Nd4j.vstack(entityVec, aspectVec));
+  }
+  
   @Deprecated
   protected void attachMatrixBaseline(DocumentSentenceIterator.DocumentBatch batch) {
     // encode outputs (baseline)
@@ -0,0 +1,116 @@
+package de.datexis.cdv.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cone tree is exact, so threshold search has to return the same rows as a scan over all vectors.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ConeTreeIndexTest {
+
+  protected final static int DIM = 24;
+  protected final static double[] THRESHOLDS = {-0.1, 0.2, 0.4, 0.6, 0.8, 0.95};
+
+  /**
+   * @return rows with an inner product of at least threshold with q, in ascending order
+   */
+  protected static int[] scan(VectorRows rows, float[] q, double threshold) {
+    return java.util.stream.IntStream.range(0, rows.rows())
+      .filter(i -> rows.dot(i, q, 0) >= threshold)
+      .toArray();
+  }
+
+  /**
+   * @return unit vectors [n x dim] around a few random directions, so that subtrees can be pruned
+   */
+  protected static float[] clusteredVectors(int n, int dim, Random random) {
+    float[] centers = RandomVectors.unitVectors(8, dim, random);
+    float[] vectors = RandomVectors.unitVectors(n, dim, random);
+    for(int i = 0; i < n; i++) {
+      int c = random.nextInt(8);
+      double norm = 0.;
+      for(int j = 0; j < dim; j++) {
+        vectors[i * dim + j] = centers[c * dim + j] + 0.3f * vectors[i * dim + j];
+        norm += vectors[i * dim + j] * vectors[i * dim + j];
+      }
+      for(int j = 0; j < dim; j++) vectors[i * dim + j] /= Math.sqrt(norm);
+    }
+    return vectors;
+  }
+
+  protected void assertExact(VectorRows rows, float[] queries, int leafSize) {
+    ConeTreeIndex index = new ConeTreeIndex(rows, leafSize).build();
+    for(int i = 0; i < queries.length / DIM; i++) {
+      float[] q = Arrays.copyOfRange(queries, i * DIM, (i + 1) * DIM);
+      for(double threshold : THRESHOLDS) {
+        assertArrayEquals("query " + i + " threshold " + threshold, scan(rows, q, threshold), index.search(q, threshold));
+      }
+    }
+  }
+
+  @Test
+  public void testRandomVectors() {
+    Random random = new Random(3);
+    VectorRows rows = FloatBufferMatrix.wrap(RandomVectors.unitVectors(3000, DIM, random), DIM);
+    assertExact(rows, RandomVectors.unitVectors(30, DIM, random), ConeTreeIndex.DEFAULT_LEAF_SIZE);
+  }
+
+  @Test
+  public void testClusteredVectors() {
+    Random random = new Random(5);
+    float[] vectors = clusteredVectors(3000, DIM, random);
+    VectorRows rows = FloatBufferMatrix.wrap(vectors, DIM);
+    // queries close to the data, so that high thresholds match
+    float[] queries = Arrays.copyOf(vectors, 30 * DIM);
+    assertExact(rows, queries, 8);
+    assertExact(rows, RandomVectors.unitVectors(30, DIM, random), 8);
+  }
+
+  @Test
+  public void testQuantizedVectors() {
+    Random random = new Random(9);
+    float[] vectors = clusteredVectors(2000, DIM, random);
+    Int8Matrix rows = new Int8Matrix(2000, DIM);
+    rows.put(vectors, 0);
+    assertExact(rows, Arrays.copyOf(vectors, 30 * DIM), ConeTreeIndex.DEFAULT_LEAF_SIZE);
+  }
+
+  @Test
+  public void testExtend() {
+    Random random = new Random(19);
+    float[] vectors = clusteredVectors(3000, DIM, random);
+    float[] queries = Arrays.copyOf(vectors, 30 * DIM);
+    ConeTreeIndex index = new ConeTreeIndex(FloatBufferMatrix.wrap(Arrays.copyOf(vectors, 100 * DIM), DIM), 8).build();
+    // append blocks of growing size, so that trees are merged
+    for(int size : new int[] {150, 200, 1000, 1010, 3000}) {
+      VectorRows rows = FloatBufferMatrix.wrap(Arrays.copyOf(vectors, size * DIM), DIM);
+      index = index.extend(rows);
+      assertEquals(size, index.size());
+      for(int i = 0; i < queries.length / DIM; i++) {
+        float[] q = Arrays.copyOfRange(queries, i * DIM, (i + 1) * DIM);
+        for(double threshold : THRESHOLDS) {
+          assertArrayEquals("size " + size + " query " + i + " threshold " + threshold, scan(rows, q, threshold), index.search(q, threshold));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testQueryFindsItself() {
+    Random random = new Random(13);
+    float[] vectors = RandomVectors.unitVectors(500, DIM, random);
+    ConeTreeIndex index = new ConeTreeIndex(FloatBufferMatrix.wrap(vectors, DIM)).build();
+    for(int i = 0; i < 500; i += 50) {
+      int[] result = index.search(Arrays.copyOfRange(vectors, i * DIM, (i + 1) * DIM), 0.99);
+      assertTrue(Arrays.binarySearch(result, i) >= 0);
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package de.datexis.cdv.index;
+
+import de.datexis.model.Document;
+import de.datexis.preprocess.DocumentFactory;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares precomputed structures of the vector store with the direct projection on a small random corpus.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class CorpusVectorStoreTest {
+
+  protected final static int ENTITY_DIM = 16;
+  protected final static int ASPECT_DIM = 8;
+
+  protected final static String[] TEXTS = {
+    "Aspirin is a medication. It is used to reduce pain. It can also reduce fever.",
+    "Diabetes is a disease. Symptoms include thirst. Treatment depends on the type. Insulin is common.",
+    "Influenza is caused by a virus. It spreads easily."
+  };
+
+  protected static List<Document> createDocuments() {
+    List<Document> docs = new ArrayList<>();
+    for(int d = 0; d < TEXTS.length; d++) {
+      Document doc = DocumentFactory.fromText(TEXTS[d]);
+      doc.setId("doc" + d);
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  /**
+   * @return a store with random sentence vectors, scaled by the given factor
+   */
+  protected static CorpusVectorStore createStore(List<Document> docs, Random random, float scale) {
+    CorpusVectorStore store = new CorpusVectorStore(docs);
+    for(int d = 0; d < docs.size(); d++) {
+      int n = docs.get(d).countSentences();
+      INDArray entity = Nd4j.create(RandomVectors.unitVectors(n, ENTITY_DIM, random), new int[] {n, ENTITY_DIM}).muli(scale);
+      INDArray aspect = Nd4j.create(RandomVectors.unitVectors(n, ASPECT_DIM, random), new int[] {n, ASPECT_DIM});
+      store.putDocumentMatrix(Projection.ENTITY, d, entity.transpose());
+      store.putDocumentMatrix(Projection.ASPECT, d, aspect.transpose());
+    }
+    store.stackProjections();
+    return store;
+  }
+
+  protected static INDArray randomVector(int dim, Random random) {
+    return Nd4j.create(RandomVectors.unitVectors(1, dim, random), new int[] {dim, 1}).muli(3);
+  }
+
+  @Test
+  public void testHeatmapEqualsStackedProjection() {
+    Random random = new Random(29);
+    List<Document> docs = createDocuments();
+    CorpusVectorStore store = createStore(docs, random, 1f);
+    INDArray qa = randomVector(ASPECT_DIM, random);
+    store.buildAspectHeatmaps(Collections.singletonMap("aspect", qa));
+    assertTrue(store.isAspectHeatmapExact(Projection.ASPECT));
+    assertTrue(store.isAspectHeatmapExact(Projection.ENTITY_ASPECT));
+    for(int i = 0; i < 5; i++) {
+      INDArray qf = randomVector(ENTITY_DIM, random);
+      INDArray q = Transforms.unitVec(Nd4j.vstack(Transforms.unitVec(qf), Transforms.unitVec(qa)));
+      for(int d = 0; d < docs.size(); d++) {
+        float[] expected = store.scoreHistogram(Projection.ENTITY_ASPECT, d, q.toFloatVector());
+        assertArrayEquals(expected, store.scoreWithAspect(d, Transforms.unitVec(qf).toFloatVector(), "aspect"), 1e-5f);
+        float[] aspect = store.scoreHistogram(Projection.ASPECT, d, Transforms.unitVec(qa).toFloatVector());
+        assertArrayEquals(aspect, store.lookupAspectHistogram("aspect", d), 1e-5f);
+      }
+    }
+  }
+
+  @Test
+  public void testHeatmapRequiresUnitLength() {
+    Random random = new Random(31);
+    CorpusVectorStore store = createStore(createDocuments(), random, 2f);
+    store.buildAspectHeatmaps(Collections.singletonMap("aspect", randomVector(ASPECT_DIM, random)));
+    assertTrue(store.isAspectHeatmapExact(Projection.ASPECT));
+    assertFalse(store.isAspectHeatmapExact(Projection.ENTITY_ASPECT));
+  }
+
+  @Test
+  public void testHeatmapIsNotUsedOnQuantizedProjections() {
+    Random random = new Random(37);
+    CorpusVectorStore store = createStore(createDocuments(), random, 1f);
+    store.buildAspectHeatmaps(Collections.singletonMap("aspect", randomVector(ASPECT_DIM, random)));
+    store.quantize(Projection.ENTITY, true);
+    assertTrue(store.isAspectHeatmapExact(Projection.ASPECT));
+    assertFalse(store.isAspectHeatmapExact(Projection.ENTITY_ASPECT));
+    store.quantize(Projection.ASPECT, true);
+    assertFalse(store.isAspectHeatmapExact(Projection.ASPECT));
+  }
+
+  @Test
+  public void testUpdateAppendsRowsAndKeepsQuantizedSegments() {
+    Random random = new Random(41);
+    List<Document> docs = createDocuments();
+    CorpusVectorStore store = createStore(docs.subList(0, 2), random, 1f);
+    INDArray qa = randomVector(ASPECT_DIM, random);
+    store.buildAspectHeatmaps(Collections.singletonMap("aspect", qa));
+    store.buildDocumentCentroids();
+    store.quantize(Projection.ENTITY, true);
+    // add the third Document and replace the first one, remove the second one
+    List<Document> changed = createDocuments();
+    CorpusVectorStore added = createStore(Arrays.asList(changed.get(2), changed.get(0)), random, 1f);
+    CorpusVectorStore updated = store.update(added, Collections.singleton("doc1"));
+    assertEquals(4, updated.countDocuments());
+    assertEquals(Arrays.asList(changed.get(2), changed.get(0)), updated.getDocuments());
+    assertTrue(updated.isDeleted(0));
+    assertTrue(updated.isDeleted(1));
+    assertEquals(3, updated.getDocumentIndex("doc0"));
+    assertEquals(-1, updated.getDocumentIndex(docs.get(0)));
+    // previous rows are shared as they are, appended rows are quantized as well
+    float[] qf = Transforms.unitVec(randomVector(ENTITY_DIM, random)).toFloatVector();
+    assertTrue(updated.isQuantized(Projection.ENTITY));
+    assertFalse(updated.isPagedOut(Projection.ENTITY));
+    assertArrayEquals(store.scoreHistogram(Projection.ENTITY, 1, qf), updated.scoreHistogram(Projection.ENTITY, 1, qf), 0f);
+    for(int d = 0; d < 2; d++) {
+      assertArrayEquals(added.scoreHistogram(Projection.ENTITY, d, qf), updated.scoreHistogram(Projection.ENTITY, 2 + d, qf), 0.05f);
+      float[] aspect = updated.scoreHistogram(Projection.ASPECT, 2 + d, Transforms.unitVec(qa).toFloatVector());
+      assertArrayEquals(aspect, updated.lookupAspectHistogram("aspect", 2 + d), 1e-5f);
+    }
+    assertEquals(updated.countSentences(), updated.getVectorRows(Projection.ASPECT).rows());
+    // deleted Documents are not returned by the centroid search
+    for(int d : updated.searchDocuments(Projection.ASPECT, Transforms.unitVec(qa), 4)) {
+      assertFalse(updated.isDeleted(d));
+    }
+  }
+
+  @Test
+  public void testSelectCopiesRowsInTheirRepresentation() {
+    Random random = new Random(43);
+    List<Document> docs = createDocuments();
+    CorpusVectorStore store = createStore(docs, random, 1f);
+    INDArray qa = randomVector(ASPECT_DIM, random);
+    store.buildAspectHeatmaps(Collections.singletonMap("aspect", qa));
+    store.buildDocumentCentroids();
+    store.quantize(Projection.ENTITY, true);
+    CorpusVectorStore shard = store.select(Arrays.asList(docs.get(2), docs.get(0)));
+    assertEquals(Arrays.asList(docs.get(0), docs.get(2)), shard.getDocuments());
+    assertEquals(docs.get(0).countSentences() + docs.get(2).countSentences(), shard.countSentences());
+    assertTrue(shard.isQuantized(Projection.ENTITY));
+    assertTrue(shard.hasDocumentCentroids(Projection.ASPECT));
+    float[] qf = Transforms.unitVec(randomVector(ENTITY_DIM, random)).toFloatVector();
+    for(int i = 0; i < 2; i++) {
+      int d = i == 0 ? 0 : 2;
+      assertArrayEquals(store.scoreHistogram(Projection.ENTITY, d, qf), shard.scoreHistogram(Projection.ENTITY, i, qf), 0f);
+      assertArrayEquals(store.lookupAspectHistogram("aspect", d), shard.lookupAspectHistogram("aspect", i), 0f);
+    }
+  }
+
+}
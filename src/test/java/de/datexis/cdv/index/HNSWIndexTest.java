@@ -0,0 +1,77 @@
+package de.datexis.cdv.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the approximate HNSW search with brute force on random unit vectors.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class HNSWIndexTest {
+
+  protected final static int DIM = 32;
+  protected final static int K = 10;
+
+  @Test
+  public void testRecall() {
+    Random random = new Random(7);
+    VectorRows rows = FloatBufferMatrix.wrap(RandomVectors.unitVectors(2000, DIM, random), DIM);
+    HNSWIndex index = new HNSWIndex(rows).build();
+    assertEquals(2000, index.size());
+    float[] queries = RandomVectors.unitVectors(50, DIM, random);
+    double recall = 0.;
+    for(int i = 0; i < 50; i++) {
+      float[] q = Arrays.copyOfRange(queries, i * DIM, (i + 1) * DIM);
+      int[] actual = index.search(q, K);
+      assertEquals(K, actual.length);
+      recall += RandomVectors.recall(RandomVectors.topK(rows, q, K), actual) / 50;
+    }
+    assertTrue("recall@" + K + " was " + recall, recall >= 0.95);
+  }
+
+  @Test
+  public void testResultsAreSortedBySimilarity() {
+    Random random = new Random(11);
+    VectorRows rows = FloatBufferMatrix.wrap(RandomVectors.unitVectors(500, DIM, random), DIM);
+    HNSWIndex index = new HNSWIndex(rows).build();
+    float[] q = RandomVectors.unitVectors(1, DIM, random);
+    int[] result = index.search(q, K);
+    for(int i = 1; i < result.length; i++) {
+      assertTrue(rows.dot(result[i - 1], q, 0) >= rows.dot(result[i], q, 0));
+    }
+  }
+
+  @Test
+  public void testExtend() {
+    Random random = new Random(17);
+    float[] vectors = RandomVectors.unitVectors(2000, DIM, random);
+    VectorRows first = FloatBufferMatrix.wrap(Arrays.copyOf(vectors, 1200 * DIM), DIM);
+    VectorRows rows = FloatBufferMatrix.wrap(vectors, DIM);
+    HNSWIndex previous = new HNSWIndex(first).build();
+    HNSWIndex index = previous.extend(rows);
+    assertEquals(2000, index.size());
+    assertSame(index, index.extend(rows));
+    float[] queries = RandomVectors.unitVectors(50, DIM, random);
+    double recall = 0.;
+    for(int i = 0; i < 50; i++) {
+      float[] q = Arrays.copyOfRange(queries, i * DIM, (i + 1) * DIM);
+      recall += RandomVectors.recall(RandomVectors.topK(rows, q, K), index.search(q, K)) / 50;
+      // the previous graph is unchanged
+      for(int row : previous.search(q, K)) assertTrue(row < 1200);
+    }
+    assertTrue("recall@" + K + " was " + recall, recall >= 0.95);
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    HNSWIndex index = new HNSWIndex(FloatBufferMatrix.wrap(new float[0], DIM)).build();
+    assertEquals(0, index.search(new float[DIM], K).length);
+  }
+
+}
@@ -0,0 +1,86 @@
+package de.datexis.cdv.index;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares product-quantized search with exact re-ranking against brute force on random unit vectors.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ProductQuantizerTest {
+
+  protected final static int DIM = 32;
+  protected final static int SIZE = 4000;
+  protected final static int K = 10;
+  protected final static int NUM_APPROXIMATE = 200;
+
+  @Test
+  public void testRecallWithReranking() {
+    Random random = new Random(17);
+    float[] vectors = RandomVectors.unitVectors(SIZE, DIM, random);
+    VectorRows rows = FloatBufferMatrix.wrap(vectors, DIM);
+    ProductQuantizer pq = new ProductQuantizer(DIM).train(vectors, 8);
+    byte[] codes = pq.encode(vectors);
+    float[] queries = RandomVectors.unitVectors(30, DIM, random);
+    double recall = 0.;
+    for(int i = 0; i < 30; i++) {
+      float[] q = Arrays.copyOfRange(queries, i * DIM, (i + 1) * DIM);
+      float[] table = pq.getDistanceTable(q);
+      // approximate scan
+      float[] scores = new float[SIZE];
+      for(int row = 0; row < SIZE; row++) scores[row] = pq.score(table, codes, row);
+      int[] candidates = IntStream.range(0, SIZE).boxed()
+        .sorted((a, b) -> Float.compare(scores[b], scores[a]))
+        .limit(NUM_APPROXIMATE)
+        .mapToInt(Integer::intValue)
+        .toArray();
+      // exact re-ranking
+      Integer[] order = Arrays.stream(candidates).boxed().toArray(Integer[]::new);
+      Arrays.sort(order, (a, b) -> Float.compare(rows.dot(b, q, 0), rows.dot(a, q, 0)));
+      int[] actual = Arrays.stream(order).limit(K).mapToInt(Integer::intValue).toArray();
+      recall += RandomVectors.recall(RandomVectors.topK(rows, q, K), actual) / 30;
+    }
+    assertTrue("recall@" + K + " was " + recall, recall >= 0.9);
+  }
+
+  @Test
+  public void testApproximationError() {
+    Random random = new Random(19);
+    float[] vectors = RandomVectors.unitVectors(SIZE, DIM, random);
+    ProductQuantizer pq = new ProductQuantizer(DIM).train(vectors, 8);
+    byte[] codes = pq.encode(vectors);
+    float[] q = RandomVectors.unitVectors(1, DIM, random);
+    float[] table = pq.getDistanceTable(q);
+    VectorRows rows = FloatBufferMatrix.wrap(vectors, DIM);
+    double error = 0.;
+    for(int row = 0; row < SIZE; row++) error += Math.abs(pq.score(table, codes, row) - rows.dot(row, q, 0)) / SIZE;
+    assertTrue("mean absolute error was " + error, error < 0.1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTrainWithoutSamples() {
+    ProductQuantizer pq = new ProductQuantizer(DIM);
+    assertFalse(pq.isTrained());
+    pq.train(new float[0], 8);
+  }
+
+  @Test
+  public void testEncodeIntoOffset() {
+    Random random = new Random(23);
+    float[] vectors = RandomVectors.unitVectors(100, DIM, random);
+    ProductQuantizer pq = new ProductQuantizer(DIM).train(vectors, 4);
+    byte[] codes = new byte[150 * pq.getNumSubspaces()];
+    pq.encode(vectors, codes, 50);
+    byte[] expected = pq.encode(vectors);
+    assertEquals(expected.length, codes.length - 50 * pq.getNumSubspaces());
+    assertTrue(Arrays.equals(expected, Arrays.copyOfRange(codes, 50 * pq.getNumSubspaces(), codes.length)));
+  }
+
+}
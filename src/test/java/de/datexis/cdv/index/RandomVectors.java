@@ -0,0 +1,60 @@
+package de.datexis.cdv.index;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random unit vectors and brute force search for index tests.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class RandomVectors {
+
+  /**
+   * @return random unit vectors [n x dim], row-wise
+   */
+  public static float[] unitVectors(int n, int dim, Random random) {
+    float[] vectors = new float[n * dim];
+    for(int i = 0; i < n; i++) {
+      double norm = 0.;
+      for(int j = 0; j < dim; j++) {
+        vectors[i * dim + j] = (float) random.nextGaussian();
+        norm += vectors[i * dim + j] * vectors[i * dim + j];
+      }
+      for(int j = 0; j < dim; j++) vectors[i * dim + j] /= Math.sqrt(norm);
+    }
+    return vectors;
+  }
+
+  /**
+   * @return rows with the k largest inner products with q, in descending order
+   */
+  public static int[] topK(VectorRows rows, float[] q, int k) {
+    Integer[] order = new Integer[rows.rows()];
+    float[] scores = new float[rows.rows()];
+    for(int i = 0; i < order.length; i++) {
+      order[i] = i;
+      scores[i] = rows.dot(i, q, 0);
+    }
+    Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+    int[] result = new int[Math.min(k, order.length)];
+    for(int i = 0; i < result.length; i++) result[i] = order[i];
+    return result;
+  }
+
+  /**
+   * @return the fraction of expected rows that are contained in the actual rows
+   */
+  public static double recall(int[] expected, int[] actual) {
+    int found = 0;
+    for(int e : expected) {
+      for(int a : actual) {
+        if(a == e) {
+          found++;
+          break;
+        }
+      }
+    }
+    return expected.length > 0 ? (double) found / expected.length : 1.;
+  }
+
+}
@@ -0,0 +1,180 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.model.Annotation;
+import de.datexis.model.Dataset;
+import de.datexis.model.Query;
+import de.datexis.retrieval.model.ScoredResult;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that asynchronous Queries complete at their deadline with partial results and stop retrieving, and
+ * that coalesced Queries keep their order and all get the results of their group.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class QueryExecutorTest {
+
+  protected final static int NUM_DOCS = 64;
+
+  /**
+   * Runner that sleeps before every Document, so that deadlines expire while a Query is retrieved.
+   */
+  protected static class SlowQueryRunner extends QueryRunner {
+
+    protected final AtomicInteger retrieved = new AtomicInteger();
+    protected final long millisPerDocument;
+
+    protected SlowQueryRunner(RandomCorpus data, long millisPerDocument) {
+      super(data.corpus, data.store, data.entityIndex, null, Strategy.SENTENCE_THRESHOLD);
+      this.millisPerDocument = millisPerDocument;
+      setThresholds(0., 0.);
+    }
+
+    @Override
+    protected void retrieveDocuments(QueryPlan plan, TopKCollector results, int begin, int end) {
+      for(int d = begin; d < end; d++) {
+        try {
+          Thread.sleep(millisPerDocument);
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        retrieved.incrementAndGet();
+        super.retrieveDocuments(plan, results, d, d + 1);
+      }
+    }
+
+  }
+
+  protected static boolean isPartial(Query query) {
+    return query.getAnnotation(EntityAspectQueryAnnotation.class).isPartial();
+  }
+
+  @Test
+  public void testDeadlineCompletesWithPartialResults() throws Exception {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, 1, new Random(3));
+    SlowQueryRunner runner = new SlowQueryRunner(data, 30);
+    try(QueryExecutor executor = new QueryExecutor(runner, 1)) {
+      Query query = data.createQuery(0);
+      Query result = executor.retrieveAsync(query, QueryRunner.Candidates.ALL, Duration.ofMillis(200)).get(NUM_DOCS * 30, TimeUnit.MILLISECONDS);
+      assertSame(query, result);
+      assertTrue(isPartial(query));
+      // the Document in progress finishes, but no further Documents are retrieved after the deadline
+      Thread.sleep(100);
+      int retrieved = runner.retrieved.get();
+      assertTrue(retrieved < NUM_DOCS);
+      Thread.sleep(200);
+      assertEquals(retrieved, runner.retrieved.get());
+      // partial results are a subset of the complete results
+      Query complete = data.createQuery(0);
+      data.createRunner().retrieveAsync(complete, QueryRunner.Candidates.ALL, null).join();
+      assertTrue(RandomCorpus.getResultKeys(query).size() <= RandomCorpus.getResultKeys(complete).size());
+      assertTrue(RandomCorpus.getResultKeys(complete).containsAll(RandomCorpus.getResultKeys(query)));
+    }
+  }
+
+  @Test
+  public void testQueryWithinDeadlineIsComplete() throws Exception {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, 1, new Random(5));
+    SlowQueryRunner runner = new SlowQueryRunner(data, 0);
+    try(QueryExecutor executor = new QueryExecutor(runner, 2)) {
+      Query query = data.createQuery(0);
+      executor.retrieveAsync(query, QueryRunner.Candidates.ALL, Duration.ofSeconds(60)).get(60, TimeUnit.SECONDS);
+      assertFalse(isPartial(query));
+      assertEquals(NUM_DOCS, runner.retrieved.get());
+      Query expected = data.createQuery(0);
+      runner.retrieveQuery(runner.planQuery(expected, QueryRunner.Candidates.ALL), expected);
+      assertFalse(RandomCorpus.getResultKeys(expected).isEmpty());
+      assertEquals(RandomCorpus.getResultKeys(expected), RandomCorpus.getResultKeys(query));
+    }
+  }
+
+  @Test
+  public void testCancelStopsRetrieval() throws Exception {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, 1, new Random(7));
+    SlowQueryRunner runner = new SlowQueryRunner(data, 30);
+    try(QueryExecutor executor = new QueryExecutor(runner, 1)) {
+      CompletableFuture<Query> future = executor.retrieveAsync(data.createQuery(0), QueryRunner.Candidates.ALL, null);
+      Thread.sleep(100);
+      assertTrue(future.cancel(true));
+      Thread.sleep(100);
+      int retrieved = runner.retrieved.get();
+      Thread.sleep(200);
+      assertEquals(retrieved, runner.retrieved.get());
+      assertTrue(retrieved < NUM_DOCS);
+    }
+  }
+
+  @Test
+  public void testCoalesceKeepsOrderOfFirstQuery() {
+    QueryRunner runner = new QueryRunner(new Dataset("test"), null, null) {
+      @Override
+      protected String getCoalescingKey(Query query, Candidates candidateStrategy) {
+        // Queries named "x" can't be coalesced
+        String entity = query.getAnnotation(EntityAspectQueryAnnotation.class).getEntity();
+        return entity.equals("x") ? null : entity;
+      }
+    };
+    Query a1 = EntityAspectQueryAnnotation.createQuery("a", null);
+    Query x1 = EntityAspectQueryAnnotation.createQuery("x", null);
+    Query b1 = EntityAspectQueryAnnotation.createQuery("b", null);
+    Query a2 = EntityAspectQueryAnnotation.createQuery("a", null);
+    Query x2 = EntityAspectQueryAnnotation.createQuery("x", null);
+    try(QueryExecutor executor = new QueryExecutor(runner, 1)) {
+      List<List<Query>> groups = new ArrayList<>(executor.coalesce(Arrays.asList(a1, x1, b1, a2, x2), QueryRunner.Candidates.ALL));
+      assertEquals(4, groups.size());
+      assertEquals(2, groups.get(0).size());
+      assertSame(a1, groups.get(0).get(0));
+      assertSame(a2, groups.get(0).get(1));
+      assertEquals(Collections.singletonList(x1), groups.get(1));
+      assertSame(x1, groups.get(1).get(0));
+      assertSame(b1, groups.get(2).get(0));
+      assertSame(x2, groups.get(3).get(0));
+    }
+  }
+
+  @Test
+  public void testCoalescedQueriesShareResults() {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, 2, new Random(11));
+    final AtomicInteger planned = new AtomicInteger();
+    QueryRunner runner = new SlowQueryRunner(data, 0) {
+      @Override
+      protected QueryPlan planQuery(Query query, Candidates candidateStrategy) {
+        planned.incrementAndGet();
+        return super.planQuery(query, candidateStrategy);
+      }
+    };
+    Query first = data.createQuery(0), second = data.createQuery(0), other = data.createQuery(1);
+    Collection<Query> queries = Arrays.asList(first, other, second);
+    try(QueryExecutor executor = new QueryExecutor(runner, 2)) {
+      executor.retrieveAll(queries, QueryRunner.Candidates.ALL);
+    }
+    // equal Queries are only retrieved once
+    assertEquals(2, planned.get());
+    Query expected = data.createQuery(0);
+    data.createRunner().retrieveAsync(expected, QueryRunner.Candidates.ALL, null).join();
+    assertFalse(RandomCorpus.getResultKeys(expected).isEmpty());
+    assertEquals(RandomCorpus.getResultKeys(expected), RandomCorpus.getResultKeys(first));
+    assertEquals(RandomCorpus.getResultKeys(expected), RandomCorpus.getResultKeys(second));
+    assertFalse(RandomCorpus.getResultKeys(other).isEmpty());
+    // every Query gets its own result annotations
+    assertNotSame(first.getResults(Annotation.Source.PRED, ScoredResult.class).get(0), second.getResults(Annotation.Source.PRED, ScoredResult.class).get(0));
+  }
+
+}
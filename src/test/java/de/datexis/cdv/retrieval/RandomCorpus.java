@@ -0,0 +1,105 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.cdv.index.CorpusVectorStore;
+import de.datexis.cdv.index.EntityIndex;
+import de.datexis.cdv.index.Projection;
+import de.datexis.cdv.index.QueryIndex;
+import de.datexis.cdv.index.RandomVectors;
+import de.datexis.model.Annotation;
+import de.datexis.model.Dataset;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import de.datexis.preprocess.DocumentFactory;
+import de.datexis.retrieval.model.ScoredResult;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Small corpus with random ENTITY sentence vectors and an entity index of random entity vectors for retrieval
+ * tests.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class RandomCorpus {
+
+  public final static int DIM = 16;
+
+  protected final static String[] TEXTS = {
+    "Aspirin is a medication. It is used to reduce pain. It can also reduce fever.",
+    "Diabetes is a disease. Symptoms include thirst. Treatment depends on the type. Insulin is common.",
+    "Influenza is caused by a virus. It spreads easily."
+  };
+
+  public final Dataset corpus = new Dataset("random");
+  public final CorpusVectorStore store;
+  public final QueryIndex entityIndex;
+  protected final Map<String, INDArray> entities = new HashMap<>();
+
+  public RandomCorpus(int numDocs, int numEntities, Random random) {
+    for(int d = 0; d < numDocs; d++) {
+      Document doc = DocumentFactory.fromText(TEXTS[d % TEXTS.length]);
+      doc.setId("doc" + d);
+      corpus.addDocument(doc);
+    }
+    store = new CorpusVectorStore(corpus.getDocuments());
+    for(int d = 0; d < store.countDocuments(); d++) {
+      int n = store.getDocument(d).countSentences();
+      INDArray vectors = Nd4j.create(RandomVectors.unitVectors(n, DIM, random), new int[] {n, DIM});
+      store.putDocumentMatrix(Projection.ENTITY, d, vectors.transpose());
+    }
+    for(int e = 0; e < numEntities; e++) {
+      entities.put(getEntityId(e), Nd4j.create(RandomVectors.unitVectors(1, DIM, random), new int[] {DIM, 1}));
+    }
+    entityIndex = new EntityIndex() {
+      @Override
+      public INDArray lookup(String id) {
+        return entities.get(id);
+      }
+      @Override
+      public INDArray encode(String mention) {
+        return null;
+      }
+    };
+  }
+
+  protected static String getEntityId(int entity) {
+    return "entity" + entity;
+  }
+
+  /**
+   * @return an entity Query for one of the random entities
+   */
+  public Query createQuery(int entity) {
+    Query query = EntityAspectQueryAnnotation.createQuery("Entity " + entity, null);
+    query.getAnnotation(EntityAspectQueryAnnotation.class).setEntityId(getEntityId(entity));
+    return query;
+  }
+
+  /**
+   * @return a runner on the whole corpus that finds passages with positive similarity
+   */
+  public QueryRunner createRunner() {
+    QueryRunner runner = new QueryRunner(corpus, store, entityIndex, null, QueryRunner.Strategy.SENTENCE_THRESHOLD);
+    runner.setThresholds(0., 0.);
+    return runner;
+  }
+
+  /**
+   * @return the predicted results of a Query as "document:begin-end:score", in their order
+   */
+  public static List<String> getResultKeys(Query query) {
+    return getResultKeys(query.getResults(Annotation.Source.PRED, ScoredResult.class));
+  }
+
+  public static List<String> getResultKeys(List<ScoredResult> results) {
+    return results.stream()
+      .map(r -> r.getDocumentRef().getId() + ":" + r.getBegin() + "-" + r.getEnd() + ":" + r.getScore())
+      .collect(Collectors.toList());
+  }
+
+}
@@ -0,0 +1,175 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.model.Dataset;
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs ShardServers on the loopback interface and checks that the ShardCoordinator merges their results into
+ * the results of a single runner, retries failed connections and gives up on shards that time out.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ShardServerTest {
+
+  protected final static int NUM_DOCS = 48;
+  protected final static int NUM_ENTITIES = 4;
+  protected final static int NUM_SHARDS = 2;
+  protected final static int NUM_RESULTS = 10;
+
+  protected RandomCorpus data;
+  protected final List<ShardServer> servers = new ArrayList<>();
+  protected InetSocketAddress[] addresses;
+
+  /**
+   * Coordinator that fails the given number of requests before it connects to the shards.
+   */
+  protected static class FailingCoordinator extends ShardCoordinator {
+
+    protected final AtomicInteger attempts = new AtomicInteger();
+    protected final int failures;
+
+    protected FailingCoordinator(Dataset corpus, int failures, InetSocketAddress... shards) {
+      super(corpus, shards);
+      this.failures = failures;
+      setBackoff(Duration.ofMillis(1));
+    }
+
+    @Override
+    protected void sendRequest(InetSocketAddress shard, String request, TopKCollector results) throws IOException {
+      if(attempts.incrementAndGet() <= failures) throw new ConnectException("connection refused");
+      super.sendRequest(shard, request, results);
+    }
+
+  }
+
+  @Before
+  public void startServers() throws IOException {
+    data = new RandomCorpus(NUM_DOCS, NUM_ENTITIES, new Random(19));
+    addresses = new InetSocketAddress[NUM_SHARDS];
+    for(int i = 0; i < NUM_SHARDS; i++) {
+      Dataset shard = new Dataset(data.corpus.getName());
+      for(Document doc : data.corpus.getDocuments()) {
+        if(ShardedQueryRunner.getShardIndex(doc.getId(), NUM_SHARDS) == i) shard.addDocument(doc);
+      }
+      QueryRunner runner = new QueryRunner(shard, data.store.select(shard.getDocuments()), data.entityIndex, null, QueryRunner.Strategy.SENTENCE_THRESHOLD);
+      runner.setThresholds(0., 0.);
+      runner.setMaxResults(NUM_RESULTS);
+      ShardServer server = new ShardServer(runner, 0);
+      servers.add(server);
+      addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+      Thread thread = new Thread(server::serve, "shard-server-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  @After
+  public void stopServers() throws IOException {
+    for(ShardServer server : servers) server.close();
+  }
+
+  protected Query retrieveExpected(int entity) {
+    QueryRunner runner = data.createRunner();
+    runner.setMaxResults(NUM_RESULTS);
+    Query query = data.createQuery(entity);
+    runner.retrieveAsync(query, QueryRunner.Candidates.ALL, null).join();
+    return query;
+  }
+
+  protected static boolean isPartial(Query query) {
+    return query.getAnnotation(EntityAspectQueryAnnotation.class).isPartial();
+  }
+
+  @Test
+  public void testMergedResultsEqualSingleRunner() {
+    try(ShardCoordinator coordinator = new ShardCoordinator(data.corpus, addresses)) {
+      coordinator.setMaxResults(NUM_RESULTS);
+      for(int e = 0; e < NUM_ENTITIES; e++) {
+        Query expected = retrieveExpected(e);
+        Query actual = coordinator.retrieveQuery(data.createQuery(e), QueryRunner.Candidates.ALL);
+        assertFalse(isPartial(actual));
+        assertEquals(NUM_RESULTS, RandomCorpus.getResultKeys(expected).size());
+        assertEquals(RandomCorpus.getResultKeys(expected), RandomCorpus.getResultKeys(actual));
+      }
+    }
+  }
+
+  @Test
+  public void testFailedConnectionIsRetried() {
+    try(FailingCoordinator coordinator = new FailingCoordinator(data.corpus, 1, addresses[0], addresses[1])) {
+      coordinator.setMaxResults(NUM_RESULTS);
+      coordinator.setTimeout(Duration.ofSeconds(10), 2);
+      Query actual = coordinator.retrieveQuery(data.createQuery(0), QueryRunner.Candidates.ALL);
+      assertEquals(NUM_SHARDS + 1, coordinator.attempts.get());
+      assertFalse(isPartial(actual));
+      assertEquals(RandomCorpus.getResultKeys(retrieveExpected(0)), RandomCorpus.getResultKeys(actual));
+    }
+  }
+
+  @Test
+  public void testUnavailableShardIsPartial() {
+    try(FailingCoordinator coordinator = new FailingCoordinator(data.corpus, Integer.MAX_VALUE, addresses[0])) {
+      coordinator.setTimeout(Duration.ofSeconds(10), 2);
+      Query actual = coordinator.retrieveQuery(data.createQuery(0), QueryRunner.Candidates.ALL);
+      assertEquals(3, coordinator.attempts.get());
+      assertTrue(isPartial(actual));
+      assertTrue(RandomCorpus.getResultKeys(actual).isEmpty());
+    }
+  }
+
+  @Test
+  public void testSlowShardTimesOutWithoutRetry() throws Exception {
+    // a shard that sends a result line every 100 ms but never finishes
+    try(ServerSocket slow = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      Thread thread = new Thread(() -> {
+        try(Socket client = slow.accept()) {
+          OutputStream out = client.getOutputStream();
+          while(!Thread.currentThread().isInterrupted()) {
+            out.write("RESULT\tdoc0\t0\t10\t0.5\t\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(100);
+          }
+        } catch(IOException | InterruptedException e) {
+          // connection closed by the coordinator
+        }
+      }, "slow-shard");
+      thread.setDaemon(true);
+      thread.start();
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), slow.getLocalPort());
+      try(FailingCoordinator coordinator = new FailingCoordinator(data.corpus, 0, addresses[0], address)) {
+        coordinator.setTimeout(Duration.ofMillis(500), 2);
+        long start = System.currentTimeMillis();
+        Query actual = coordinator.retrieveQuery(data.createQuery(0), QueryRunner.Candidates.ALL);
+        long elapsed = System.currentTimeMillis() - start;
+        // one attempt per shard, the slow shard is not asked again
+        assertEquals(NUM_SHARDS, coordinator.attempts.get());
+        assertTrue(isPartial(actual));
+        assertTrue("request took " + elapsed + " ms", elapsed < 1500);
+        assertFalse(RandomCorpus.getResultKeys(actual).isEmpty());
+      }
+      thread.interrupt();
+    }
+  }
+
+}
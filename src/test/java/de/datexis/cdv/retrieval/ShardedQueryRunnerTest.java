@@ -0,0 +1,63 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.model.Document;
+import de.datexis.model.Query;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the merged top-k results of a sharded corpus with a single runner on the whole corpus.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class ShardedQueryRunnerTest {
+
+  protected final static int NUM_DOCS = 48;
+  protected final static int NUM_ENTITIES = 8;
+  protected final static int NUM_SHARDS = 3;
+
+  @Test
+  public void testShardedTopKEqualsUnsharded() {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, NUM_ENTITIES, new Random(13));
+    QueryRunner runner = data.createRunner();
+    runner.setMaxResults(20);
+    try(ShardedQueryRunner sharded = new ShardedQueryRunner(data.corpus, data.store, data.entityIndex, null, QueryRunner.Strategy.SENTENCE_THRESHOLD, NUM_SHARDS, 2)) {
+      sharded.setThresholds(0., 0.);
+      sharded.setMaxResults(20);
+      for(int e = 0; e < NUM_ENTITIES; e++) {
+        Query expected = data.createQuery(e);
+        runner.retrieveAsync(expected, QueryRunner.Candidates.ALL, null).join();
+        Query actual = sharded.retrieveQuery(data.createQuery(e), QueryRunner.Candidates.ALL);
+        assertEquals(20, RandomCorpus.getResultKeys(expected).size());
+        assertEquals(RandomCorpus.getResultKeys(expected), RandomCorpus.getResultKeys(actual));
+      }
+    }
+  }
+
+  @Test
+  public void testShardsPartitionCorpus() {
+    RandomCorpus data = new RandomCorpus(NUM_DOCS, NUM_ENTITIES, new Random(17));
+    try(ShardedQueryRunner sharded = new ShardedQueryRunner(data.corpus, data.store, data.entityIndex, null, QueryRunner.Strategy.SENTENCE_THRESHOLD, NUM_SHARDS, 2)) {
+      Set<String> ids = new HashSet<>();
+      for(int i = 0; i < sharded.getNumShards(); i++) {
+        QueryRunner shard = sharded.getShard(i);
+        assertFalse(shard.getDocuments().isEmpty());
+        for(Document doc : shard.getDocuments()) {
+          assertEquals(i, ShardedQueryRunner.getShardIndex(doc.getId(), NUM_SHARDS));
+          assertTrue(ids.add(doc.getId()));
+        }
+        // Queries and name of the whole corpus are used for precomputation
+        assertSame(data.corpus, shard.getQueryCorpus());
+      }
+      assertEquals(NUM_DOCS, ids.size());
+    }
+  }
+
+}
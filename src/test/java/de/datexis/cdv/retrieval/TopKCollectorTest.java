@@ -0,0 +1,130 @@
+package de.datexis.cdv.retrieval;
+
+import de.datexis.model.Document;
+import de.datexis.retrieval.model.ScoredResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the bounded heap keeps exactly the best results and returns them in descending order.
+ * @author Sebastian Arnold <sarnold@beuth-hochschule.de>
+ */
+public class TopKCollectorTest {
+
+  /**
+   * @return the k largest scores in descending order
+   */
+  protected static List<Double> top(List<Double> scores, int k) {
+    List<Double> sorted = new ArrayList<>(scores);
+    sorted.sort(Collections.reverseOrder());
+    return sorted.subList(0, Math.min(k, sorted.size()));
+  }
+
+  protected static List<Double> getScores(TopKCollector results) {
+    return results.getResults().stream().map(ScoredResult::getScore).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testKeepsBestResultsInOrder() {
+    Random random = new Random(1);
+    Document doc = new Document();
+    List<Double> scores = new ArrayList<>();
+    TopKCollector results = new TopKCollector(10);
+    for(int i = 0; i < 1000; i++) {
+      double score = random.nextDouble();
+      scores.add(score);
+      results.offer(doc, i, i + 1, score);
+    }
+    assertEquals(10, results.size());
+    assertEquals(top(scores, 10), getScores(results));
+  }
+
+  @Test
+  public void testSpansFollowTheirScores() {
+    Document doc = new Document();
+    TopKCollector results = new TopKCollector(5);
+    // offer in ascending order, so that every offer replaces the heap root
+    for(int i = 0; i < 100; i++) results.offer(doc, i, i + 10, i / 100.);
+    List<ScoredResult> top = results.getResults();
+    assertEquals(5, top.size());
+    for(int i = 0; i < 5; i++) {
+      assertEquals(99 - i, top.get(i).getBegin());
+      assertEquals(109 - i, top.get(i).getEnd());
+      assertEquals((99 - i) / 100., top.get(i).getScore(), 0.);
+      assertSame(doc, top.get(i).getDocumentRef());
+    }
+  }
+
+  @Test
+  public void testFewerResultsThanK() {
+    Document doc = new Document();
+    TopKCollector results = new TopKCollector(10);
+    results.offer(doc, 0, 1, 0.2);
+    results.offer(doc, 1, 2, 0.7);
+    results.offer(doc, 2, 3, 0.5);
+    assertEquals(3, results.size());
+    assertEquals(IntStream.of(1, 2, 0).boxed().collect(Collectors.toList()),
+      results.getResults().stream().map(ScoredResult::getBegin).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testUnbounded() {
+    Random random = new Random(2);
+    Document doc = new Document();
+    List<Double> scores = new ArrayList<>();
+    TopKCollector results = new TopKCollector(0);
+    for(int i = 0; i < 500; i++) {
+      double score = random.nextDouble();
+      scores.add(score);
+      results.offer(doc, i, i + 1, score);
+    }
+    assertEquals(500, results.size());
+    assertEquals(top(scores, 500), getScores(results));
+  }
+
+  @Test
+  public void testConcurrentOffers() throws InterruptedException {
+    Document doc = new Document();
+    TopKCollector results = new TopKCollector(20);
+    List<Thread> threads = new ArrayList<>();
+    for(int t = 0; t < 4; t++) {
+      final int offset = t;
+      Thread thread = new Thread(() -> {
+        for(int i = offset; i < 10000; i += 4) results.offer(doc, i, i + 1, i);
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread : threads) thread.join();
+    List<Double> expected = IntStream.range(0, 20).mapToObj(i -> (double) (9999 - i)).collect(Collectors.toList());
+    assertEquals(expected, getScores(results));
+  }
+
+  @Test
+  public void testOfferAll() {
+    Random random = new Random(3);
+    Document doc = new Document();
+    List<Double> scores = new ArrayList<>();
+    TopKCollector merged = new TopKCollector(10);
+    for(int shard = 0; shard < 3; shard++) {
+      TopKCollector results = new TopKCollector(10);
+      for(int i = 0; i < 100; i++) {
+        double score = random.nextDouble();
+        scores.add(score);
+        results.offer(doc, i, i + 1, score);
+      }
+      merged.offerAll(results);
+    }
+    assertEquals(top(scores, 10), getScores(merged));
+  }
+
+}